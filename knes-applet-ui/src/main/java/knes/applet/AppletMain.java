@@ -46,7 +46,6 @@ public class AppletMain extends Applet implements Runnable {
 
         gui.init(nes.getPapu(), false);
 
-        Globals.appletMode = true;
         Globals.memoryFlushValue = 0x00; // make SMB1 hacked version work.
     }
 
@@ -54,20 +53,25 @@ public class AppletMain extends Applet implements Runnable {
 
         panelScreen = (AppletScreenView) nes.getScreenView();
         panelScreen.setFPSEnabled(properties.isFps());
+        panelScreen.setScanlineChanged(nes.getPpu().getScanlineChanged());
 
         this.setLayout(null);
 
         if (properties.isScale()) {
 
-            if (properties.isScanlines()) {
+            int mode = AppletScreenView.getFilterScaleMode(properties.getFilter());
+            if (mode != -1) {
+                panelScreen.setScaleMode(mode);
+            } else if (properties.isScanlines()) {
                 panelScreen.setScaleMode(AppletScreenView.SCALE_SCANLINE);
             } else {
                 panelScreen.setScaleMode(AppletScreenView.SCALE_NORMAL);
             }
 
-            this.setSize(512, 480);
-            this.setBounds(0, 0, 512, 480);
-            panelScreen.setBounds(0, 0, 512, 480);
+            int scale = panelScreen.getScaleModeScale(panelScreen.getScaleMode());
+            this.setSize(256 * scale, 240 * scale);
+            this.setBounds(0, 0, 256 * scale, 240 * scale);
+            panelScreen.setBounds(0, 0, 256 * scale, 240 * scale);
         } else {
             panelScreen.setBounds(0, 0, 256, 240);
         }
@@ -144,8 +148,10 @@ public class AppletMain extends Applet implements Runnable {
 
         // Get screen size:
         if (properties.isScale()) {
-            scrw = 512;
-            scrh = 480;
+            int mode = AppletScreenView.getFilterScaleMode(properties.getFilter());
+            int scale = mode != -1 ? AppletScreenView.getScale(mode) : 2;
+            scrw = 256 * scale;
+            scrh = 240 * scale;
         } else {
             scrw = 256;
             scrh = 240;
@@ -208,6 +214,11 @@ public class AppletMain extends Applet implements Runnable {
             properties.setScanlines(tmp.equals("on"));
         }
 
+        tmp = getParameter("filter");
+        if (tmp != null && !tmp.isEmpty()) {
+            properties.setFilter(tmp);
+        }
+
         tmp = getParameter("fps");
         if (tmp != null && !tmp.isEmpty()) {
             properties.setFps(tmp.equals("on"));
@@ -13,6 +13,7 @@
 
 package knes.applet;
 
+import knes.emulator.Scale;
 import knes.emulator.ui.GUI;
 import knes.emulator.ui.ScreenView;
 import knes.emulator.utils.Globals;
@@ -32,6 +33,12 @@ public class AppletScreenView extends JPanel implements ScreenView {
     public static final int SCALE_NORMAL = 3;
     public static final int SCALE_SCANLINE = 4;
     public static final int SCALE_RASTER = 5;
+    public static final int SCALE_SCALE2X = 6;
+    public static final int SCALE_SCALE3X = 7;
+    public static final int SCALE_EDGE_BLEND2X = 8;
+    public static final int SCALE_EDGE_BLEND3X = 9;
+    public static final int SCALE_XBR2X = 10;
+    public static final int SCALE_XBR3X = 11;
     private final GUI gui;
     private BufferedImage img;
     private VolatileImage vimg;
@@ -41,6 +48,9 @@ public class AppletScreenView extends JPanel implements ScreenView {
     private final int height;
     private int[] pix;
     private int[] pix_scaled;
+    private boolean[] scanlineChanged;
+    // Set when the scaled raster is new or holds another mode's output, so that the next frame is scaled in full:
+    private boolean scaleAllRows;
     private int scaleMode;
     // FPS counter variables:
     private boolean showFPS = true;
@@ -71,6 +81,11 @@ public class AppletScreenView extends JPanel implements ScreenView {
         bgColor = color;
     }
 
+    // Rows of the frame that changed since the last one, the software scaling modes skip the others:
+    public void setScanlineChanged(boolean[] changed) {
+        scanlineChanged = changed;
+    }
+
     public void setScaleMode(int newMode) {
 
         if (newMode != scaleMode) {
@@ -81,6 +96,7 @@ public class AppletScreenView extends JPanel implements ScreenView {
 
             // Change scale mode:
             this.scaleMode = newMode;
+            scaleAllRows = true;
 
             if (diffHW || diffSz) {
 
@@ -164,6 +180,7 @@ public class AppletScreenView extends JPanel implements ScreenView {
 
         } else {
 
+            pix = new int[width * height];
             pix_scaled = raster;
 
         }
@@ -199,6 +216,9 @@ public class AppletScreenView extends JPanel implements ScreenView {
         if (!skipFrame) {
 
 //            nes.getPpu().setRequestRenderAll(false);
+            if (pix_scaled != null && !useHWScaling(scaleMode) && scaleMode != SCALE_NONE) {
+                scale();
+            }
             paint(getGraphics());
 
         }
@@ -210,6 +230,32 @@ public class AppletScreenView extends JPanel implements ScreenView {
 
     }
 
+    private void scale() {
+
+        boolean[] changed = scanlineChanged;
+        if (changed == null || scaleAllRows) {
+            changed = new boolean[height];
+            java.util.Arrays.fill(changed, true);
+            scaleAllRows = false;
+        }
+
+        int factor = getScaleModeScale(scaleMode);
+        if (scaleMode == SCALE_SCANLINE) {
+            Scale.doScanlineScaling(pix, pix_scaled, changed);
+        } else if (scaleMode == SCALE_RASTER) {
+            Scale.doRasterScaling(pix, pix_scaled, changed);
+        } else if (scaleMode == SCALE_SCALE2X || scaleMode == SCALE_SCALE3X) {
+            Scale.scale(Scale.FILTER_SCALE_X, factor, pix, pix_scaled, changed);
+        } else if (scaleMode == SCALE_EDGE_BLEND2X || scaleMode == SCALE_EDGE_BLEND3X) {
+            Scale.scale(Scale.FILTER_EDGE_BLEND, factor, pix, pix_scaled, changed);
+        } else if (scaleMode == SCALE_XBR2X || scaleMode == SCALE_XBR3X) {
+            Scale.scale(Scale.FILTER_XBR, factor, pix, pix_scaled, changed);
+        } else {
+            Scale.doNormalScaling(pix, pix_scaled, changed);
+        }
+
+    }
+
     public Image getImage() {
         return img;
     }
@@ -291,11 +337,12 @@ public class AppletScreenView extends JPanel implements ScreenView {
 
         } else {
 
-            // 2X Software scaling.
+            // Software scaling.
             if (g != null && img != null) {
 
                 // Draw big BufferedImage directly:
-                g.drawImage(img, 0, 0, width * 2, height * 2, null);
+                int scale = getScaleModeScale(scaleMode);
+                g.drawImage(img, 0, 0, width * scale, height * scale, null);
 
             }
 
@@ -365,17 +412,42 @@ public class AppletScreenView extends JPanel implements ScreenView {
     }
 
     public int getScaleModeScale(int mode) {
+        return getScale(mode);
+    }
+
+    // Size of the displayed frame relative to 256x240 in a scale mode, -1 for no mode:
+    public static int getScale(int mode) {
         if (mode == -1) {
             return -1;
         } else if (mode == SCALE_NONE) {
             return 1;
-        } else if (mode == SCALE_HW3X) {
+        } else if (mode == SCALE_HW3X || mode == SCALE_SCALE3X || mode == SCALE_EDGE_BLEND3X || mode == SCALE_XBR3X) {
             return 3;
         } else {
             return 2;
         }
     }
 
+    // The scale mode of a filter name as given in the applet's "filter" parameter, -1 for none:
+    public static int getFilterScaleMode(String name) {
+        switch (name) {
+            case "scale2x":
+                return SCALE_SCALE2X;
+            case "scale3x":
+                return SCALE_SCALE3X;
+            case "edgeblend2x":
+                return SCALE_EDGE_BLEND2X;
+            case "edgeblend3x":
+                return SCALE_EDGE_BLEND3X;
+            case "xbr2x":
+                return SCALE_XBR2X;
+            case "xbr3x":
+                return SCALE_XBR3X;
+            default:
+                return -1;
+        }
+    }
+
     public void destroy() {
 
 //        nes = null;
@@ -25,6 +25,7 @@ public class Properties {
     private boolean sound;
     private boolean stereo;
     private boolean scanlines;
+    private String filter;
     private boolean fps;
     private boolean timeemulation;
     private boolean showsoundbuffer;
@@ -40,6 +41,7 @@ public class Properties {
         this.sound = true;
         this.stereo = true;
         this.scanlines = false;
+        this.filter = "";
         this.fps = false;
         this.timeemulation = true;
         this.showsoundbuffer = false;
@@ -108,6 +110,14 @@ public class Properties {
         this.scanlines = scanlines;
     }
 
+    public String getFilter() {
+        return filter;
+    }
+
+    public void setFilter(String filter) {
+        this.filter = filter;
+    }
+
     public boolean isFps() {
         return fps;
     }
@@ -0,0 +1,106 @@
+/*
+ *
+ *  * Copyright (C) 2025 Artur Skowroński
+ *  * This file is part of kNES, a fork of vNES (GPLv3) rewritten in Kotlin.
+ *  *
+ *  * vNES was originally developed by Brian F. R. (bfirsh) and released under the GPL-3.0 license.
+ *  * This project is a reimplementation and extension of that work.
+ *  *
+ *  * kNES is licensed under the GNU General Public License v3.0.
+ *  * See the LICENSE file for more details.
+ *
+ */
+
+package knes.benchmarks
+
+/**
+ * Minimal 6502 assembler used to build benchmark workloads.
+ *
+ * Instructions are emitted by opcode (see Opcodes.kt) so that workloads read like a hand-written
+ * listing. Labels can be referenced before they are defined; relative branches and absolute jumps
+ * are patched when the program is assembled.
+ */
+class Assembler(val origin: Int) {
+
+    private val code = ArrayList<Int>()
+    private val labels = HashMap<String, Int>()
+    private val fixups = ArrayList<Fixup>()
+
+    private class Fixup(val offset: Int, val label: String, val relative: Boolean)
+
+    val pc: Int
+        get() = origin + code.size
+
+    fun label(name: String): Assembler {
+        require(name !in labels) { "Duplicate label: $name" }
+        labels[name] = pc
+        return this
+    }
+
+    /** Implied or accumulator addressing. */
+    fun op(opcode: Int): Assembler {
+        code.add(opcode)
+        return this
+    }
+
+    /** Immediate, zero page, zero page indexed and indirect indexed addressing. */
+    fun op(opcode: Int, operand: Int): Assembler {
+        require(operand in 0..0xFF) { "Operand out of range: $operand" }
+        code.add(opcode)
+        code.add(operand)
+        return this
+    }
+
+    /** Absolute and absolute indexed addressing. */
+    fun abs(opcode: Int, address: Int): Assembler {
+        require(address in 0..0xFFFF) { "Address out of range: $address" }
+        code.add(opcode)
+        code.add(address and 0xFF)
+        code.add((address shr 8) and 0xFF)
+        return this
+    }
+
+    /** Relative branch to a label. */
+    fun branch(opcode: Int, label: String): Assembler {
+        code.add(opcode)
+        fixups.add(Fixup(code.size, label, true))
+        code.add(0)
+        return this
+    }
+
+    /** Absolute JMP/JSR to a label. */
+    fun jump(opcode: Int, label: String): Assembler {
+        code.add(opcode)
+        fixups.add(Fixup(code.size, label, false))
+        code.add(0)
+        code.add(0)
+        return this
+    }
+
+    /** Raw data bytes. */
+    fun data(vararg bytes: Int): Assembler {
+        for (b in bytes) {
+            code.add(b and 0xFF)
+        }
+        return this
+    }
+
+    fun assemble(): ByteArray {
+        val out = ByteArray(code.size)
+        for (i in code.indices) {
+            out[i] = code[i].toByte()
+        }
+        for (fixup in fixups) {
+            val target = labels[fixup.label] ?: throw IllegalStateException("Undefined label: ${fixup.label}")
+            if (fixup.relative) {
+                val offset = target - (origin + fixup.offset + 1)
+                require(offset in -128..127) { "Branch to ${fixup.label} out of range: $offset" }
+                out[fixup.offset] = offset.toByte()
+            } else {
+                out[fixup.offset] = target.toByte()
+                out[fixup.offset + 1] = (target shr 8).toByte()
+            }
+        }
+        return out
+    }
+}
@@ -0,0 +1,74 @@
+/*
+ *
+ *  * Copyright (C) 2025 Artur Skowroński
+ *  * This file is part of kNES, a fork of vNES (GPLv3) rewritten in Kotlin.
+ *  *
+ *  * vNES was originally developed by Brian F. R. (bfirsh) and released under the GPL-3.0 license.
+ *  * This project is a reimplementation and extension of that work.
+ *  *
+ *  * kNES is licensed under the GNU General Public License v3.0.
+ *  * See the LICENSE file for more details.
+ *
+ */
+
+
+package knes.benchmarks
+
+// 6502 opcodes used by the benchmark workloads, named MNEMONIC_MODE.
+
+const val ADC_IMM = 0x69
+const val ADC_ABY = 0x79
+const val AND_IMM = 0x29
+const val ASL_ACC = 0x0A
+const val BCC = 0x90
+const val BCS = 0xB0
+const val BEQ = 0xF0
+const val BIT_ABS = 0x2C
+const val BMI = 0x30
+const val BNE = 0xD0
+const val BPL = 0x10
+const val BVC = 0x50
+const val BVS = 0x70
+const val CLC = 0x18
+const val CLI = 0x58
+const val CMP_IMM = 0xC9
+const val CPX_IMM = 0xE0
+const val DEC_ZP = 0xC6
+const val DEX = 0xCA
+const val DEY = 0x88
+const val EOR_IMM = 0x49
+const val EOR_ZPX = 0x55
+const val INC_ZP = 0xE6
+const val INX = 0xE8
+const val INY = 0xC8
+const val JMP_ABS = 0x4C
+const val JSR = 0x20
+const val LDA_IMM = 0xA9
+const val LDA_ZP = 0xA5
+const val LDA_ABS = 0xAD
+const val LDA_ABX = 0xBD
+const val LDA_ABY = 0xB9
+const val LDA_IZY = 0xB1
+const val LDX_IMM = 0xA2
+const val LDY_IMM = 0xA0
+const val LSR_ACC = 0x4A
+const val NOP = 0xEA
+const val ORA_IMM = 0x09
+const val PHA = 0x48
+const val PHP = 0x08
+const val PLA = 0x68
+const val PLP = 0x28
+const val ROL_ACC = 0x2A
+const val ROR_ACC = 0x6A
+const val RTI = 0x40
+const val RTS = 0x60
+const val SBC_IMM = 0xE9
+const val SEC = 0x38
+const val SEI = 0x78
+const val STA_ZP = 0x85
+const val STA_ABS = 0x8D
+const val STA_ABX = 0x9D
+const val STX_ABS = 0x8E
+const val TAX = 0xAA
+const val TXA = 0x8A
+const val TXS = 0x9A
@@ -0,0 +1,79 @@
+/*
+ *
+ *  * Copyright (C) 2025 Artur Skowroński
+ *  * This file is part of kNES, a fork of vNES (GPLv3) rewritten in Kotlin.
+ *  *
+ *  * vNES was originally developed by Brian F. R. (bfirsh) and released under the GPL-3.0 license.
+ *  * This project is a reimplementation and extension of that work.
+ *  *
+ *  * kNES is licensed under the GNU General Public License v3.0.
+ *  * See the LICENSE file for more details.
+ *
+ */
+
+package knes.benchmarks.cpu
+
+import org.openjdk.jmh.annotations.AuxCounters
+import org.openjdk.jmh.annotations.Benchmark
+import org.openjdk.jmh.annotations.BenchmarkMode
+import org.openjdk.jmh.annotations.Fork
+import org.openjdk.jmh.annotations.Level
+import org.openjdk.jmh.annotations.Measurement
+import org.openjdk.jmh.annotations.Mode
+import org.openjdk.jmh.annotations.OutputTimeUnit
+import org.openjdk.jmh.annotations.Param
+import org.openjdk.jmh.annotations.Scope
+import org.openjdk.jmh.annotations.Setup
+import org.openjdk.jmh.annotations.State
+import org.openjdk.jmh.annotations.Warmup
+import java.util.concurrent.TimeUnit
+
+/**
+ * Interpreter throughput of [knes.emulator.cpu.CPU.emulate] over the [CpuWorkload] programs.
+ *
+ * Besides the per-run score, JMH reports two secondary counters. Both are in ops/us:
+ * - `instructions`: emulated instructions per microsecond, i.e. millions of instructions per second.
+ * - `cycles`: emulated CPU cycles per microsecond, i.e. emulated MHz. A real NTSC NES runs at 1.79 MHz.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+open class CpuBenchmark {
+
+    @Param
+    @JvmField
+    var workload: CpuWorkload = CpuWorkload.ALU
+
+    private lateinit var harness: CpuHarness
+
+    @Setup(Level.Trial)
+    fun setUp() {
+        harness = CpuHarness(workload.program().assemble())
+    }
+
+    @Benchmark
+    fun emulate(counters: Counters) {
+        harness.run()
+        counters.instructions += harness.instructions
+        counters.cycles += harness.cycles
+    }
+
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    open class Counters {
+        @JvmField
+        var instructions: Long = 0
+
+        @JvmField
+        var cycles: Long = 0
+
+        @Setup(Level.Iteration)
+        fun clear() {
+            instructions = 0
+            cycles = 0
+        }
+    }
+}
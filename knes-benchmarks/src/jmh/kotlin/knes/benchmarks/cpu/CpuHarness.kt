@@ -0,0 +1,93 @@
+/*
+ *
+ *  * Copyright (C) 2025 Artur Skowroński
+ *  * This file is part of kNES, a fork of vNES (GPLv3) rewritten in Kotlin.
+ *  *
+ *  * vNES was originally developed by Brian F. R. (bfirsh) and released under the GPL-3.0 license.
+ *  * This project is a reimplementation and extension of that work.
+ *  *
+ *  * kNES is licensed under the GNU General Public License v3.0.
+ *  * See the LICENSE file for more details.
+ *
+ */
+
+package knes.benchmarks.cpu
+
+import knes.emulator.Memory
+import knes.emulator.cpu.CPU
+import knes.emulator.memory.MemoryAccess
+import knes.emulator.papu.PAPUClockFrame
+import knes.emulator.ppu.PPUCycles
+import knes.emulator.utils.Globals
+
+/**
+ * A CPU wired to a flat 64K address space instead of a mapper, PPU and APU.
+ *
+ * The APU clock hook is called once per instruction with its cycle count, so the harness uses it
+ * to count executed instructions and emulated cycles. The PPU hook does nothing.
+ */
+class CpuHarness(program: ByteArray) : PAPUClockFrame, PPUCycles {
+
+    val memory = Memory(0x10000)
+    val cpu = CPU(this, this)
+
+    var instructions: Long = 0
+        private set
+    var cycles: Long = 0
+        private set
+
+    init {
+        memory.write(CpuWorkload.ORIGIN, program, program.size)
+        cpu.init(memory)
+        cpu.setMapper(FlatMemory(memory))
+    }
+
+    /**
+     * Runs the program from the start until its final RTS.
+     * Instruction and cycle counts are reset first.
+     */
+    fun run() {
+        instructions = 0
+        cycles = 0
+
+        // The CPU only calls the APU clock hook with sound enabled, and PAL emulation would add cycles:
+        Globals.enableSound = true
+        Globals.palEmulation = false
+
+        cpu.reset()
+
+        // Return address $FFFF on the stack ends emulate() at the last RTS:
+        memory.mem[0x01FF] = 0xFF.toByte()
+        memory.mem[0x01FE] = 0xFF.toByte()
+        cpu.REG_SP = 0x01FD
+
+        cpu.emulate()
+    }
+
+    override fun clockFrameCounter(cycleCount: Int) {
+        instructions++
+        cycles += cycleCount
+    }
+
+    override fun setCycles(cycles: Int) {
+    }
+
+    override fun emulateCycles() {
+    }
+
+    /**
+     * Plain RAM over the whole address space, with the NES 2K RAM mirroring below $2000 so that
+     * it agrees with the CPU's own fast path for that range.
+     */
+    private class FlatMemory(memory: Memory) : MemoryAccess {
+        private val mem = memory.mem
+
+        override fun load(address: Int): Short {
+            return (mem[if (address < 0x2000) address and 0x7FF else address].toInt() and 0xFF).toShort()
+        }
+
+        override fun write(address: Int, value: Short) {
+            mem[if (address < 0x2000) address and 0x7FF else address] = value.toByte()
+        }
+    }
+}
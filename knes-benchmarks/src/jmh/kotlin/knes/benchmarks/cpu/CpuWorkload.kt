@@ -0,0 +1,146 @@
+/*
+ *
+ *  * Copyright (C) 2025 Artur Skowroński
+ *  * This file is part of kNES, a fork of vNES (GPLv3) rewritten in Kotlin.
+ *  *
+ *  * vNES was originally developed by Brian F. R. (bfirsh) and released under the GPL-3.0 license.
+ *  * This project is a reimplementation and extension of that work.
+ *  *
+ *  * kNES is licensed under the GNU General Public License v3.0.
+ *  * See the LICENSE file for more details.
+ *
+ */
+
+package knes.benchmarks.cpu
+
+import knes.benchmarks.*
+
+/**
+ * Fixed 6502 programs used by [CpuBenchmark].
+ *
+ * Every workload is assembled at [ORIGIN], runs roughly 100k instructions and finishes with an
+ * RTS that pulls $FFFF from the stack, which makes [knes.emulator.cpu.CPU.emulate] return.
+ */
+enum class CpuWorkload {
+
+    /** Register-only arithmetic and logic: ADC, SBC, AND, ORA, EOR and the accumulator shifts. */
+    ALU {
+        override fun program(): Assembler = Assembler(ORIGIN)
+            .op(LDY_IMM, 32)
+            .label("outer")
+            .op(LDX_IMM, 0)
+            .label("loop")
+            .op(LDA_IMM, 0x35)
+            .op(CLC)
+            .op(ADC_IMM, 0x17)
+            .op(SEC)
+            .op(SBC_IMM, 0x03)
+            .op(AND_IMM, 0xF0)
+            .op(ORA_IMM, 0x0F)
+            .op(EOR_IMM, 0xAA)
+            .op(ASL_ACC)
+            .op(LSR_ACC)
+            .op(ROL_ACC)
+            .op(ROR_ACC)
+            .op(INX)
+            .branch(BNE, "loop")
+            .op(DEY)
+            .branch(BNE, "outer")
+            .op(RTS)
+    },
+
+    /** Absolute,X / absolute,Y / zero page,X and (indirect),Y loads and stores over RAM tables. */
+    INDEXED {
+        override fun program(): Assembler = Assembler(ORIGIN)
+            // ($10) points at $0500.
+            .op(LDA_IMM, 0x00)
+            .op(STA_ZP, 0x10)
+            .op(LDA_IMM, 0x05)
+            .op(STA_ZP, 0x11)
+            .op(LDA_IMM, 48)
+            .op(STA_ZP, 0x00)
+            .op(LDX_IMM, 0)
+            .op(LDY_IMM, 0)
+            .label("loop")
+            .abs(LDA_ABX, 0x0200)
+            .op(CLC)
+            .abs(ADC_ABY, 0x0300)
+            .abs(STA_ABX, 0x0400)
+            .op(LDA_IZY, 0x10)
+            .op(EOR_ZPX, 0x80)
+            .abs(STA_ABX, 0x0600)
+            .op(INX)
+            .op(INY)
+            .branch(BNE, "loop")
+            .op(DEC_ZP, 0x00)
+            .branch(BNE, "loop")
+            .op(RTS)
+    },
+
+    /** Subroutine calls plus register saves on the stack: JSR/RTS, PHA/PLA and PHP/PLP. */
+    STACK {
+        override fun program(): Assembler = Assembler(ORIGIN)
+            .op(LDY_IMM, 24)
+            .label("outer")
+            .op(LDX_IMM, 0)
+            .label("loop")
+            .jump(JSR, "sub")
+            .jump(JSR, "sub")
+            .op(DEX)
+            .branch(BNE, "loop")
+            .op(DEY)
+            .branch(BNE, "outer")
+            .op(RTS)
+            .label("sub")
+            .op(PHA)
+            .op(TXA)
+            .op(PHA)
+            .op(PHP)
+            .op(PLP)
+            .op(PLA)
+            .op(TAX)
+            .op(PLA)
+            .op(RTS)
+    },
+
+    /** Data-dependent control flow: taken and not-taken branches on every flag, plus JMP. */
+    BRANCH {
+        override fun program(): Assembler = Assembler(ORIGIN)
+            .op(LDY_IMM, 32)
+            .label("outer")
+            .op(LDX_IMM, 0)
+            .label("loop")
+            .op(TXA)
+            .op(AND_IMM, 0x03)
+            .branch(BEQ, "zero")
+            .op(CMP_IMM, 0x02)
+            .branch(BCC, "one")
+            .branch(BEQ, "two")
+            .branch(BMI, "next")
+            .op(INC_ZP, 0x01)
+            .jump(JMP_ABS, "next")
+            .label("zero")
+            .op(INC_ZP, 0x02)
+            .jump(JMP_ABS, "next")
+            .label("one")
+            .op(DEC_ZP, 0x03)
+            .branch(BPL, "next")
+            .branch(BMI, "next")
+            .label("two")
+            .op(LSR_ACC)
+            .branch(BCS, "next")
+            .branch(BVC, "next")
+            .label("next")
+            .op(INX)
+            .branch(BNE, "loop")
+            .op(DEY)
+            .branch(BNE, "outer")
+            .op(RTS)
+    };
+
+    abstract fun program(): Assembler
+
+    companion object {
+        const val ORIGIN = 0x8000
+    }
+}
@@ -0,0 +1,53 @@
+/*
+ *
+ *  * Copyright (C) 2025 Artur Skowroński
+ *  * This file is part of kNES, a fork of vNES (GPLv3) rewritten in Kotlin.
+ *  *
+ *  * vNES was originally developed by Brian F. R. (bfirsh) and released under the GPL-3.0 license.
+ *  * This project is a reimplementation and extension of that work.
+ *  *
+ *  * kNES is licensed under the GNU General Public License v3.0.
+ *  * See the LICENSE file for more details.
+ *
+ */
+
+package knes.benchmarks.ppu
+
+import org.openjdk.jmh.annotations.Benchmark
+import org.openjdk.jmh.annotations.BenchmarkMode
+import org.openjdk.jmh.annotations.Fork
+import org.openjdk.jmh.annotations.Level
+import org.openjdk.jmh.annotations.Measurement
+import org.openjdk.jmh.annotations.Mode
+import org.openjdk.jmh.annotations.OutputTimeUnit
+import org.openjdk.jmh.annotations.Scope
+import org.openjdk.jmh.annotations.Setup
+import org.openjdk.jmh.annotations.State
+import org.openjdk.jmh.annotations.Warmup
+import java.util.concurrent.TimeUnit
+
+/**
+ * Whole-frame throughput on the CHR RAM variant of the [FrameHarness] cartridge, which streams 512 bytes of tiles
+ * through $2007 every frame. Compared with [FrameBenchmark] it adds the cost of pattern writes and of redrawing the
+ * background cells whose tiles changed. The score is in emulated frames per second.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+open class ChrRamBenchmark {
+
+    private lateinit var harness: FrameHarness
+
+    @Setup(Level.Trial)
+    fun setUp() {
+        harness = FrameHarness(chrRam = true)
+    }
+
+    @Benchmark
+    fun runFrame(): Long {
+        return harness.runFrame()
+    }
+}
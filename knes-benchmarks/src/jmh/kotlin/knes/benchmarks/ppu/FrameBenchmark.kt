@@ -0,0 +1,79 @@
+/*
+ *
+ *  * Copyright (C) 2025 Artur Skowroński
+ *  * This file is part of kNES, a fork of vNES (GPLv3) rewritten in Kotlin.
+ *  *
+ *  * vNES was originally developed by Brian F. R. (bfirsh) and released under the GPL-3.0 license.
+ *  * This project is a reimplementation and extension of that work.
+ *  *
+ *  * kNES is licensed under the GNU General Public License v3.0.
+ *  * See the LICENSE file for more details.
+ *
+ */
+
+package knes.benchmarks.ppu
+
+import knes.emulator.utils.Globals
+import org.openjdk.jmh.annotations.Benchmark
+import org.openjdk.jmh.annotations.BenchmarkMode
+import org.openjdk.jmh.annotations.Fork
+import org.openjdk.jmh.annotations.Level
+import org.openjdk.jmh.annotations.Measurement
+import org.openjdk.jmh.annotations.Mode
+import org.openjdk.jmh.annotations.OutputTimeUnit
+import org.openjdk.jmh.annotations.Param
+import org.openjdk.jmh.annotations.Scope
+import org.openjdk.jmh.annotations.Setup
+import org.openjdk.jmh.annotations.State
+import org.openjdk.jmh.annotations.TearDown
+import org.openjdk.jmh.annotations.Warmup
+import java.util.concurrent.TimeUnit
+
+/**
+ * Whole-frame throughput of the emulator, CPU, PPU rendering and mapper together, on the
+ * [FrameHarness] cartridge. The score is in emulated frames per second; a real NTSC NES shows 60.
+ *
+ * With `indexedColor` the PPU writes palette indices instead of RGB values, as the desktop UIs request.
+ * With `frameSkip` -1 nothing is drawn, which leaves the cost of emulation alone, see [knes.emulator.ppu.PPU.frameSkip].
+ * With `deferredRendering` frames are drawn on a worker thread while the next one is emulated, so the score is that of
+ * the slower of the two, see [Globals.enableDeferredRendering].
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+open class FrameBenchmark {
+
+    @Param("false", "true")
+    @JvmField
+    var indexedColor: Boolean = false
+
+    @Param("0", "-1")
+    @JvmField
+    var frameSkip: Int = 0
+
+    @Param("false", "true")
+    @JvmField
+    var deferredRendering: Boolean = false
+
+    private lateinit var harness: FrameHarness
+
+    @Setup(Level.Trial)
+    fun setUp() {
+        Globals.enableDeferredRendering = deferredRendering
+        harness = FrameHarness(indexedColor)
+        harness.nes.frameSkip = frameSkip
+    }
+
+    @TearDown(Level.Trial)
+    fun tearDown() {
+        Globals.enableDeferredRendering = false
+    }
+
+    @Benchmark
+    fun runFrame(): Long {
+        return harness.runFrame()
+    }
+}
@@ -0,0 +1,257 @@
+/*
+ *
+ *  * Copyright (C) 2025 Artur Skowroński
+ *  * This file is part of kNES, a fork of vNES (GPLv3) rewritten in Kotlin.
+ *  *
+ *  * vNES was originally developed by Brian F. R. (bfirsh) and released under the GPL-3.0 license.
+ *  * This project is a reimplementation and extension of that work.
+ *  *
+ *  * kNES is licensed under the GNU General Public License v3.0.
+ *  * See the LICENSE file for more details.
+ *
+ */
+
+package knes.benchmarks.ppu
+
+import knes.benchmarks.*
+import knes.emulator.NES
+import knes.emulator.input.InputHandler
+import knes.emulator.ui.GUIAdapter
+import knes.emulator.ui.ScreenView
+import knes.emulator.utils.Globals
+import java.io.File
+
+/**
+ * A complete NES running a synthetic cartridge, with the screen and input replaced by stubs so that
+ * whole frames can be emulated without a UI.
+ *
+ * The cartridge (NROM, 16K PRG + 8K CHR) fills the palette and the first nametable, then enables
+ * 8x8 sprites and the background. Its NMI handler scrolls the background by one pixel per frame,
+ * moves sprite 0 and copies all 64 sprites to OAM with DMA, while the main loop just counts.
+ *
+ * With [chrRam] the cartridge has CHR RAM instead of CHR ROM, and the NMI handler first blanks the screen and
+ * streams 512 bytes of tile data through $2007, so the whole background pattern table is rewritten every 8 frames.
+ *
+ * @param indexedColor Whether the screen takes palette indices instead of RGB, see [ScreenView.indexedColor]
+ * @param chrRam Whether the cartridge uploads its tiles to CHR RAM every frame
+ */
+class FrameHarness(indexedColor: Boolean = false, chrRam: Boolean = false) {
+
+    private val screen = HeadlessScreen(indexedColor)
+
+    val nes = NES(GUIAdapter(NoInput, screen))
+
+    init {
+        Globals.enableSound = false
+        nes.enableSound(false)
+
+        val file = File.createTempFile("knes-frame", ".nes")
+        try {
+            file.writeBytes(buildRom(chrRam))
+            check(nes.loadRom(file.path)) { "Benchmark ROM rejected" }
+        } finally {
+            file.delete()
+        }
+
+        // Start from cleared RAM rather than the random power-on contents:
+        for (i in 0 until 0x800) {
+            nes.cpuMemory.mem[i] = 0
+        }
+    }
+
+    /**
+     * Runs one frame and returns the number of CPU cycles emulated.
+     */
+    fun runFrame(): Long = nes.runFrame()
+
+    /**
+     * Runs one frame and returns a copy of the picture, which the PPU's buffer no longer holds once the next frame
+     * has started.
+     */
+    fun captureFrame(): IntArray {
+        screen.captured = null
+        screen.capture = true
+        try {
+            runFrame()
+        } finally {
+            screen.capture = false
+        }
+        return checkNotNull(screen.captured) { "No frame drawn" }
+    }
+
+    private class HeadlessScreen(private val indexedColor: Boolean) : ScreenView {
+        private val buffer = IntArray(256 * 240)
+        var capture = false
+        var captured: IntArray? = null
+
+        override fun init() {
+        }
+
+        override fun getBuffer(): IntArray = buffer
+
+        override fun indexedColor(): Boolean = indexedColor
+
+        override fun getBufferWidth(): Int = 256
+
+        override fun getBufferHeight(): Int = 240
+
+        override fun imageReady(skipFrame: Boolean) {
+            if (capture && !skipFrame) {
+                captured = buffer.copyOf()
+            }
+        }
+
+        override fun scalingEnabled(): Boolean = false
+
+        override fun useHWScaling(): Boolean = false
+
+        override fun getScaleMode(): Int = 0
+
+        override fun setScaleMode(newMode: Int) {
+        }
+
+        override fun getScaleModeScale(mode: Int): Int = 1
+
+        override fun setFPSEnabled(enabled: Boolean) {
+        }
+
+        override fun setBgColor(color: Int) {
+        }
+
+        override fun destroy() {
+        }
+    }
+
+    private object NoInput : InputHandler {
+        override fun getKeyState(padKey: Int): Short = 0x40
+
+        override fun mapKey(padKey: Int, deviceKey: Int) {
+        }
+
+        override fun reset() {
+        }
+
+        override fun update() {
+        }
+
+        override fun destroy() {
+        }
+    }
+
+    companion object {
+        private const val PRG_ORIGIN = 0xC000
+
+        /**
+         * Builds the iNES image of the benchmark cartridge, see [FrameHarness] for [chrRam].
+         */
+        fun buildRom(chrRam: Boolean = false): ByteArray {
+            val asm = Assembler(PRG_ORIGIN)
+                .op(SEI)
+                .op(LDX_IMM, 0xFF)
+                .op(TXS)
+                // Palette: $3F00-$3F1F = 0..31
+                .op(LDA_IMM, 0x3F)
+                .abs(STA_ABS, 0x2006)
+                .op(LDA_IMM, 0x00)
+                .abs(STA_ABS, 0x2006)
+                .op(LDX_IMM, 0)
+                .label("palette")
+                .op(TXA)
+                .abs(STA_ABS, 0x2007)
+                .op(INX)
+                .op(CPX_IMM, 32)
+                .branch(BNE, "palette")
+                // Nametable 0 and its attributes: $2000-$23FF = 0..255 repeated
+                .op(LDA_IMM, 0x20)
+                .abs(STA_ABS, 0x2006)
+                .op(LDA_IMM, 0x00)
+                .abs(STA_ABS, 0x2006)
+                .op(LDY_IMM, 4)
+                .label("page")
+                .op(LDX_IMM, 0)
+                .label("tile")
+                .op(TXA)
+                .abs(STA_ABS, 0x2007)
+                .op(INX)
+                .branch(BNE, "tile")
+                .op(DEY)
+                .branch(BNE, "page")
+                // Sprite page at $0200, spread over the screen:
+                .op(LDX_IMM, 0)
+                .label("sprites")
+                .op(TXA)
+                .abs(STA_ABX, 0x0200)
+                .op(INX)
+                .branch(BNE, "sprites")
+                // NMI on, sprites and background on including the left column:
+                .op(LDA_IMM, 0x80)
+                .abs(STA_ABS, 0x2000)
+                .op(LDA_IMM, 0x1E)
+                .abs(STA_ABS, 0x2001)
+                .op(CLI)
+                .label("main")
+                .op(INC_ZP, 0x00)
+                .jump(JMP_ABS, "main")
+
+            val nmi = asm.pc
+            if (chrRam) {
+                // Rendering off, then 512 bytes of code as tiles to $0000 + (frame % 8) * $200:
+                asm.op(LDA_IMM, 0x00)
+                    .abs(STA_ABS, 0x2001)
+                    .op(LDA_ZP, 0x01)
+                    .op(AND_IMM, 0x07)
+                    .op(ASL_ACC)
+                    .abs(STA_ABS, 0x2006)
+                    .op(LDA_IMM, 0x00)
+                    .abs(STA_ABS, 0x2006)
+                    .op(LDX_IMM, 0)
+                    .label("chr0")
+                    .abs(LDA_ABX, PRG_ORIGIN)
+                    .abs(STA_ABS, 0x2007)
+                    .op(INX)
+                    .branch(BNE, "chr0")
+                    .label("chr1")
+                    .abs(LDA_ABX, PRG_ORIGIN + 0x100)
+                    .abs(STA_ABS, 0x2007)
+                    .op(INX)
+                    .branch(BNE, "chr1")
+                    // The $2006 writes changed the nametable, restore it before rendering is back on:
+                    .op(LDA_IMM, 0x80)
+                    .abs(STA_ABS, 0x2000)
+                    .op(LDA_IMM, 0x1E)
+                    .abs(STA_ABS, 0x2001)
+            }
+            asm.op(INC_ZP, 0x01)
+                .op(LDA_ZP, 0x01)
+                .abs(STA_ABS, 0x2005)
+                .abs(STA_ABS, 0x2005)
+                .abs(STA_ABS, 0x0203)
+                .op(LDA_IMM, 0x02)
+                .abs(STA_ABS, 0x4014)
+                .op(RTI)
+
+            val prg = ByteArray(0x4000)
+            val code = asm.assemble()
+            System.arraycopy(code, 0, prg, 0, code.size)
+            setVector(prg, 0xFFFA, nmi)
+            setVector(prg, 0xFFFC, PRG_ORIGIN)
+            setVector(prg, 0xFFFE, PRG_ORIGIN)
+
+            if (chrRam) {
+                val header = byteArrayOf(0x4E, 0x45, 0x53, 0x1A, 1, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0)
+                return header + prg
+            }
+
+            // Pattern tables with a mix of opaque and transparent pixels:
+            val chr = ByteArray(0x2000) { (it * 37 + (it shr 4)).toByte() }
+
+            val header = byteArrayOf(0x4E, 0x45, 0x53, 0x1A, 1, 1, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0)
+            return header + prg + chr
+        }
+
+        private fun setVector(prg: ByteArray, address: Int, target: Int) {
+            prg[address - PRG_ORIGIN] = target.toByte()
+            prg[address - PRG_ORIGIN + 1] = (target shr 8).toByte()
+        }
+    }
+}
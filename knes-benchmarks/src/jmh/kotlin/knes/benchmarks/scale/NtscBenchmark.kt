@@ -0,0 +1,73 @@
+/*
+ *
+ *  * Copyright (C) 2025 Artur Skowroński
+ *  * This file is part of kNES, a fork of vNES (GPLv3) rewritten in Kotlin.
+ *  *
+ *  * vNES was originally developed by Brian F. R. (bfirsh) and released under the GPL-3.0 license.
+ *  * This project is a reimplementation and extension of that work.
+ *  *
+ *  * kNES is licensed under the GNU General Public License v3.0.
+ *  * See the LICENSE file for more details.
+ *
+ */
+
+package knes.benchmarks.scale
+
+import knes.benchmarks.ppu.FrameHarness
+import knes.emulator.Scale
+import knes.emulator.utils.Globals
+import org.openjdk.jmh.annotations.Benchmark
+import org.openjdk.jmh.annotations.BenchmarkMode
+import org.openjdk.jmh.annotations.Fork
+import org.openjdk.jmh.annotations.Level
+import org.openjdk.jmh.annotations.Measurement
+import org.openjdk.jmh.annotations.Mode
+import org.openjdk.jmh.annotations.OutputTimeUnit
+import org.openjdk.jmh.annotations.Param
+import org.openjdk.jmh.annotations.Scope
+import org.openjdk.jmh.annotations.Setup
+import org.openjdk.jmh.annotations.State
+import org.openjdk.jmh.annotations.TearDown
+import org.openjdk.jmh.annotations.Warmup
+import java.util.concurrent.TimeUnit
+
+/**
+ * Throughput of [Scale.ntsc] on an indexed color frame of the [FrameHarness] cartridge with every row changed, in
+ * filtered frames per second. Without `parallel` it runs on one core, which has to keep up with 60 frames per second.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+open class NtscBenchmark {
+
+    @Param("false", "true")
+    @JvmField
+    var parallel: Boolean = false
+
+    private lateinit var frame: IntArray
+    private val filtered = IntArray(Scale.NTSC_WIDTH * Scale.NTSC_HEIGHT)
+    private val changed = BooleanArray(240) { true }
+
+    @Setup(Level.Trial)
+    fun setUp() {
+        Globals.enableParallelScaling = parallel
+
+        val harness = FrameHarness(indexedColor = true)
+        repeat(10) { harness.runFrame() }
+        frame = harness.captureFrame()
+    }
+
+    @TearDown(Level.Trial)
+    fun tearDown() {
+        Globals.enableParallelScaling = true
+    }
+
+    @Benchmark
+    fun ntsc(): IntArray {
+        Scale.ntsc(frame, filtered, changed)
+        return filtered
+    }
+}
@@ -0,0 +1,95 @@
+/*
+ *
+ *  * Copyright (C) 2025 Artur Skowroński
+ *  * This file is part of kNES, a fork of vNES (GPLv3) rewritten in Kotlin.
+ *  *
+ *  * vNES was originally developed by Brian F. R. (bfirsh) and released under the GPL-3.0 license.
+ *  * This project is a reimplementation and extension of that work.
+ *  *
+ *  * kNES is licensed under the GNU General Public License v3.0.
+ *  * See the LICENSE file for more details.
+ *
+ */
+
+package knes.benchmarks.scale
+
+import knes.benchmarks.ppu.FrameHarness
+import knes.emulator.Scale
+import knes.emulator.utils.Globals
+import knes.emulator.utils.PaletteTable
+import org.openjdk.jmh.annotations.Benchmark
+import org.openjdk.jmh.annotations.BenchmarkMode
+import org.openjdk.jmh.annotations.Fork
+import org.openjdk.jmh.annotations.Level
+import org.openjdk.jmh.annotations.Measurement
+import org.openjdk.jmh.annotations.Mode
+import org.openjdk.jmh.annotations.OutputTimeUnit
+import org.openjdk.jmh.annotations.Param
+import org.openjdk.jmh.annotations.Scope
+import org.openjdk.jmh.annotations.Setup
+import org.openjdk.jmh.annotations.State
+import org.openjdk.jmh.annotations.TearDown
+import org.openjdk.jmh.annotations.Warmup
+import java.util.concurrent.TimeUnit
+
+/**
+ * Throughput of [Scale] on a frame of the [FrameHarness] cartridge with every row changed, i.e. the most it costs
+ * per frame. The score is in scaled frames per second.
+ *
+ * `filter` is one of the Scale.FILTER_ constants, 3 to 5 being the pixel art filters, and `factor` the output size,
+ * 2 for 512x480 and 3 for 768x720. With `indexed` the frame holds palette indices, which are looked up in
+ * [PaletteTable.indexedTable]. With `parallel` the rows are scaled in bands on the common ForkJoin pool, see
+ * [Globals.enableParallelScaling].
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+open class ScaleBenchmark {
+
+    @Param("0", "1", "2", "3", "4", "5")
+    @JvmField
+    var filter: Int = 0
+
+    @Param("2", "3")
+    @JvmField
+    var factor: Int = 2
+
+    @Param("false", "true")
+    @JvmField
+    var indexed: Boolean = false
+
+    @Param("false", "true")
+    @JvmField
+    var parallel: Boolean = false
+
+    private lateinit var frame: IntArray
+    private var palette: IntArray? = null
+    private lateinit var scaled: IntArray
+    private val changed = BooleanArray(240) { true }
+
+    @Setup(Level.Trial)
+    fun setUp() {
+        Globals.enableParallelScaling = parallel
+        Scale.setFilterParams(2, 2)
+
+        val harness = FrameHarness(indexed)
+        repeat(10) { harness.runFrame() }
+        frame = harness.captureFrame()
+        palette = if (indexed) PaletteTable.indexedTable else null
+        scaled = IntArray(frame.size * factor * factor)
+    }
+
+    @TearDown(Level.Trial)
+    fun tearDown() {
+        Globals.enableParallelScaling = true
+    }
+
+    @Benchmark
+    fun scale(): IntArray {
+        Scale.scale(filter, factor, frame, scaled, changed, palette)
+        return scaled
+    }
+}
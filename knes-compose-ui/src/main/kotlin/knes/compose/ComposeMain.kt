@@ -59,6 +59,7 @@ import kotlinx.coroutines.delay
 import knes.emulator.NES
 import java.awt.event.KeyEvent
 import javax.swing.JFileChooser
+import javax.swing.SwingUtilities
 import javax.swing.filechooser.FileNameExtensionFilter
 
 
@@ -79,9 +80,14 @@ fun NESScreenRenderer(screenView: ComposeScreenView) {
     val scaledHeight = 480 * baseScale
 
     DisposableEffect(Unit) {
+        // Called on the emulation thread, the bitmap is made on the UI thread:
         screenView.onFrameReady = {
-            currentBitmap = screenView.getFrameBitmap()
-            frameCount++
+            SwingUtilities.invokeLater {
+                if (screenView.hasNewFrame()) {
+                    currentBitmap = screenView.getFrameBitmap()
+                    frameCount++
+                }
+            }
         }
 
         onDispose {
@@ -108,6 +114,7 @@ fun NESScreenRenderer(screenView: ComposeScreenView) {
 fun main() = application {
     val windowState = rememberWindowState(width = 800.dp, height = 700.dp)
     var isEmulatorRunning by remember { mutableStateOf(false) }
+    var scaleMode by remember { mutableStateOf(0) }
 
     val uiFactory = remember { ComposeUIFactory() }
     val screenView = remember { uiFactory.createScreenView(2) as ComposeScreenView }
@@ -254,6 +261,18 @@ fun main() = application {
                         ) {
                             Text("Load ROM")
                         }
+
+                        // Filter button, selects the next filter
+                        Button(
+                            onClick = {
+                                val modes = ComposeScreenView.FILTER_MODES.keys.toList()
+                                scaleMode = modes[(modes.indexOf(scaleMode) + 1) % modes.size]
+                                screenView.setScaleMode(scaleMode)
+                                focusRequester.requestFocus()
+                            }
+                        ) {
+                            Text("Filter: ${ComposeScreenView.FILTER_MODES[scaleMode]}")
+                        }
                     }
                     Row(
                         modifier = Modifier.fillMaxWidth().padding(top = 16.dp),
@@ -34,9 +34,12 @@ import androidx.compose.ui.graphics.ImageBitmap
 import androidx.compose.ui.graphics.toComposeImageBitmap
 import knes.compose.utils.ScreenLogger
 import knes.emulator.NES
+import knes.emulator.Scale
+import knes.emulator.ui.FrameExchange
 import knes.emulator.ui.ScreenView
 import knes.emulator.utils.Globals
 import knes.emulator.utils.HiResTimer
+import knes.emulator.utils.PaletteTable
 import java.awt.image.BufferedImage
 
 /**
@@ -48,7 +51,8 @@ class ComposeScreenView(private var scale: Int) : ScreenView {
     private val width = 256
     private val height = 240
 
-    private var buffer: IntArray = IntArray(width * height)
+    // Frames from the emulation thread, black palette entry until the first one:
+    private val frames = FrameExchange(width * height, 0x0F)
     private var scaleMode = 0
     private var showFPS = false
     private var bgColor = 0xFF333333.toInt()
@@ -64,24 +68,47 @@ class ComposeScreenView(private var scale: Int) : ScreenView {
     // NES instance
     private var nes: NES? = null
 
+    // Displayed color of every indexed pixel value, and the palette it was made from:
+    private val colorTable = IntArray(512)
+    private var colorSource: IntArray? = null
+
+    // Output of SCALE_NTSC. Frames come without a record of changed rows, so the filters redraw every row:
+    private val ntscPixels = IntArray(Scale.NTSC_WIDTH * Scale.NTSC_HEIGHT)
+    private val allRows = BooleanArray(height) { true }
+
     // Callback for when a new frame is ready
     var onFrameReady: (() -> Unit)? = null
 
     init {
-        buffer.fill(bgColor)
         t1 = timer.currentMicros()
     }
 
+    /**
+     * Whether a frame was completed since the last [getFrameBitmap].
+     */
+    fun hasNewFrame(): Boolean {
+        return frames.hasNewFrame()
+    }
+
     fun getFrameBitmap(): ImageBitmap {
-        val imageData = IntArray(buffer.size)
+        val frame = frames.acquireLatest()
 
         frameCounter++
 
-        for (i in buffer.indices) {
-            // Use the conversion method from ScreenLogger
-            // Make sure alpha channel is explicitly set to fully opaque
-            val color = ScreenLogger.convertColorToHSB(buffer[i])
-            imageData[i] = color or 0xFF000000.toInt()
+        val mode = scaleMode
+        if (mode == SCALE_NTSC) {
+            return getNtscBitmap(frame)
+        }
+        val filter = pixelArtFilter(mode)
+        if (filter >= 0) {
+            return getFilteredBitmap(frame, filter, getScaleModeScale(mode))
+        }
+
+        val imageData = IntArray(frame.size)
+
+        val colors = getColorTable()
+        for (i in frame.indices) {
+            imageData[i] = colors[frame[i]]
         }
 
 //        // Log some color information for debugging
@@ -104,6 +131,42 @@ class ComposeScreenView(private var scale: Int) : ScreenView {
         return newImage.toComposeImageBitmap()
     }
 
+    /**
+     * Draws a frame of palette indices as an NTSC TV shows it, see [Scale.ntsc]. The filter's colors have the
+     * channel order of the palette, like the colors of [getColorTable].
+     */
+    private fun getNtscBitmap(frame: IntArray): ImageBitmap {
+        Scale.ntsc(frame, ntscPixels, allRows)
+        val imageData = IntArray(ntscPixels.size)
+        for (i in imageData.indices) {
+            imageData[i] = ntscPixels[i] or 0xFF000000.toInt()
+        }
+
+        val newImage = BufferedImage(Scale.NTSC_WIDTH, Scale.NTSC_HEIGHT, BufferedImage.TYPE_INT_ARGB).apply {
+            setRGB(0, 0, Scale.NTSC_WIDTH, Scale.NTSC_HEIGHT, imageData, 0, Scale.NTSC_WIDTH)
+        }
+        return newImage.toComposeImageBitmap()
+    }
+
+    /**
+     * Scales a frame of palette indices with one of the pixel art filters, see [Scale.scale]. The colors are the
+     * palette's, like those of [getNtscBitmap].
+     */
+    private fun getFilteredBitmap(frame: IntArray, filter: Int, factor: Int): ImageBitmap {
+        val scaledWidth = width * factor
+        val scaledHeight = height * factor
+        val imageData = IntArray(scaledWidth * scaledHeight)
+        Scale.scale(filter, factor, frame, imageData, allRows, PaletteTable.indexedTable)
+        for (i in imageData.indices) {
+            imageData[i] = imageData[i] or 0xFF000000.toInt()
+        }
+
+        val newImage = BufferedImage(scaledWidth, scaledHeight, BufferedImage.TYPE_INT_ARGB).apply {
+            setRGB(0, 0, scaledWidth, scaledHeight, imageData, 0, scaledWidth)
+        }
+        return newImage.toComposeImageBitmap()
+    }
+
     /**
      * Creates a safe copy of the frame bitmap for preview purposes.
      * This method creates a smaller, simplified version of the bitmap
@@ -118,6 +181,8 @@ class ComposeScreenView(private var scale: Int) : ScreenView {
         val imageData = IntArray(previewWidth * previewHeight)
 
         // Sample the buffer to create a smaller image
+        val frame = frames.acquireLatest()
+        val colors = getColorTable()
         for (y in 0 until previewHeight) {
             for (x in 0 until previewWidth) {
                 // Sample from the original buffer (take every other pixel)
@@ -125,9 +190,7 @@ class ComposeScreenView(private var scale: Int) : ScreenView {
                 val srcY = y * 2
                 val srcIndex = srcY * width + srcX
 
-                // Ensure the alpha channel is set
-                val color = ScreenLogger.convertColorToHSB(buffer[srcIndex])
-                imageData[y * previewWidth + x] = color or 0xFF000000.toInt()
+                imageData[y * previewWidth + x] = colors[frame[srcIndex]]
             }
         }
 
@@ -139,16 +202,52 @@ class ComposeScreenView(private var scale: Int) : ScreenView {
         return previewImage.toComposeImageBitmap()
     }
 
+    /**
+     * Returns the displayed color of every indexed pixel value, rebuilding the table when the palette changes.
+     *
+     * @return Table of opaque ARGB colors
+     */
+    private fun getColorTable(): IntArray {
+        val palette = PaletteTable.indexedTable
+        if (palette !== colorSource) {
+            for (i in palette.indices) {
+                // Use the conversion method from ScreenLogger
+                // Make sure alpha channel is explicitly set to fully opaque
+                colorTable[i] = ScreenLogger.convertColorToHSB(palette[i]) or 0xFF000000.toInt()
+            }
+            colorSource = palette
+        }
+        return colorTable
+    }
+
     override fun init() {
     }
 
     /**
      * Gets the buffer of pixel data for the screen.
      * 
-     * @return Array of pixel data in RGB format
+     * @return Array of pixel data as palette indices, see [ScreenView.indexedColor]
      */
     override fun getBuffer(): IntArray {
-        return buffer
+        return frames.getBackBuffer()
+    }
+
+    /**
+     * Completed frames are turned into bitmaps on the UI thread, from [getFrameBitmap].
+     *
+     * @return The frame exchange
+     */
+    override fun getFrameExchange(): FrameExchange {
+        return frames
+    }
+
+    /**
+     * The PPU writes palette indices, which are converted to colors when a frame is drawn.
+     *
+     * @return true
+     */
+    override fun indexedColor(): Boolean {
+        return true
     }
 
     /**
@@ -209,9 +308,6 @@ class ComposeScreenView(private var scale: Int) : ScreenView {
         t1 = timer.currentMicros()
 
         if (!skipFrame) {
-            // Mark the image as needing an update
-            getFrameBitmap()
-
             // Notify that a new frame is ready
             onFrameReady?.invoke()
         }
@@ -262,7 +358,8 @@ class ComposeScreenView(private var scale: Int) : ScreenView {
     override fun getScaleModeScale(mode: Int): Int {
         return when (mode) {
             0 -> 1
-            1, 2 -> 2
+            1, 2, SCALE_NTSC, SCALE_SCALE2X, SCALE_EDGE_BLEND2X, SCALE_XBR2X -> 2
+            SCALE_SCALE3X, SCALE_EDGE_BLEND3X, SCALE_XBR3X -> 3
             else -> 1
         }
     }
@@ -316,7 +413,43 @@ class ComposeScreenView(private var scale: Int) : ScreenView {
      * Clean up resources used by this screen view.
      */
     override fun destroy() {
-        buffer = IntArray(0)
         nes = null
     }
+
+    companion object {
+        // Scale mode that draws frames through the NTSC filter, at twice the frame's height (see Scale.ntsc):
+        const val SCALE_NTSC = 3
+
+        // Scale modes that draw frames through the pixel art filters of knes.emulator.Scale:
+        const val SCALE_SCALE2X = 4
+        const val SCALE_SCALE3X = 5
+        const val SCALE_EDGE_BLEND2X = 6
+        const val SCALE_EDGE_BLEND3X = 7
+        const val SCALE_XBR2X = 8
+        const val SCALE_XBR3X = 9
+
+        // The modes offered for selection, by name:
+        val FILTER_MODES = linkedMapOf(
+            0 to "None",
+            SCALE_NTSC to "NTSC",
+            SCALE_SCALE2X to "Scale2x",
+            SCALE_SCALE3X to "Scale3x",
+            SCALE_EDGE_BLEND2X to "Edge blend 2x",
+            SCALE_EDGE_BLEND3X to "Edge blend 3x",
+            SCALE_XBR2X to "xBR 2x",
+            SCALE_XBR3X to "xBR 3x"
+        )
+
+        /**
+         * Returns the Scale.FILTER_ constant a scale mode draws with, or -1 for modes without a pixel art filter.
+         */
+        fun pixelArtFilter(mode: Int): Int {
+            return when (mode) {
+                SCALE_SCALE2X, SCALE_SCALE3X -> Scale.FILTER_SCALE_X
+                SCALE_EDGE_BLEND2X, SCALE_EDGE_BLEND3X -> Scale.FILTER_EDGE_BLEND
+                SCALE_XBR2X, SCALE_XBR3X -> Scale.FILTER_XBR
+                else -> -1
+            }
+        }
+    }
 }
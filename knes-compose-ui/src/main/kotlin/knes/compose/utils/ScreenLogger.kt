@@ -71,12 +71,30 @@ object ScreenLogger {
     fun to5Colors(buffer: IntArray, width: Int, height: Int) {
         // Get the top 5 colors sorted by color value
         // Log the aggregated count of pixels in particular colors
-        val colorCounts = mutableMapOf<Int, Int>()
+        // The 5 lowest colors are kept sorted in place, instead of counting every color in a map:
+        val colors = IntArray(5)
+        val counts = IntArray(5)
+        var found = 0
         for (pixel in buffer) {
-            colorCounts[pixel] = (colorCounts[pixel] ?: 0) + 1
+            var k = 0
+            while (k < found && colors[k] < pixel) {
+                k++
+            }
+            if (k < found && colors[k] == pixel) {
+                counts[k]++
+            } else if (k < 5) {
+                // A lower color, the highest one drops out for good:
+                for (m in minOf(found, 4) downTo k + 1) {
+                    colors[m] = colors[m - 1]
+                    counts[m] = counts[m - 1]
+                }
+                colors[k] = pixel
+                counts[k] = 1
+                if (found < 5) found++
+            }
         }
 
-        val topColors = colorCounts.entries.sortedBy { it.key }.take(5)
+        val topColors = (0 until found).map { java.util.AbstractMap.SimpleEntry(colors[it], counts[it]) }
 
         // Check if the top 5 colors have changed and log them if they have
         val topColorsChanged = logColorChanges(topColors, previousTopColors)
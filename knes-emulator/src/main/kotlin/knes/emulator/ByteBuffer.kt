@@ -104,7 +104,7 @@ class ByteBuffer {
     }
 
     private var byteOrder = BO_BIG_ENDIAN
-    private var buf: ShortArray
+    private var buf: ByteArray
     private var size: Int
     private var curPos: Int = 0
     private var hasBeenErrors: Boolean = false
@@ -116,22 +116,19 @@ class ByteBuffer {
         if (adjustedSize < 1) {
             adjustedSize = 1
         }
-        buf = ShortArray(adjustedSize)
+        buf = ByteArray(adjustedSize)
         this.size = adjustedSize
         this.byteOrder = byteOrdering
     }
 
     constructor(content: ByteArray, byteOrdering: Int) {
         try {
-            buf = ShortArray(content.size)
-            for (i in content.indices) {
-                buf[i] = (content[i].toInt() and 255).toShort()
-            }
+            buf = content.copyOf()
             size = content.size
             this.byteOrder = byteOrdering
         } catch (e: Exception) {
             // Initialize with defaults in case of exception
-            buf = ShortArray(1)
+            buf = ByteArray(1)
             size = 1
             //System.out.println("ByteBuffer: Couldn't create buffer from empty array.");
         }
@@ -154,11 +151,7 @@ class ByteBuffer {
     }
 
     fun getBytes(): ByteArray {
-        val ret = ByteArray(buf.size)
-        for (i in buf.indices) {
-            ret[i] = buf[i].toByte()
-        }
-        return ret
+        return buf.copyOf()
     }
 
     fun getSize(): Int {
@@ -187,14 +180,14 @@ class ByteBuffer {
 
     fun fill(value: Byte) {
         for (i in 0 until size) {
-            buf[i] = value.toShort()
+            buf[i] = value
         }
     }
 
     fun fillRange(start: Int, length: Int, value: Byte): Boolean {
         if (inRange(start, length)) {
             for (i in start until (start + length)) {
-                buf[i] = value.toShort()
+                buf[i] = value
             }
             return true
         } else {
@@ -204,7 +197,7 @@ class ByteBuffer {
     }
 
     fun resize(length: Int) {
-        val newbuf = ShortArray(length)
+        val newbuf = ByteArray(length)
         System.arraycopy(buf, 0, newbuf, 0, Math.min(length, size))
         buf = newbuf
         size = length
@@ -279,7 +272,7 @@ class ByteBuffer {
 
     fun putByte(var1: Short): Boolean {
         if (inRange(curPos, 1)) {
-            buf[curPos] = var1
+            buf[curPos] = var1.toByte()
             move(1)
             return true
         } else {
@@ -294,7 +287,7 @@ class ByteBuffer {
 
     fun putByte(var1: Short, pos: Int): Boolean {
         if (inRange(pos, 1)) {
-            buf[pos] = var1
+            buf[pos] = var1.toByte()
             return true
         } else {
             error()
@@ -317,11 +310,11 @@ class ByteBuffer {
     fun putShort(var1: Short, pos: Int): Boolean {
         if (inRange(pos, 2)) {
             if (this.byteOrder == BO_BIG_ENDIAN) {
-                buf[pos + 0] = ((var1.toInt() shr 8) and 255).toShort()
-                buf[pos + 1] = ((var1.toInt()) and 255).toShort()
+                buf[pos + 0] = ((var1.toInt() shr 8) and 255).toByte()
+                buf[pos + 1] = ((var1.toInt()) and 255).toByte()
             } else {
-                buf[pos + 1] = ((var1.toInt() shr 8) and 255).toShort()
-                buf[pos + 0] = ((var1.toInt()) and 255).toShort()
+                buf[pos + 1] = ((var1.toInt() shr 8) and 255).toByte()
+                buf[pos + 0] = ((var1.toInt()) and 255).toByte()
             }
             return true
         } else {
@@ -341,15 +334,15 @@ class ByteBuffer {
     fun putInt(var1: Int, pos: Int): Boolean {
         if (inRange(pos, 4)) {
             if (this.byteOrder == BO_BIG_ENDIAN) {
-                buf[pos + 0] = ((var1 shr 24) and 255).toShort()
-                buf[pos + 1] = ((var1 shr 16) and 255).toShort()
-                buf[pos + 2] = ((var1 shr 8) and 255).toShort()
-                buf[pos + 3] = ((var1) and 255).toShort()
+                buf[pos + 0] = ((var1 shr 24) and 255).toByte()
+                buf[pos + 1] = ((var1 shr 16) and 255).toByte()
+                buf[pos + 2] = ((var1 shr 8) and 255).toByte()
+                buf[pos + 3] = ((var1) and 255).toByte()
             } else {
-                buf[pos + 3] = ((var1 shr 24) and 255).toShort()
-                buf[pos + 2] = ((var1 shr 16) and 255).toShort()
-                buf[pos + 1] = ((var1 shr 8) and 255).toShort()
-                buf[pos + 0] = ((var1) and 255).toShort()
+                buf[pos + 3] = ((var1 shr 24) and 255).toByte()
+                buf[pos + 2] = ((var1 shr 16) and 255).toByte()
+                buf[pos + 1] = ((var1 shr 8) and 255).toByte()
+                buf[pos + 0] = ((var1) and 255).toByte()
             }
             return true
         } else {
@@ -371,8 +364,8 @@ class ByteBuffer {
         if (inRange(pos, var1.length * 2)) {
             var position = pos
             for (i in var1.indices) {
-                buf[position + 0] = ((charArr[i].code shr 8) and 255).toShort()
-                buf[position + 1] = ((charArr[i].code) and 255).toShort()
+                buf[position + 0] = ((charArr[i].code shr 8) and 255).toByte()
+                buf[position + 1] = ((charArr[i].code) and 255).toByte()
                 position += 2
             }
             return true
@@ -394,11 +387,11 @@ class ByteBuffer {
         val tmp = var1.code
         if (inRange(pos, 2)) {
             if (byteOrder == BO_BIG_ENDIAN) {
-                buf[pos + 0] = ((tmp shr 8) and 255).toShort()
-                buf[pos + 1] = ((tmp) and 255).toShort()
+                buf[pos + 0] = ((tmp shr 8) and 255).toByte()
+                buf[pos + 1] = ((tmp) and 255).toByte()
             } else {
-                buf[pos + 1] = ((tmp shr 8) and 255).toShort()
-                buf[pos + 0] = ((tmp) and 255).toShort()
+                buf[pos + 1] = ((tmp shr 8) and 255).toByte()
+                buf[pos + 0] = ((tmp) and 255).toByte()
             }
             return true
         } else {
@@ -417,7 +410,7 @@ class ByteBuffer {
 
     fun putCharAscii(var1: Char, pos: Int): Boolean {
         if (inRange(pos)) {
-            buf[pos] = var1.code.toShort()
+            buf[pos] = var1.code.toByte()
             return true
         } else {
             error()
@@ -438,7 +431,7 @@ class ByteBuffer {
         if (inRange(pos, var1.length)) {
             var position = pos
             for (i in var1.indices) {
-                buf[position] = charArr[i].code.toShort()
+                buf[position] = charArr[i].code.toByte()
                 position++
             }
             return true
@@ -448,24 +441,20 @@ class ByteBuffer {
         }
     }
 
-    fun putByteArray(arr: ShortArray): Boolean {
+    fun putByteArray(arr: ByteArray): Boolean {
         if (buf.size - curPos < arr.size) {
             resize(curPos + arr.size)
         }
-        for (i in arr.indices) {
-            buf[curPos + i] = arr[i]
-        }
+        System.arraycopy(arr, 0, buf, curPos, arr.size)
         curPos += arr.size
         return true
     }
 
-    fun readByteArray(arr: ShortArray): Boolean {
+    fun readByteArray(arr: ByteArray): Boolean {
         if (buf.size - curPos < arr.size) {
             return false
         }
-        for (i in arr.indices) {
-            arr[i] = (buf[curPos + i].toInt() and 0xFF).toShort()
-        }
+        System.arraycopy(buf, curPos, arr, 0, arr.size)
         curPos += arr.size
         return true
     }
@@ -476,14 +465,14 @@ class ByteBuffer {
         }
         if (byteOrder == BO_BIG_ENDIAN) {
             for (i in arr.indices) {
-                buf[curPos + 0] = ((arr[i].toInt() shr 8) and 255).toShort()
-                buf[curPos + 1] = ((arr[i].toInt()) and 255).toShort()
+                buf[curPos + 0] = ((arr[i].toInt() shr 8) and 255).toByte()
+                buf[curPos + 1] = ((arr[i].toInt()) and 255).toByte()
                 curPos += 2
             }
         } else {
             for (i in arr.indices) {
-                buf[curPos + 1] = ((arr[i].toInt() shr 8) and 255).toShort()
-                buf[curPos + 0] = ((arr[i].toInt()) and 255).toShort()
+                buf[curPos + 1] = ((arr[i].toInt() shr 8) and 255).toByte()
+                buf[curPos + 0] = ((arr[i].toInt()) and 255).toByte()
                 curPos += 2
             }
         }
@@ -494,7 +483,7 @@ class ByteBuffer {
         val strBuf = StringBuffer()
         var tmp: Short
         for (i in 0 until (size - 1) step 2) {
-            tmp = ((buf[i].toInt() shl 8) or (buf[i + 1].toInt())).toShort()
+            tmp = (((buf[i].toInt() and 255) shl 8) or (buf[i + 1].toInt() and 255)).toShort()
             strBuf.append(tmp.toInt().toChar())
         }
         return strBuf.toString()
@@ -503,7 +492,7 @@ class ByteBuffer {
     fun toStringAscii(): String {
         val strBuf = StringBuffer()
         for (i in 0 until size) {
-            strBuf.append(buf[i].toInt().toChar())
+            strBuf.append((buf[i].toInt() and 255).toChar())
         }
         return strBuf.toString()
     }
@@ -528,7 +517,7 @@ class ByteBuffer {
     @Throws(ArrayIndexOutOfBoundsException::class)
     fun readByte(pos: Int): Short {
         if (inRange(pos)) {
-            return buf[pos]
+            return (buf[pos].toInt() and 255).toShort()
         } else {
             error()
             throw ArrayIndexOutOfBoundsException()
@@ -546,9 +535,9 @@ class ByteBuffer {
     fun readShort(pos: Int): Short {
         if (inRange(pos, 2)) {
             return if (this.byteOrder == BO_BIG_ENDIAN) {
-                ((buf[pos].toInt() shl 8) or (buf[pos + 1].toInt())).toShort()
+                (((buf[pos].toInt() and 255) shl 8) or (buf[pos + 1].toInt() and 255)).toShort()
             } else {
-                ((buf[pos + 1].toInt() shl 8) or (buf[pos].toInt())).toShort()
+                (((buf[pos + 1].toInt() and 255) shl 8) or (buf[pos].toInt() and 255)).toShort()
             }
         } else {
             error()
@@ -568,15 +557,15 @@ class ByteBuffer {
         var ret = 0
         if (inRange(pos, 4)) {
             if (this.byteOrder == BO_BIG_ENDIAN) {
-                ret = ret or (buf[pos + 0].toInt() shl 24)
-                ret = ret or (buf[pos + 1].toInt() shl 16)
-                ret = ret or (buf[pos + 2].toInt() shl 8)
-                ret = ret or (buf[pos + 3].toInt())
+                ret = ret or ((buf[pos + 0].toInt() and 255) shl 24)
+                ret = ret or ((buf[pos + 1].toInt() and 255) shl 16)
+                ret = ret or ((buf[pos + 2].toInt() and 255) shl 8)
+                ret = ret or (buf[pos + 3].toInt() and 255)
             } else {
-                ret = ret or (buf[pos + 3].toInt() shl 24)
-                ret = ret or (buf[pos + 2].toInt() shl 16)
-                ret = ret or (buf[pos + 1].toInt() shl 8)
-                ret = ret or (buf[pos + 0].toInt())
+                ret = ret or ((buf[pos + 3].toInt() and 255) shl 24)
+                ret = ret or ((buf[pos + 2].toInt() and 255) shl 16)
+                ret = ret or ((buf[pos + 1].toInt() and 255) shl 8)
+                ret = ret or (buf[pos + 0].toInt() and 255)
             }
             return ret
         } else {
@@ -718,7 +707,7 @@ class ByteBuffer {
     fun crop() {
         if (curPos > 0) {
             if (curPos < buf.size) {
-                val newBuf = ShortArray(curPos)
+                val newBuf = ByteArray(curPos)
                 System.arraycopy(buf, 0, newBuf, 0, curPos)
                 buf = newBuf
             }
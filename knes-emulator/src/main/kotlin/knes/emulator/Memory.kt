@@ -18,14 +18,14 @@ import java.io.FileWriter
 import java.io.IOException
 
 class Memory(var memSize: Int) {
-	var mem: ShortArray
+	// One byte per address, read back unsigned by load():
+	var mem: ByteArray
 
     init {
-        mem = ShortArray(memSize)
+        mem = ByteArray(memSize)
     }
 
     fun stateLoad(buf: ByteBuffer) {
-        if (false) mem = ShortArray(this.memSize)
         buf.readByteArray(mem)
     }
 
@@ -38,18 +38,18 @@ class Memory(var memSize: Int) {
     }
 
     fun write(address: Int, value: Short) {
-        mem[address] = value
+        mem[address] = value.toByte()
     }
 
     fun load(address: Int): Short {
-        return mem[address]
+        return (mem[address].toInt() and 0xFF).toShort()
     }
 
     @JvmOverloads
     fun dump(file: String, offset: Int = 0, length: Int = mem.size) {
         val ch = CharArray(length)
         for (i in 0 until length) {
-            ch[i] = Char(mem[offset + i].toUShort())
+            ch[i] = Char(mem[offset + i].toInt() and 0xFF)
         }
 
         try {
@@ -64,12 +64,12 @@ class Memory(var memSize: Int) {
         }
     }
 
-    fun write(address: Int, array: ShortArray, length: Int) {
+    fun write(address: Int, array: ByteArray, length: Int) {
         if (address + length > mem.size) return
         System.arraycopy(array, 0, mem, address, length)
     }
 
-    fun write(address: Int, array: ShortArray, arrayoffset: Int, length: Int) {
+    fun write(address: Int, array: ByteArray, arrayoffset: Int, length: Int) {
         if (address + length > mem.size) return
         System.arraycopy(array, arrayoffset, mem, address, length)
     }
@@ -89,53 +89,48 @@ class NES(
         return gui!!.getScreenView()
     }
 
-    fun stateLoad(buf: ByteBuffer): Boolean {
-        var continueEmulation = false
-        val success: Boolean
-
-        if (cpu.isRunning) {
-            continueEmulation = true
-            stopEmulation()
-        }
-
-        if (buf.readByte().toInt() == 1) {
-            cpuMemory.stateLoad(buf)
-            ppuMemory.stateLoad(buf)
-            sprMemory.stateLoad(buf)
-            cpu.stateLoad(buf)
-            memoryMapper?.stateLoad(buf)
-            ppu.stateLoad(buf)
-            success = true
-        } else {
-            success = false
+    /**
+     * Renders only one frame in every frameSkip + 1, or none with [PPU.SKIP_ALL_FRAMES], for fast-forward and for
+     * headless runs that only read RAM. Emulation is not affected. See [PPU.frameSkip].
+     */
+    var frameSkip: Int
+        get() = ppu.frameSkip
+        set(value) {
+            ppu.frameSkip = value
         }
 
-        if (continueEmulation) {
-            startEmulation()
-        }
+    // State is saved and loaded between two instructions on the emulation thread, which keeps running:
+    fun stateLoad(buf: ByteBuffer): Boolean {
+        var success = false
+
+        cpu.execute(Runnable {
+            if (buf.readByte().toInt() == 1) {
+                cpuMemory.stateLoad(buf)
+                ppuMemory.stateLoad(buf)
+                sprMemory.stateLoad(buf)
+                cpu.stateLoad(buf)
+                memoryMapper?.stateLoad(buf)
+                ppu.stateLoad(buf)
+                success = true
+            }
+        })
 
         return success
     }
 
     fun stateSave(buf: ByteBuffer) {
-        val continueEmulation = this.isRunning
-        stopEmulation()
-
-        // Version:
-        buf.putByte(1.toShort())
-
-        // Let units save their state:
-        cpuMemory.stateSave(buf)
-        ppuMemory.stateSave(buf)
-        sprMemory.stateSave(buf)
-        cpu.stateSave(buf)
-        memoryMapper?.stateSave(buf)
-        ppu.stateSave(buf)
-
-        // Continue emulation:
-        if (continueEmulation) {
-            startEmulation()
-        }
+        cpu.execute(Runnable {
+            // Version:
+            buf.putByte(1.toShort())
+
+            // Let units save their state:
+            cpuMemory.stateSave(buf)
+            ppuMemory.stateSave(buf)
+            sprMemory.stateSave(buf)
+            cpu.stateSave(buf)
+            memoryMapper?.stateSave(buf)
+            ppu.stateSave(buf)
+        })
     }
 
     fun startEmulation() {
@@ -149,9 +144,10 @@ class NES(
         }
     }
 
+    // Pauses the emulation thread, startEmulation() continues on the same thread:
     fun stopEmulation() {
         if (cpu.isRunning) {
-            cpu.endExecution()
+            cpu.pause()
             isRunning = false
         }
 
@@ -160,23 +156,78 @@ class NES(
         }
     }
 
+    /**
+     * Runs the emulation on the calling thread until the PPU enters VBlank, i.e. until the current frame is
+     * complete. Returns the number of CPU cycles emulated.
+     *
+     * Like [runCycles] and [runInstructions], this is meant for embedders stepping the emulator themselves
+     * and cannot be used while the emulation thread started by [startEmulation] exists. [stopEmulation] only
+     * pauses that thread, which still runs posted commands; CPU.endExecution() ends it.
+     */
+    fun runFrame(): Long {
+        checkCanStep()
+        cpu.stopAtVBlank = true
+        try {
+            // Bounded in case the PPU is not clocked and VBlank never comes:
+            return cpu.emulate(Long.MAX_VALUE, MAX_FRAME_CYCLES)
+        } finally {
+            cpu.stopAtVBlank = false
+        }
+    }
+
+    /**
+     * Runs the emulation on the calling thread for at least the given number of CPU cycles. The last
+     * instruction is always completed, so up to 6 cycles more may be emulated. Returns the number of
+     * CPU cycles emulated.
+     */
+    fun runCycles(cycles: Long): Long {
+        require(cycles > 0) { "Cycle count must be positive: $cycles" }
+        checkCanStep()
+        return cpu.emulate(Long.MAX_VALUE, cycles)
+    }
+
+    /**
+     * Runs the given number of CPU instructions on the calling thread. Returns the number of CPU cycles emulated.
+     */
+    fun runInstructions(count: Long): Long {
+        require(count > 0) { "Instruction count must be positive: $count" }
+        checkCanStep()
+        return cpu.emulate(count, Long.MAX_VALUE)
+    }
+
+    /**
+     * Queues an action, e.g. an input change, to run on the emulation thread between two instructions.
+     * See [CPU.post].
+     */
+    fun post(action: Runnable) {
+        cpu.post(action)
+    }
+
+    private fun checkCanStep() {
+        check(isRomLoaded) { "No ROM loaded" }
+        // Commands posted to a paused thread would run during the step and cut it short:
+        check(!cpu.hasEmulationThread) {
+            "Cannot step while the emulation thread exists, end it with CPU.endExecution()"
+        }
+    }
+
     fun clearCPUMemory() {
        val random = Random(System.nanoTime())
 
         for (i in 0..0x1fff) {
             when (random.nextInt(100)) {
                 in 0 until 33 -> cpuMemory.mem[i] = 0x00
-                in 33 until 66 -> cpuMemory.mem[i] = 0xFF.toShort()
-                else -> cpuMemory.mem[i] = random.nextInt(256).toShort()
+                in 33 until 66 -> cpuMemory.mem[i] = 0xFF.toByte()
+                else -> cpuMemory.mem[i] = random.nextInt(256).toByte()
             }
         }
 
         for (p in 0..3) {
             val i = p * 0x800
-            cpuMemory.mem[i + 0x008] = 0xF7
-            cpuMemory.mem[i + 0x009] = 0xEF
-            cpuMemory.mem[i + 0x00A] = 0xDF
-            cpuMemory.mem[i + 0x00F] = 0xBF
+            cpuMemory.mem[i + 0x008] = 0xF7.toByte()
+            cpuMemory.mem[i + 0x009] = 0xEF.toByte()
+            cpuMemory.mem[i + 0x00A] = 0xDF.toByte()
+            cpuMemory.mem[i + 0x00F] = 0xBF.toByte()
         }
     }
 
@@ -212,19 +263,20 @@ class NES(
     }
 
     fun reset() {
-        memoryMapper?.reset()
-        cpuMemory.reset()
-        ppuMemory.reset()
-        sprMemory.reset()
-        clearCPUMemory()
-
-        cpu.reset()
-        cpu.init(cpuMemory)
-        ppu.reset()
-        palTable.reset()
-        papu.reset(this)
-        gui!!.getJoy1().reset()
-
+        cpu.execute(Runnable {
+            memoryMapper?.reset()
+            cpuMemory.reset()
+            ppuMemory.reset()
+            sprMemory.reset()
+            clearCPUMemory()
+
+            cpu.reset()
+            cpu.init(cpuMemory)
+            ppu.reset()
+            palTable.reset()
+            papu.reset(this)
+            gui!!.getJoy1().reset()
+        })
     }
 
     fun beginExecution() {
@@ -232,20 +284,19 @@ class NES(
     }
 
     fun enableSound(enable: Boolean) {
-        if (isRunning) {
-            stopEmulation()
-        }
-
-        if (enable) {
-            papu.start()
-        } else {
-            papu.stop()
-        }
+        cpu.execute(Runnable {
+            if (enable) {
+                papu.start()
+            } else {
+                papu.stop()
+            }
 
-        Globals.enableSound = enable
+            Globals.enableSound = enable
+        })
+    }
 
-        if (isRunning) {
-            startEmulation()
-        }
+    companion object {
+        // A frame takes 29781 CPU cycles on NTSC and 33248 on PAL, runFrame() gives up after several frames:
+        private const val MAX_FRAME_CYCLES = 4L * 29781
     }
 }
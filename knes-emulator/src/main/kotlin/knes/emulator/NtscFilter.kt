@@ -0,0 +1,202 @@
+/*
+ *
+ *  * Copyright (C) 2025 Artur Skowroński
+ *  * This file is part of kNES, a fork of vNES (GPLv3) rewritten in Kotlin.
+ *  *
+ *  * vNES was originally developed by Brian F. R. (bfirsh) and released under the GPL-3.0 license.
+ *  * This project is a reimplementation and extension of that work.
+ *  *
+ *  * kNES is licensed under the GNU General Public License v3.0.
+ *  * See the LICENSE file for more details.
+ *
+ */
+
+package knes.emulator
+
+import kotlin.math.PI
+import kotlin.math.abs
+import kotlin.math.cos
+import kotlin.math.roundToInt
+import kotlin.math.sin
+
+/**
+ * The NTSC composite video filter of [Scale.ntsc], after blargg's nes_ntsc.
+ *
+ * The PPU outputs 8 samples of a square wave per pixel, at 12 samples per cycle of the color subcarrier, whose levels
+ * and phase follow from the pixel's palette entry and emphasis bits. A TV separates luma from chroma with low-pass
+ * filters, which is where the color fringes and blur come from. Both the signal and the decoder are linear in a pixel's
+ * samples, so the RGB contribution of every palette value to each output pixel around it is computed once, for each of
+ * the three positions a pixel can have within 3 pixels (2 subcarrier cycles, drawn as 7 output pixels) and each of the
+ * 3 subcarrier phases a row can start at. A row is then the sum of [TAPS] table entries per input pixel.
+ *
+ * The three channels of a contribution are packed into one long as signed 21-bit fields in 1/16 units, so one
+ * addition sums all three. Output pixels have the channel order of [knes.emulator.utils.PaletteTable], red lowest.
+ */
+internal object NtscFilter {
+    const val WIDTH = 602
+    private const val IN_WIDTH = 256
+    private const val HEIGHT = 240
+
+    // Output pixels a pixel contributes to, starting FIRST_TAP[position] from the first output pixel of its group of 7:
+    private const val TAPS = 9
+    private val FIRST_TAP = intArrayOf(-3, -1, 1)
+
+    // Room for the taps before the first output pixel and after the last:
+    private const val PAD = 3
+    private const val ROW_SIZE = WIDTH + 2 * PAD + 2
+
+    // Half widths of the luma and chroma filters, in samples. The luma filter lets through a sixth of the subcarrier,
+    // which draws the dot patterns of a composite picture; the chroma filter is as wide as two subcarrier cycles:
+    private const val LUMA_RADIUS = 9.0
+    private const val CHROMA_RADIUS = 12.0
+
+    // Phase of the decoder's reference subcarrier, in samples:
+    private const val HUE = 3.9
+
+    // Signal levels of luma 0-3 for the low and the high half of the wave, in volts, and the emphasis attenuation:
+    private val LEVELS = doubleArrayOf(0.350, 0.518, 0.962, 1.550, 1.094, 1.506, 1.962, 1.962)
+    private const val BLACK = 0.518
+    private const val WHITE = 1.962
+    private const val ATTENUATION = 0.746
+
+    // 2^19 added to every field makes them all positive, plus 8 to round:
+    private const val FIELD_BIAS = (1L shl 19) + 8
+    private const val BIAS = FIELD_BIAS or (FIELD_BIAS shl 21) or (FIELD_BIAS shl 42)
+
+    // Contributions by palette value, row phase, position and tap:
+    private val kernels = LongArray(512 * 3 * 3 * TAPS)
+
+    init {
+        // The filters' sums over the samples around each output pixel of a group, to keep flat areas at their level:
+        val lumaSums = DoubleArray(TAPS + 4) { windowSum(it + FIRST_TAP[0], LUMA_RADIUS) }
+        val chromaSums = DoubleArray(TAPS + 4) { windowSum(it + FIRST_TAP[0], CHROMA_RADIUS) }
+
+        for (value in 0 until 512) {
+            for (phase in 0 until 3) {
+                for (position in 0 until 3) {
+                    for (tap in 0 until TAPS) {
+                        val x = FIRST_TAP[position] + tap
+                        kernels[((value * 3 + phase) * 3 + position) * TAPS + tap] = contribution(
+                            value, phase, position, x, lumaSums[x - FIRST_TAP[0]], chromaSums[x - FIRST_TAP[0]]
+                        )
+                    }
+                }
+            }
+        }
+    }
+
+    fun filterRows(src: IntArray, dest: IntArray, changed: BooleanArray, first: Int, end: Int) {
+        val row = LongArray(ROW_SIZE)
+        for (y in first until end) {
+            if (!changed[y]) {
+                continue
+            }
+
+            // The subcarrier advances 4 samples per row:
+            val phase = y % 3
+            var n = y * IN_WIDTH
+            var out = PAD
+            while (n < (y + 1) * IN_WIDTH) {
+                for (position in 0 until minOf(3, (y + 1) * IN_WIDTH - n)) {
+                    val kernel = ((src[n] * 3 + phase) * 3 + position) * TAPS
+                    val start = out + FIRST_TAP[position]
+                    for (tap in 0 until TAPS) {
+                        row[start + tap] += kernels[kernel + tap]
+                    }
+                    n++
+                }
+                out += 7
+            }
+
+            // Every row is drawn twice, for 480 lines:
+            val top = 2 * y * WIDTH
+            for (x in 0 until WIDTH) {
+                val sum = row[x + PAD] + BIAS
+                val r = clamp(((sum and 0x1FFFFF) - (1L shl 19)).toInt() shr 4)
+                val g = clamp((((sum shr 21) and 0x1FFFFF) - (1L shl 19)).toInt() shr 4)
+                val b = clamp(((sum shr 42) - (1L shl 19)).toInt() shr 4)
+                dest[top + x] = r or (g shl 8) or (b shl 16)
+            }
+            System.arraycopy(dest, top, dest, top + WIDTH, WIDTH)
+            row.fill(0)
+        }
+    }
+
+    private fun clamp(channel: Int): Int {
+        return if (channel < 0) 0 else if (channel > 255) 255 else channel
+    }
+
+    // The contribution of palette value [value] at [position] in its group of 3 pixels, on a row starting at
+    // subcarrier phase 4 * [phase], to output pixel [x] of the group of 7:
+    private fun contribution(value: Int, phase: Int, position: Int, x: Int, lumaSum: Double, chromaSum: Double): Long {
+        val center = center(x)
+        var y = 0.0
+        var i = 0.0
+        var q = 0.0
+        for (j in 0 until 8) {
+            val sample = 8 * position + j
+            val samplePhase = (sample + 4 * phase) % 12
+            val signal = signal(value, samplePhase)
+            val distance = center - (sample + 0.5)
+            y += signal * window(distance, LUMA_RADIUS) / lumaSum
+            val chroma = 2 * signal * window(distance, CHROMA_RADIUS) / chromaSum
+            i += chroma * cos(PI * (samplePhase + HUE) / 6)
+            q += chroma * sin(PI * (samplePhase + HUE) / 6)
+        }
+
+        val r = y + 0.946882 * i + 0.623557 * q
+        val g = y - 0.274788 * i - 0.635691 * q
+        val b = y - 1.108545 * i + 1.709007 * q
+        return fixed(r) + (fixed(g) shl 21) + (fixed(b) shl 42)
+    }
+
+    private fun fixed(channel: Double): Long {
+        return (channel * 255 * 16).roundToInt().toLong()
+    }
+
+    // The PPU's output level for palette value [value] at a sample of phase [phase], from black at 0 to white at 1:
+    private fun signal(value: Int, phase: Int): Double {
+        val color = value and 0x0F
+        val level = if (color > 13) 1 else (value shr 4) and 3
+        val emphasis = value shr 6
+        var low = LEVELS[level]
+        var high = LEVELS[4 + level]
+        if (color == 0) {
+            low = high
+        } else if (color > 12) {
+            high = low
+        }
+
+        var signal = if (inColorPhase(color, phase)) high else low
+        if (((emphasis and 1) != 0 && inColorPhase(0, phase)) ||
+            ((emphasis and 2) != 0 && inColorPhase(4, phase)) ||
+            ((emphasis and 4) != 0 && inColorPhase(8, phase))
+        ) {
+            signal *= ATTENUATION
+        }
+        return (signal - BLACK) / (WHITE - BLACK)
+    }
+
+    private fun inColorPhase(color: Int, phase: Int): Boolean {
+        return (color + phase) % 12 < 6
+    }
+
+    // Raised cosine filter:
+    private fun window(distance: Double, radius: Double): Double {
+        return if (abs(distance) >= radius) 0.0 else 0.5 + 0.5 * cos(PI * distance / radius)
+    }
+
+    // Position of output pixel x of a group of 7 in samples from the start of the group:
+    private fun center(x: Int): Double {
+        return (x + 0.5) * 24 / 7
+    }
+
+    private fun windowSum(x: Int, radius: Double): Double {
+        val center = center(x)
+        var sum = 0.0
+        for (sample in (center - radius).toInt() - 1..(center + radius).toInt() + 1) {
+            sum += window(center - (sample + 0.5), radius)
+        }
+        return sum
+    }
+}
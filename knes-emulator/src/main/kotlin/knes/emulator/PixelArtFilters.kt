@@ -0,0 +1,574 @@
+/*
+ *
+ *  * Copyright (C) 2025 Artur Skowroński
+ *  * This file is part of kNES, a fork of vNES (GPLv3) rewritten in Kotlin.
+ *  *
+ *  * vNES was originally developed by Brian F. R. (bfirsh) and released under the GPL-3.0 license.
+ *  * This project is a reimplementation and extension of that work.
+ *  *
+ *  * kNES is licensed under the GNU General Public License v3.0.
+ *  * See the LICENSE file for more details.
+ *
+ */
+
+package knes.emulator
+
+import kotlin.math.abs
+
+/**
+ * The pixel art upscalers of [Scale]: Scale2x/Scale3x, an edge blending filter and xBR, each at 2x and 3x.
+ *
+ * A frame is first converted to RGB and YUV once per pixel, through tables over the 512 values when it holds palette
+ * indices, into buffers with a 2 pixel border that repeats the frame's edges. Neighbors are then at fixed offsets.
+ * Scale2x/3x and the edge blending filter compute a bit pattern of which neighbors match the center pixel, and look
+ * up what to draw for every output pixel in tables built once for all patterns. The edge blending filter compares
+ * colors with the YUV thresholds of hqx, but its rules are its own, smoothing corners that diagonal edges cut (see
+ * buildBlend()); it does not reproduce hqx's output. xBR weighs color distances along both diagonals of each corner
+ * instead, which does not reduce to a small pattern.
+ *
+ * The functions handle a range of source rows, so that Scale can run bands of rows in parallel. [convertRows] has
+ * to complete for the whole frame before a filter runs. The converted frame is kept between calls, which are not
+ * thread-safe.
+ */
+internal object PixelArtFilters {
+    private const val WIDTH = 256
+    private const val HEIGHT = 240
+    private const val BORDER = 2
+    private const val STRIDE = WIDTH + 2 * BORDER
+    private const val SIZE = STRIDE * (HEIGHT + 2 * BORDER)
+
+    // Blends of the center pixel E with up to two neighbors X and Y, in the low 3 bits of a rule:
+    private const val COPY = 0 // E
+    private const val MIX_7_1 = 1 // (7E + X) / 8
+    private const val MIX_3_1 = 2 // (3E + X) / 4
+    private const val MIX_2_1_1 = 3 // (2E + X + Y) / 4
+    private const val MIX_6_1_1 = 4 // (6E + X + Y) / 8
+
+    // Positions in the 3x3 neighborhood:
+    // A B C
+    // D E F
+    // G H I
+    private const val A = 0
+    private const val B = 1
+    private const val C = 2
+    private const val D = 3
+    private const val E = 4
+    private const val F = 5
+    private const val G = 6
+    private const val H = 7
+    private const val I = 8
+
+    // RGB and YUV (Y in bits 16-23, U and V offset by 128 in bits 8-15 and 0-7) of the converted frame and its
+    // border:
+    private val rgb = IntArray(SIZE)
+    private val yuv = IntArray(SIZE)
+    private var converted = false
+
+    // The palette of the converted frame, null for RGB:
+    private var convertedPalette: IntArray? = null
+
+    // The filter, factor and destination of the last frame drawn:
+    private var drawnFilter = -1
+    private var drawnFactor = 0
+    private var drawnDest: IntArray? = null
+
+    // Whether every pixel of the converted frame differs from the pixel right of it (bit 0), below it (bit 1), down
+    // and right (bit 2) and up and right of it (bit 3), for the edge blending filter:
+    private val edges = ByteArray(SIZE)
+
+    // xBR's distance of every pixel of the converted frame to the pixel down and right of it, then at SIZE the ones
+    // to the pixel up and right of it. xBR only compares diagonal neighbors along its edges:
+    private val diagonals = IntArray(2 * SIZE)
+
+    // YUV of every palette index of convertedPalette:
+    private val indexYuv = IntArray(512)
+
+    // Offsets of the 3x3 neighborhood in the converted frame:
+    private val offsets3 = IntArray(9) { (it / 3 - 1) * STRIDE + it % 3 - 1 }
+
+    // Neighbor position drawn at each output pixel, by the Scale2x/3x pattern (see scaleXPattern()):
+    private val scale2xTable = ByteArray(1024 * 4)
+    private val scale3xTable = ByteArray(1024 * 9)
+
+    // Rule of each output pixel, by the edge blending pattern (see blendPattern()): blend, X position shl 3,
+    // Y position shl 7:
+    private val blend2xTable = ShortArray(4096 * 4)
+    private val blend3xTable = ShortArray(4096 * 9)
+
+    // Offsets of the 5x5 neighborhood of xBR rotated by 0, 90, 180 and 270 degrees, so that the test of the bottom
+    // right corner serves all four:
+    private val xbrOffsets = Array(4) { k -> IntArray(25) { offset(rotate(k, it)) } }
+
+    // The pairs of positions whose distances make up the weights of xBR's corner test (see xbrRow()), and where
+    // these distances are in diagonals for each rotation:
+    private val xbrPairs = intArrayOf(12, 8, 12, 16, 18, 14, 18, 22, 17, 13, 17, 11, 17, 23, 13, 19, 13, 7, 12, 18)
+    private val xbrDistances = Array(4) { k ->
+        IntArray(10) { n ->
+            val u = rotate(k, xbrPairs[2 * n])
+            val v = rotate(k, xbrPairs[2 * n + 1])
+            val upper = if (u / 5 < v / 5) u else v
+            val lower = if (u / 5 < v / 5) v else u
+            if (upper % 5 < lower % 5) offset(upper) else SIZE + offset(lower)
+        }
+    }
+
+    private fun rotate(k: Int, position: Int): Int {
+        val r = position / 5
+        val c = position % 5
+        return when (k) {
+            0 -> position
+            1 -> (4 - c) * 5 + r
+            2 -> (4 - r) * 5 + (4 - c)
+            else -> c * 5 + (4 - r)
+        }
+    }
+
+    private fun offset(position: Int): Int {
+        return (position / 5 - 2) * STRIDE + position % 5 - 2
+    }
+
+    init {
+        for (pattern in 0 until 1024) {
+            buildScaleX(pattern)
+        }
+        for (pattern in 0 until 4096) {
+            buildBlend(pattern)
+        }
+    }
+
+    /**
+     * Prepares drawing frames of palette indices in [palette], or RGB frames when null, with [filter] and [factor]
+     * into [dest]. Returns whether every row has to be drawn, because what was kept from the last call does not apply:
+     * the converted frame, the edges or diagonals measured for the filter, or the rows already in [dest].
+     */
+    fun prepare(palette: IntArray?, filter: Int, factor: Int, dest: IntArray): Boolean {
+        val all = !converted || palette !== convertedPalette || filter != drawnFilter || factor != drawnFactor ||
+                dest !== drawnDest
+        if (palette != null && palette !== convertedPalette) {
+            for (i in indexYuv.indices) {
+                indexYuv[i] = toYuv(palette[i])
+            }
+        }
+        converted = true
+        convertedPalette = palette
+        drawnFilter = filter
+        drawnFactor = factor
+        drawnDest = dest
+        return all
+    }
+
+    fun convertRows(src: IntArray, palette: IntArray?, changed: BooleanArray, first: Int, end: Int) {
+        for (y in first until end) {
+            if (!changed[y]) {
+                continue
+            }
+            val start = (y + BORDER) * STRIDE + BORDER
+            var si = y * WIDTH
+            if (palette != null) {
+                for (i in start until start + WIDTH) {
+                    rgb[i] = palette[src[si]]
+                    yuv[i] = indexYuv[src[si]]
+                    si++
+                }
+            } else {
+                // Runs of one color are common, and reuse its conversion:
+                var last = src[si]
+                var lastYuv = toYuv(last)
+                for (i in start until start + WIDTH) {
+                    val col = src[si++]
+                    if (col != last) {
+                        last = col
+                        lastYuv = toYuv(col)
+                    }
+                    rgb[i] = col
+                    yuv[i] = lastYuv
+                }
+            }
+
+            for (i in 1..BORDER) {
+                rgb[start - i] = rgb[start]
+                yuv[start - i] = yuv[start]
+                rgb[start + WIDTH - 1 + i] = rgb[start + WIDTH - 1]
+                yuv[start + WIDTH - 1 + i] = yuv[start + WIDTH - 1]
+            }
+            if (y == 0 || y == HEIGHT - 1) {
+                val direction = if (y == 0) -1 else 1
+                for (i in 1..BORDER) {
+                    val border = start - BORDER + i * direction * STRIDE
+                    System.arraycopy(rgb, start - BORDER, rgb, border, STRIDE)
+                    System.arraycopy(yuv, start - BORDER, yuv, border, STRIDE)
+                }
+            }
+        }
+    }
+
+    /**
+     * Compares the neighbors around the rows from [first] up to [end] of the converted frame for
+     * [Scale.FILTER_EDGE_BLEND] or [Scale.FILTER_XBR], for rows near a change like [filterRows] draws. Has to complete
+     * for the whole frame before [filterRows] runs.
+     */
+    fun measureRows(filter: Int, changed: BooleanArray, first: Int, end: Int) {
+        for (y in first until end) {
+            if (!nearChange(changed, y)) {
+                continue
+            }
+            measureRow(filter, y + BORDER)
+            if (y == 0 || y == HEIGHT - 1) {
+                for (i in 1..BORDER) {
+                    measureRow(filter, if (y == 0) BORDER - i else y + BORDER + i)
+                }
+            }
+        }
+    }
+
+    private fun measureRow(filter: Int, row: Int) {
+        val start = row * STRIDE
+        val down = row < HEIGHT + 2 * BORDER - 1
+        val up = row > 0
+        for (i in start until start + STRIDE - 1) {
+            if (filter == Scale.FILTER_EDGE_BLEND) {
+                val e = yuv[i]
+                var bits = if (differ(e, yuv[i + 1])) 1 else 0
+                if (down && differ(e, yuv[i + STRIDE])) bits = bits or 2
+                if (down && differ(e, yuv[i + STRIDE + 1])) bits = bits or 4
+                if (up && differ(e, yuv[i - STRIDE + 1])) bits = bits or 8
+                edges[i] = bits.toByte()
+            } else {
+                if (down) {
+                    diagonals[i] = distance(yuv[i], yuv[i + STRIDE + 1])
+                }
+                if (up) {
+                    diagonals[SIZE + i] = distance(yuv[i], yuv[i - STRIDE + 1])
+                }
+            }
+        }
+    }
+
+    /**
+     * Draws the rows from [first] up to [end] of the converted frame with [Scale.FILTER_SCALE_X],
+     * [Scale.FILTER_EDGE_BLEND] or [Scale.FILTER_XBR]. Rows are drawn when [changed] is set for them or for a row up to
+     * two away.
+     */
+    fun filterRows(filter: Int, factor: Int, dest: IntArray, changed: BooleanArray, first: Int, end: Int) {
+        val neighbors = IntArray(9)
+        for (y in first until end) {
+            if (!nearChange(changed, y)) {
+                continue
+            }
+            val start = (y + BORDER) * STRIDE + BORDER
+            val out = y * factor * factor * WIDTH
+            expandRow(factor, dest, start, out)
+            when (filter) {
+                Scale.FILTER_SCALE_X -> scaleXRow(factor, dest, start, out, neighbors)
+                Scale.FILTER_EDGE_BLEND -> blendRow(factor, dest, start, out)
+                else -> xbrRow(factor, dest, start, out)
+            }
+        }
+    }
+
+    private fun nearChange(changed: BooleanArray, y: Int): Boolean {
+        for (row in maxOf(y - 2, 0)..minOf(y + 2, HEIGHT - 1)) {
+            if (changed[row]) {
+                return true
+            }
+        }
+        return false
+    }
+
+    // Draws the row with repeated pixels, which the filters then only replace where they find edges:
+    private fun expandRow(factor: Int, dest: IntArray, start: Int, out: Int) {
+        var di = out
+        for (i in start until start + WIDTH) {
+            val col = rgb[i]
+            for (k in 0 until factor) {
+                dest[di + k] = col
+            }
+            di += factor
+        }
+        for (row in 1 until factor) {
+            System.arraycopy(dest, out, dest, out + row * WIDTH * factor, WIDTH * factor)
+        }
+    }
+
+    private fun loadNeighbors(i: Int, neighbors: IntArray) {
+        for (n in 0 until 9) {
+            neighbors[n] = rgb[i + offsets3[n]]
+        }
+    }
+
+    // Scale2x/3x
+
+    private fun scaleXRow(factor: Int, dest: IntArray, start: Int, rowOut: Int, neighbors: IntArray) {
+        val table = if (factor == 2) scale2xTable else scale3xTable
+        var out = rowOut
+        for (i in start until start + WIDTH) {
+            // Nothing changes unless an edge runs along two sides of E:
+            if (rgb[i - STRIDE] != rgb[i + STRIDE] && rgb[i - 1] != rgb[i + 1]) {
+                loadNeighbors(i, neighbors)
+                var entry = scaleXPattern(neighbors) * factor * factor
+                for (row in 0 until factor) {
+                    val rowStart = out + row * WIDTH * factor
+                    for (col in 0 until factor) {
+                        dest[rowStart + col] = neighbors[table[entry++].toInt()]
+                    }
+                }
+            }
+            out += factor
+        }
+    }
+
+    // Bits 0-5: B = D, B = F, D = H, F = H, B = H, D = F. Bits 6-9: E = A, E = C, E = G, E = I.
+    private fun scaleXPattern(n: IntArray): Int {
+        var pattern = 0
+        if (n[B] == n[D]) pattern = pattern or 1
+        if (n[B] == n[F]) pattern = pattern or 2
+        if (n[D] == n[H]) pattern = pattern or 4
+        if (n[F] == n[H]) pattern = pattern or 8
+        if (n[B] == n[H]) pattern = pattern or 16
+        if (n[D] == n[F]) pattern = pattern or 32
+        if (n[E] == n[A]) pattern = pattern or 64
+        if (n[E] == n[C]) pattern = pattern or 128
+        if (n[E] == n[G]) pattern = pattern or 256
+        if (n[E] == n[I]) pattern = pattern or 512
+        return pattern
+    }
+
+    // The AdvMAME2x/3x rules:
+    private fun buildScaleX(pattern: Int) {
+        val bd = (pattern and 1) != 0
+        val bf = (pattern and 2) != 0
+        val dh = (pattern and 4) != 0
+        val fh = (pattern and 8) != 0
+        val edge = (pattern and 16) == 0 && (pattern and 32) == 0
+        val ea = (pattern and 64) != 0
+        val ec = (pattern and 128) != 0
+        val eg = (pattern and 256) != 0
+        val ei = (pattern and 512) != 0
+
+        val out2 = if (edge) {
+            intArrayOf(if (bd) D else E, if (bf) F else E, if (dh) D else E, if (fh) F else E)
+        } else {
+            IntArray(4) { E }
+        }
+        val out3 = if (edge) {
+            intArrayOf(
+                if (bd) D else E,
+                if ((bd && !ec) || (bf && !ea)) B else E,
+                if (bf) F else E,
+                if ((bd && !eg) || (dh && !ea)) D else E,
+                E,
+                if ((bf && !ei) || (fh && !ec)) F else E,
+                if (dh) D else E,
+                if ((dh && !ei) || (fh && !eg)) H else E,
+                if (fh) F else E
+            )
+        } else {
+            IntArray(9) { E }
+        }
+        for (i in 0 until 4) {
+            scale2xTable[pattern * 4 + i] = out2[i].toByte()
+        }
+        for (i in 0 until 9) {
+            scale3xTable[pattern * 9 + i] = out3[i].toByte()
+        }
+    }
+
+    // Edge blending
+
+    private fun blendRow(factor: Int, dest: IntArray, start: Int, rowOut: Int) {
+        val table = if (factor == 2) blend2xTable else blend3xTable
+        var out = rowOut
+        for (i in start until start + WIDTH) {
+            val pattern = blendPattern(i)
+            if (pattern != 0) {
+                var entry = pattern * factor * factor
+                for (row in 0 until factor) {
+                    val rowStart = out + row * WIDTH * factor
+                    for (col in 0 until factor) {
+                        val rule = table[entry++].toInt()
+                        if (rule != COPY) {
+                            dest[rowStart + col] = apply(rule, i)
+                        }
+                    }
+                }
+            }
+            out += factor
+        }
+    }
+
+    // Bits 0-7: A, B, C, D, F, G, H, I differ from E. Bits 8-11: B and D, B and F, D and H, F and H differ.
+    // Every comparison is one of the edges of E or a neighbor, e.g. A differs from E when A's down and right bit is set:
+    private fun blendPattern(i: Int): Int {
+        val e = edges[i].toInt()
+        val b = edges[i - STRIDE].toInt()
+        val d = edges[i - 1].toInt()
+        return ((edges[i - STRIDE - 1].toInt() shr 2) and 1) or // A
+                (b and 2) or // B
+                ((e and 8) shr 1) or // C
+                ((d and 1) shl 3) or // D
+                ((e and 1) shl 4) or // F
+                ((edges[i + STRIDE - 1].toInt() and 8) shl 2) or // G
+                ((e and 2) shl 5) or // H
+                ((e and 4) shl 5) or // I
+                ((d and 8) shl 5) or // B and D
+                ((b and 4) shl 7) or // B and F
+                ((d and 4) shl 8) or // D and H
+                ((edges[i + STRIDE].toInt() and 8) shl 8) // F and H
+    }
+
+    // A corner is smoothed when both of its side neighbors differ from E and match each other, i.e. an edge cuts it
+    // diagonally; less when the diagonal neighbor matches E, as E is then part of a thin line. Straight edges stay
+    // sharp. At 3x the middle of a side is tinted toward its neighbor when the corners next to it are smoothed.
+    private fun buildBlend(pattern: Int) {
+        fun differs(position: Int): Boolean {
+            val bit = if (position < E) position else position - 1
+            return (pattern and (1 shl bit)) != 0
+        }
+
+        fun corner(p: Int, q: Int, r: Int, pqBit: Int): Int {
+            if (differs(p) && differs(q) && (pattern and pqBit) == 0) {
+                return rule(if (differs(r)) MIX_2_1_1 else MIX_6_1_1, p, q)
+            }
+            return COPY
+        }
+
+        fun side(first: Int, second: Int, neighbor: Int): Int {
+            return when ((if (first != COPY) 1 else 0) + (if (second != COPY) 1 else 0)) {
+                2 -> rule(MIX_3_1, neighbor, E)
+                1 -> rule(MIX_7_1, neighbor, E)
+                else -> COPY
+            }
+        }
+
+        val topLeft = corner(B, D, A, 256)
+        val topRight = corner(B, F, C, 512)
+        val bottomLeft = corner(D, H, G, 1024)
+        val bottomRight = corner(F, H, I, 2048)
+        val out2 = intArrayOf(topLeft, topRight, bottomLeft, bottomRight)
+        val out3 = intArrayOf(
+            topLeft, side(topLeft, topRight, B), topRight,
+            side(topLeft, bottomLeft, D), COPY, side(topRight, bottomRight, F),
+            bottomLeft, side(bottomLeft, bottomRight, H), bottomRight
+        )
+        for (i in 0 until 4) {
+            blend2xTable[pattern * 4 + i] = out2[i].toShort()
+        }
+        for (i in 0 until 9) {
+            blend3xTable[pattern * 9 + i] = out3[i].toShort()
+        }
+    }
+
+    private fun rule(blend: Int, x: Int, y: Int): Int {
+        return blend or (x shl 3) or (y shl 7)
+    }
+
+    private fun apply(rule: Int, i: Int): Int {
+        val e = rgb[i]
+        val x = rgb[i + offsets3[(rule shr 3) and 15]]
+        val y = rgb[i + offsets3[(rule shr 7) and 15]]
+        return when (rule and 7) {
+            MIX_7_1 -> mix(e, 7, x, 1, 0, 0, 3)
+            MIX_3_1 -> mix(e, 3, x, 1, 0, 0, 2)
+            MIX_2_1_1 -> mix(e, 2, x, 1, y, 1, 2)
+            else -> mix(e, 6, x, 1, y, 1, 3)
+        }
+    }
+
+    // xBR
+
+    // Hyllian's xBR level 1, on the 5x5 neighborhood (E at 12):
+    //    A1 B1 C1
+    // A0 A  B  C  C4
+    // D0 D  E  F  F4
+    // G0 G  H  I  I4
+    //    G5 H5 I5
+    // The bottom right corner is an edge when the colors change less along the G-C diagonal than across it, i.e.
+    // wd1 = d(E, C) + d(E, G) + d(I, F4) + d(I, H5) + 4 d(H, F) is less than
+    // wd2 = d(H, D) + d(H, I5) + d(F, I4) + d(F, B) + 4 d(E, I), the pairs in xbrPairs. It is then drawn toward F or
+    // H, whichever is closer to E. The other corners are the same test on rotated offsets.
+    private fun xbrRow(factor: Int, dest: IntArray, start: Int, rowOut: Int) {
+        val stride = WIDTH * factor
+        var out = rowOut
+        for (i in start until start + WIDTH) {
+            val e = rgb[i]
+            val ye = yuv[i]
+
+            // A corner needs both of its side neighbors to differ from E:
+            val flat = (ye == yuv[i - STRIDE] && ye == yuv[i + STRIDE]) || (ye == yuv[i - 1] && ye == yuv[i + 1])
+            for (k in 0 until if (flat) 0 else 4) {
+                val o = xbrOffsets[k]
+                val yf = yuv[i + o[13]]
+                val yh = yuv[i + o[17]]
+                if (!differ(ye, yf) || !differ(ye, yh)) {
+                    continue
+                }
+                val d = xbrDistances[k]
+                val wd1 = diagonals[i + d[0]] + diagonals[i + d[1]] + diagonals[i + d[2]] + diagonals[i + d[3]] +
+                        4 * diagonals[i + d[4]]
+                val wd2 = diagonals[i + d[5]] + diagonals[i + d[6]] + diagonals[i + d[7]] + diagonals[i + d[8]] +
+                        4 * diagonals[i + d[9]]
+                if (wd1 >= wd2) {
+                    continue
+                }
+
+                val px = if (distance(ye, yf) <= distance(ye, yh)) rgb[i + o[13]] else rgb[i + o[17]]
+                if (factor == 2) {
+                    dest[out + subpixel(k, 1, 1, 2, stride)] = mix(e, 1, px, 1, 0, 0, 1)
+                } else {
+                    val near = mix(e, 3, px, 1, 0, 0, 2)
+                    dest[out + subpixel(k, 2, 2, 3, stride)] = mix(e, 1, px, 3, 0, 0, 2)
+                    dest[out + subpixel(k, 1, 2, 3, stride)] = near
+                    dest[out + subpixel(k, 2, 1, 3, stride)] = near
+                }
+            }
+            out += factor
+        }
+    }
+
+    // Offset of output pixel (row, col) of the bottom right corner, rotated like xbrOffsets[k]:
+    private fun subpixel(k: Int, row: Int, col: Int, factor: Int, stride: Int): Int {
+        val last = factor - 1
+        return when (k) {
+            0 -> row * stride + col
+            1 -> (last - col) * stride + row
+            2 -> (last - row) * stride + (last - col)
+            else -> col * stride + (last - row)
+        }
+    }
+
+    // Colors
+
+    // The weights of hqx in 10-bit fixed point:
+    private fun toYuv(rgb: Int): Int {
+        val r = (rgb shr 16) and 0xFF
+        val g = (rgb shr 8) and 0xFF
+        val b = rgb and 0xFF
+        val y = (r * 306 + g * 601 + b * 117) shr 10
+        val u = ((-r * 173 - g * 339 + b * 512) shr 10) + 128
+        val v = ((r * 512 - g * 429 - b * 83) shr 10) + 128
+        return (y shl 16) or (u shl 8) or v
+    }
+
+    // The thresholds of hqx:
+    private fun differ(a: Int, b: Int): Boolean {
+        if (a == b) {
+            return false
+        }
+        return abs(((a shr 16) and 0xFF) - ((b shr 16) and 0xFF)) > 48 ||
+                abs(((a shr 8) and 0xFF) - ((b shr 8) and 0xFF)) > 7 ||
+                abs((a and 0xFF) - (b and 0xFF)) > 6
+    }
+
+    private fun distance(a: Int, b: Int): Int {
+        return 48 * abs(((a shr 16) and 0xFF) - ((b shr 16) and 0xFF)) +
+                7 * abs(((a shr 8) and 0xFF) - ((b shr 8) and 0xFF)) +
+                6 * abs((a and 0xFF) - (b and 0xFF))
+    }
+
+    // Weighted average of up to three colors, the weights adding up to 1 shl shift:
+    private fun mix(a: Int, wa: Int, b: Int, wb: Int, c: Int, wc: Int, shift: Int): Int {
+        val rb = ((a and 0xFF00FF) * wa + (b and 0xFF00FF) * wb + (c and 0xFF00FF) * wc) ushr shift
+        val g = ((a and 0xFF00) * wa + (b and 0xFF00) * wb + (c and 0xFF00) * wc) ushr shift
+        return (rb and 0xFF00FF) or (g and 0xFF00)
+    }
+}
@@ -22,14 +22,14 @@ class ROM(private val showLoadProgress: Consumer<Int>, private val showErrorMsg:
     var failedSaveFile: Boolean = false
     var saveRamUpToDate: Boolean = true
     override lateinit var header: ShortArray
-    lateinit var rom: Array<ShortArray?>
-    lateinit var vrom: Array<ShortArray?>
-    lateinit var saveRam: ShortArray
+    lateinit var rom: Array<ByteArray?>
+    lateinit var vrom: Array<ByteArray?>
+    lateinit var saveRam: ByteArray
     lateinit var vromTile: Array<Array<Tile?>?>
     var romCount: Int = 0
     var vromCount: Int = 0
     var mirroring: Int = 0
-    lateinit var batteryRam: ShortArray
+    lateinit var batteryRam: ByteArray
     var trainer: Boolean = false
     var fourScreen: Boolean = false
     override var mapperType: Int = 0
@@ -53,11 +53,10 @@ class ROM(private val showLoadProgress: Consumer<Int>, private val showErrorMsg:
         }
 
         // Read header:
-        header = ShortArray(16)
-        System.arraycopy(b, 0, header, 0, 16)
+        header = ShortArray(16) { (b[it].toInt() and 0xFF).toShort() }
 
         // Check first four bytes:
-        val fcode = String(byteArrayOf(b[0].toByte(), b[1].toByte(), b[2].toByte(), b[3].toByte()))
+        val fcode = String(byteArrayOf(b[0], b[1], b[2], b[3]))
         if (fcode != "NES" + String(byteArrayOf(0x1A))) {
             System.out.println("Header is incorrect.");
             valid = false
@@ -68,7 +67,7 @@ class ROM(private val showLoadProgress: Consumer<Int>, private val showErrorMsg:
         romCount = header[4].toInt()
         vromCount = header[5] * 2 // Get the number of 4kB banks, not 8kB
         mirroring = (if ((header[6].toInt() and 1) != 0) 1 else 0)
-        saveRam = ShortArray(0)
+        saveRam = ByteArray(0)
         trainer = (header[6].toInt() and 4) != 0
         fourScreen = (header[6].toInt() and 8) != 0
         mapperType = (header[6].toInt() shr 4) or (header[7].toInt() and 0xF0)
@@ -91,8 +90,8 @@ class ROM(private val showLoadProgress: Consumer<Int>, private val showErrorMsg:
             mapperType = mapperType and 0xF
         }
 
-        rom = Array<ShortArray?>(romCount) { ShortArray(16384) }
-        vrom = Array<ShortArray?>(vromCount) { ShortArray(4096) }
+        rom = Array<ByteArray?>(romCount) { ByteArray(16384) }
+        vrom = Array<ByteArray?>(vromCount) { ByteArray(4096) }
         vromTile = Array<Array<Tile?>?>(vromCount) { arrayOfNulls<Tile>(256) }
 
         //try{
@@ -137,9 +136,9 @@ class ROM(private val showLoadProgress: Consumer<Int>, private val showErrorMsg:
                 tileIndex = i shr 4
                 leftOver = i % 16
                 if (leftOver < 8) {
-                    vromTile[v]!![tileIndex]!!.setScanline(leftOver, vrom[v]!![i], vrom[v]!![i + 8])
+                    vromTile[v]!![tileIndex]!!.setScanline(leftOver, vrom[v]!![i].toShort(), vrom[v]!![i + 8].toShort())
                 } else {
-                    vromTile[v]!![tileIndex]!!.setScanline(leftOver - 8, vrom[v]!![i - 8], vrom[v]!![i])
+                    vromTile[v]!![tileIndex]!!.setScanline(leftOver - 8, vrom[v]!![i - 8].toShort(), vrom[v]!![i].toShort())
                 }
             }
         }
@@ -160,11 +159,11 @@ class ROM(private val showLoadProgress: Consumer<Int>, private val showErrorMsg:
         return vromCount
     }
 
-    override fun getRomBank(bank: Int): ShortArray? {
+    override fun getRomBank(bank: Int): ByteArray? {
         return rom[bank]
     }
 
-    override fun getVromBank(bank: Int): ShortArray? {
+    override fun getVromBank(bank: Int): ByteArray? {
         return vrom[bank]
     }
 
@@ -201,7 +200,7 @@ class ROM(private val showLoadProgress: Consumer<Int>, private val showErrorMsg:
         }
     }
 
-    override fun saveBatteryRam(): ShortArray {
+    override fun saveBatteryRam(): ByteArray {
         return saveRam
     }
 
@@ -13,18 +13,56 @@
 
 package knes.emulator
 
+import knes.emulator.utils.Globals
+import java.util.concurrent.ForkJoinPool
+import java.util.concurrent.RecursiveAction
+
+/**
+ * Software scaling of 256x240 frames to 2 or 3 times their size, with the filters of the scaled screen modes and
+ * the pixel art upscalers of [PixelArtFilters], and the NTSC composite video filter of [NtscFilter].
+ *
+ * Each source row is first expanded into its top output row. The other output rows are copied from it, or derived
+ * from it in plain loops over whole rows, which the JIT can compile to vector instructions. Source rows whose
+ * `changed` entry is false are skipped and keep what the destination holds from earlier frames (see
+ * knes.emulator.ppu.PPU.scanlineChanged). The rows are split into bands that run on the common ForkJoin pool when
+ * it has more than one thread, see [Globals.enableParallelScaling].
+ */
 object Scale {
+    // Pixels are repeated:
+    const val FILTER_NORMAL = 0
+
+    // The bottom output row of every source row is darkened:
+    const val FILTER_SCANLINE = 1
+
+    // Alternate pixels are darkened and brightened by the amounts set with setFilterParams():
+    const val FILTER_RASTER = 2
+
+    // Scale2x at 2x, Scale3x at 3x:
+    const val FILTER_SCALE_X = 3
+
+    // Corners cut by diagonal edges are blended with their neighbors, straight edges stay sharp:
+    const val FILTER_EDGE_BLEND = 4
+
+    // Corners are blended along the edges found by xBR:
+    const val FILTER_XBR = 5
+
+    // Size of ntsc()'s output, 7 pixels for every 3 of the source and every row twice:
+    const val NTSC_WIDTH = NtscFilter.WIDTH
+    const val NTSC_HEIGHT = 480
+
+    private const val WIDTH = 256
+    private const val HEIGHT = 240
+
+    // A band is split in two while it has at least twice this many rows:
+    private const val BAND_ROWS = 16
+
+    private val ALL_ROWS = BooleanArray(HEIGHT) { true }
+
     private var brightenShift = 0
     private var brightenShiftMask = 0
     private var brightenCutoffMask = 0
     private var darkenShift = 0
     private var darkenShiftMask = 0
-    private const val si = 0
-    private const val di = 0
-    private const val di2 = 0
-    private const val `val` = 0
-    private const val x = 0
-    private const val y = 0
 
     fun setFilterParams(darkenDepth: Int, brightenDepth: Int) {
         when (darkenDepth) {
@@ -87,131 +125,171 @@ object Scale {
         }
     }
 
+    /**
+     * Scales the 256x240 frame in [src] by [factor], 2 or 3, into [dest] with one of the FILTER_ constants. The
+     * frame holds RGB colors, or indices into [palette] when given (see ScreenView.indexedColor).
+     */
     @JvmStatic
-    fun doScanlineScaling(src: IntArray, dest: IntArray, changed: BooleanArray) {
-        var di = 0
-        var di2 = 512
-        var `val`: Int
-        var max: Int
-
-        for (y in 0..239) {
-            if (changed[y]) {
-                max = (y + 1) shl 8
-                for (si in y shl 8 until max) {
-                    // get pixel value:
-
-                    `val` = src[si]
-
-                    // fill the two pixels on the current scanline:
-                    dest[di] = `val`
-                    dest[++di] = `val`
-
-                    // darken pixel:
-                    `val` -= ((`val` shr 2) and 0x003F3F3F)
-
-                    // fill the two pixels on the next scanline:
-                    dest[di2] = `val`
-                    dest[++di2] = `val`
-
-                    //si ++;
-                    di++
-                    di2++
-                }
-            } else {
-                di += 512
-                di2 += 512
+    @JvmOverloads
+    fun scale(filter: Int, factor: Int, src: IntArray, dest: IntArray, changed: BooleanArray, palette: IntArray? = null) {
+        require(factor == 2 || factor == 3) { "Unsupported scale factor: $factor" }
+        if (filter >= FILTER_SCALE_X) {
+            // Each pass completes for every row before the next, as the filters read the rows around their own:
+            val rows = if (PixelArtFilters.prepare(palette, filter, factor, dest)) ALL_ROWS else changed
+            runBands { first, end -> PixelArtFilters.convertRows(src, palette, rows, first, end) }
+            if (filter != FILTER_SCALE_X) {
+                runBands { first, end -> PixelArtFilters.measureRows(filter, rows, first, end) }
             }
-
-            // skip one scanline:
-            di += 512
-            di2 += 512
+            runBands { first, end -> PixelArtFilters.filterRows(filter, factor, dest, rows, first, end) }
+        } else {
+            runBands { first, end -> scaleRows(filter, factor, src, palette, dest, changed, first, end) }
         }
     }
 
+    /**
+     * Draws the 256x240 frame of palette indices in [src] (see ScreenView.indexedColor) as an NTSC TV shows it, into
+     * [dest] of NTSC_WIDTH x NTSC_HEIGHT pixels. The pixels have the channel order of PaletteTable's colors.
+     */
     @JvmStatic
-    fun doRasterScaling(src: IntArray, dest: IntArray, changed: BooleanArray) {
-        var di = 0
-        var di2 = 512
-
-        var max: Int
-        var col1: Int
-        var col2: Int
-        var col3: Int
-        var flag = 0
-
-        for (y in 0..239) {
-            if (changed[y]) {
-                max = (y + 1) shl 8
-                for (si in y shl 8 until max) {
-                    // get pixel value:
-
-                    col1 = src[si]
+    fun ntsc(src: IntArray, dest: IntArray, changed: BooleanArray) {
+        runBands { first, end -> NtscFilter.filterRows(src, dest, changed, first, end) }
+    }
 
-                    // fill the two pixels on the current scanline:
-                    dest[di] = col1
-                    dest[++di] = col1
+    @JvmStatic
+    fun doScanlineScaling(src: IntArray, dest: IntArray, changed: BooleanArray) {
+        scale(FILTER_SCANLINE, 2, src, dest, changed)
+    }
 
-                    // fill the two pixels on the next scanline:
-                    dest[di2] = col1
-                    dest[++di2] = col1
+    @JvmStatic
+    fun doRasterScaling(src: IntArray, dest: IntArray, changed: BooleanArray) {
+        scale(FILTER_RASTER, 2, src, dest, changed)
+    }
 
-                    // darken pixel:
-                    col2 = col1 - ((col1 shr darkenShift) and darkenShiftMask)
+    @JvmStatic
+    fun doNormalScaling(src: IntArray, dest: IntArray, changed: BooleanArray) {
+        scale(FILTER_NORMAL, 2, src, dest, changed)
+    }
 
-                    // brighten pixel:
-                    col3 = col1 +
-                            ((((0x00FFFFFF - col1) and brightenCutoffMask) shr brightenShift) and brightenShiftMask)
+    private fun runBands(rows: Rows) {
+        if (Globals.enableParallelScaling && ForkJoinPool.getCommonPoolParallelism() > 1) {
+            ForkJoinPool.commonPool().invoke(Band(rows, 0, HEIGHT))
+        } else {
+            rows.run(0, HEIGHT)
+        }
+    }
 
-                    dest[di + (512 and flag)] = col2
-                    dest[di + (512 and flag) - 1] = col2
-                    dest[di + 512 and (512 - flag)] = col3
-                    flag = 512 - flag
+    private fun scaleRows(
+        filter: Int,
+        factor: Int,
+        src: IntArray,
+        palette: IntArray?,
+        dest: IntArray,
+        changed: BooleanArray,
+        firstRow: Int,
+        endRow: Int
+    ) {
+        val stride = WIDTH * factor
+        for (y in firstRow until endRow) {
+            if (!changed[y]) {
+                continue
+            }
+            val top = y * factor * stride
+            val bottom = top + (factor - 1) * stride
+            expandRow(src, palette, y shl 8, dest, top, factor)
+            for (row in 1 until factor) {
+                System.arraycopy(dest, top, dest, top + row * stride, stride)
+            }
+            if (filter == FILTER_SCANLINE) {
+                darkenRow(dest, bottom, stride)
+            } else if (filter == FILTER_RASTER) {
+                rasterRows(src, palette, y shl 8, dest, top, bottom, factor)
+            }
+        }
+    }
 
-                    di++
-                    di2++
+    private fun expandRow(src: IntArray, palette: IntArray?, srcStart: Int, dest: IntArray, destStart: Int, factor: Int) {
+        var di = destStart
+        if (palette != null) {
+            for (si in srcStart until srcStart + WIDTH) {
+                val col = palette[src[si]]
+                for (i in 0 until factor) {
+                    dest[di + i] = col
                 }
-            } else {
-                di += 512
-                di2 += 512
+                di += factor
+            }
+        } else if (factor == 2) {
+            for (si in srcStart until srcStart + WIDTH) {
+                val col = src[si]
+                dest[di] = col
+                dest[di + 1] = col
+                di += 2
             }
+        } else {
+            for (si in srcStart until srcStart + WIDTH) {
+                val col = src[si]
+                dest[di] = col
+                dest[di + 1] = col
+                dest[di + 2] = col
+                di += 3
+            }
+        }
+    }
 
-            // skip one scanline:
-            di += 512
-            di2 += 512
+    private fun darkenRow(dest: IntArray, start: Int, length: Int) {
+        for (i in start until start + length) {
+            val col = dest[i]
+            dest[i] = col - ((col shr 2) and 0x003F3F3F)
         }
     }
 
-    @JvmStatic
-    fun doNormalScaling(src: IntArray, dest: IntArray, changed: BooleanArray) {
-        var di = 0
-        var di2 = 512
-        var `val`: Int
-        var max: Int
-
-        for (y in 0..239) {
-            if (changed[y]) {
-                max = (y + 1) shl 8
-                for (si in y shl 8 until max) {
-                    // get pixel value:
-
-                    `val` = src[si]
-
-                    // fill the two pixels on the current scanline:
-                    dest[di++] = `val`
-                    dest[di++] = `val`
-
-                    // fill the two pixels on the next scanline:
-                    dest[di2++] = `val`
-                    dest[di2++] = `val`
-                }
-            } else {
-                di += 512
-                di2 += 512
+    // Even pixels get a darkened top row and a brightened last pixel in the bottom row, odd pixels the opposite:
+    private fun rasterRows(src: IntArray, palette: IntArray?, srcStart: Int, dest: IntArray, top: Int, bottom: Int, factor: Int) {
+        var x = 0
+        while (x < WIDTH) {
+            val even = x * factor
+            val odd = even + factor
+            val col = if (palette != null) palette[src[srcStart + x]] else src[srcStart + x]
+            val oddCol = if (palette != null) palette[src[srcStart + x + 1]] else src[srcStart + x + 1]
+            val col2 = darken(col)
+            val col3 = brighten(col)
+            val oddCol2 = darken(oddCol)
+            val oddCol3 = brighten(oddCol)
+
+            dest[top + even] = col2
+            dest[top + even + 1] = col2
+            dest[top + odd + factor - 1] = oddCol3
+            dest[bottom + odd] = oddCol2
+            dest[bottom + odd + 1] = oddCol2
+            dest[bottom + even + factor - 1] = col3
+            if (factor == 3) {
+                dest[top + even + 2] = col2
+                dest[bottom + odd + 2] = oddCol2
             }
+            x += 2
+        }
+    }
 
-            // skip one scanline:
-            di += 512
-            di2 += 512
+    private fun darken(col: Int): Int {
+        return col - ((col shr darkenShift) and darkenShiftMask)
+    }
+
+    private fun brighten(col: Int): Int {
+        return col + ((((0x00FFFFFF - col) and brightenCutoffMask) shr brightenShift) and brightenShiftMask)
+    }
+
+    // Work on the source rows from first up to end:
+    private fun interface Rows {
+        fun run(first: Int, end: Int)
+    }
+
+    private class Band(private val rows: Rows, private val firstRow: Int, private val endRow: Int) : RecursiveAction() {
+        override fun compute() {
+            if (endRow - firstRow < 2 * BAND_ROWS) {
+                rows.run(firstRow, endRow)
+            } else {
+                val middle = (firstRow + endRow) ushr 1
+                invokeAll(Band(rows, firstRow, middle), Band(rows, middle, endRow))
+            }
         }
     }
-}
\ No newline at end of file
+}
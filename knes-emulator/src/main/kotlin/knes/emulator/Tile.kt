@@ -17,93 +17,120 @@ import knes.emulator.utils.Misc
 import java.io.File
 import java.io.FileWriter
 
+/**
+ * One 8x8 pattern table tile.
+ *
+ * The pixels are kept packed, 2 bits each, so a tile is a few dozen bytes instead of an IntArray(64). Every row
+ * is a 16-bit value with pixel x in bits 2x and 2x + 1 (see [getRow]); rows 0-3 are stored in one long and rows
+ * 4-7 in another. Tiles are shared: mappers copy references to the ROM's tiles into the PPU's pattern table.
+ * Flipped sprites are read through [flipRow] and a reversed row index rather than stored flipped copies.
+ */
 class Tile {
-    // Tile data:
-    @JvmField
-    var pix: IntArray
-    var fbIndex: Int = 0
-    var tIndex: Int = 0
-    var x: Int = 0
-    var y: Int = 0
-    var w: Int = 0
-    var h: Int = 0
-    var incX: Int = 0
-    var incY: Int = 0
-    var palIndex: Int = 0
-    var tpri: Int = 0
-    var c: Int = 0
-    var initialized: Boolean = false
-    @JvmField
-    var opaque: BooleanArray = BooleanArray(8)
+    // Packed pixels, 16 bits per row:
+    private var rows0: Long = 0
+    private var rows1: Long = 0
 
-    init {
-        pix = IntArray(64)
-    }
+    // Bit y set when row y has no transparent pixel:
+    private var opaqueRows = 0
+
+    var initialized: Boolean = false
 
     fun setBuffer(scanline: ShortArray) {
-        y = 0
-        while (y < 8) {
+        for (y in 0..7) {
             setScanline(y, scanline[y], scanline[y + 8])
-            y++
         }
     }
 
+    /**
+     * Decodes one row from its two bit planes: [b1] holds the low bit of every pixel and [b2] the high bit,
+     * leftmost pixel first.
+     */
     fun setScanline(sline: Int, b1: Short, b2: Short) {
         initialized = true
-        tIndex = sline shl 3
-        x = 0
-        while (x < 8) {
-            pix[tIndex + x] = ((b1.toInt() shr (7 - x)) and 1) + (((b2.toInt() shr (7 - x)) and 1) shl 1)
-            if (pix[tIndex + x] == 0) {
-                opaque[sline] = false
-            }
-            x++
+        setRow(sline, SPREAD[b1.toInt() and 0xFF] or (SPREAD[b2.toInt() and 0xFF] shl 1))
+    }
+
+    /**
+     * Returns row [y] with pixel x in bits 2x and 2x + 1.
+     */
+    fun getRow(y: Int): Int {
+        val rows = if (y < 4) rows0 else rows1
+        return (rows ushr ((y and 3) shl 4)).toInt() and 0xFFFF
+    }
+
+    fun getPixel(x: Int, y: Int): Int {
+        return (getRow(y) ushr (x shl 1)) and 3
+    }
+
+    fun isOpaque(y: Int): Boolean {
+        return (opaqueRows and (1 shl y)) != 0
+    }
+
+    /**
+     * Returns a tile with the same pixels, which later changes to this one don't affect.
+     */
+    fun copy(): Tile {
+        val tile = Tile()
+        tile.rows0 = rows0
+        tile.rows1 = rows1
+        tile.opaqueRows = opaqueRows
+        tile.initialized = initialized
+        return tile
+    }
+
+    private fun setRow(y: Int, row: Int) {
+        val shift = (y and 3) shl 4
+        val mask = (0xFFFFL shl shift).inv()
+        if (y < 4) {
+            rows0 = (rows0 and mask) or (row.toLong() shl shift)
+        } else {
+            rows1 = (rows1 and mask) or (row.toLong() shl shift)
+        }
+
+        // A pixel is transparent when both of its bits are clear:
+        opaqueRows = if (((row or (row ushr 1)) and 0x5555) == 0x5555) {
+            opaqueRows or (1 shl y)
+        } else {
+            opaqueRows and (1 shl y).inv()
         }
     }
 
     fun renderSimple(dx: Int, dy: Int, fBuffer: IntArray, palAdd: Int, palette: IntArray) {
-        tIndex = 0
-        fbIndex = (dy shl 8) + dx
-        y = 8
-        while (y != 0) {
-            x = 8
-            while (x != 0) {
-                palIndex = pix[tIndex]
+        var fbIndex = (dy shl 8) + dx
+        for (y in 0..7) {
+            var row = getRow(y)
+            for (x in 0..7) {
+                val palIndex = row and 3
                 if (palIndex != 0) {
                     fBuffer[fbIndex] = palette[palIndex + palAdd]
                 }
                 fbIndex++
-                tIndex++
-                x--
+                row = row ushr 2
             }
-            fbIndex -= 8
-            fbIndex += 256
-            y--
+            fbIndex += 256 - 8
         }
     }
 
     fun renderSmall(dx: Int, dy: Int, buffer: IntArray, palAdd: Int, palette: IntArray) {
-        tIndex = 0
-        fbIndex = (dy shl 8) + dx
-        y = 0
-        while (y < 4) {
-            x = 0
-            while (x < 4) {
-                c = (palette[pix[tIndex] + palAdd] shr 2) and 0x003F3F3F
-                c += (palette[pix[tIndex + 1] + palAdd] shr 2) and 0x003F3F3F
-                c += (palette[pix[tIndex + 8] + palAdd] shr 2) and 0x003F3F3F
-                c += (palette[pix[tIndex + 9] + palAdd] shr 2) and 0x003F3F3F
+        var fbIndex = (dy shl 8) + dx
+        for (y in 0 until 4) {
+            for (x in 0 until 4) {
+                var c = (palette[getPixel(2 * x, 2 * y) + palAdd] shr 2) and 0x003F3F3F
+                c += (palette[getPixel(2 * x + 1, 2 * y) + palAdd] shr 2) and 0x003F3F3F
+                c += (palette[getPixel(2 * x, 2 * y + 1) + palAdd] shr 2) and 0x003F3F3F
+                c += (palette[getPixel(2 * x + 1, 2 * y + 1) + palAdd] shr 2) and 0x003F3F3F
                 buffer[fbIndex] = c
                 fbIndex++
-                tIndex += 2
-                x++
             }
-            tIndex += 8
             fbIndex += 252
-            y++
         }
     }
 
+    /**
+     * Draws the tile as a sprite at ([dx], [dy]), limited to the area from ([srcx1_in], [srcy1_in]) up to but not
+     * including ([srcx2_in], [srcy2_in]) relative to the tile's position, and to the screen. A pixel is drawn when it
+     * is not transparent and [pri] does not exceed the sprite priority already in [priTable] for that position.
+     */
     fun render(
         srcx1_in: Int,
         srcy1_in: Int,
@@ -127,9 +154,6 @@ class Tile {
             return
         }
 
-        w = srcx2 - srcx1
-        h = srcy2 - srcy1
-
         if (dx < 0) {
             srcx1 -= dx
         }
@@ -144,109 +168,35 @@ class Tile {
             srcy2 = 240 - dy
         }
 
-        if (!flipHorizontal && !flipVertical) {
-            fbIndex = (dy shl 8) + dx
-            tIndex = 0
-            y = 0
-            while (y < 8) {
-                x = 0
-                while (x < 8) {
-                    if (x >= srcx1 && x < srcx2 && y >= srcy1 && y < srcy2) {
-                        palIndex = pix[tIndex]
-                        tpri = priTable[fbIndex]
-                        if (palIndex != 0 && pri <= (tpri and 0xFF)) {
-                            fBuffer[fbIndex] = palette[palIndex + palAdd]
-                            tpri = (tpri and 0xF00) or pri
-                            priTable[fbIndex] = tpri
-                        }
-                    }
-                    fbIndex++
-                    tIndex++
-                    x++
-                }
-                fbIndex -= 8
-                fbIndex += 256
-                y++
-            }
-        } else if (flipHorizontal && !flipVertical) {
-            fbIndex = (dy shl 8) + dx
-            tIndex = 7
-            y = 0
-            while (y < 8) {
-                x = 0
-                while (x < 8) {
-                    if (x >= srcx1 && x < srcx2 && y >= srcy1 && y < srcy2) {
-                        palIndex = pix[tIndex]
-                        tpri = priTable[fbIndex]
-                        if (palIndex != 0 && pri <= (tpri and 0xFF)) {
-                            fBuffer[fbIndex] = palette[palIndex + palAdd]
-                            tpri = (tpri and 0xF00) or pri
-                            priTable[fbIndex] = tpri
-                        }
-                    }
-                    fbIndex++
-                    tIndex--
-                    x++
-                }
-                fbIndex -= 8
-                fbIndex += 256
-                tIndex += 16
-                y++
+        // The clipping is resolved to loop bounds, so the pixel loop only tests for transparency and priority:
+        val x1 = maxOf(srcx1, 0)
+        val x2 = minOf(srcx2, 8)
+        val y2 = minOf(srcy2, 8)
+        for (y in maxOf(srcy1, 0) until y2) {
+            var row = getRow(if (flipVertical) 7 - y else y)
+            if (flipHorizontal) {
+                row = flipRow(row)
             }
-        } else if (flipVertical && !flipHorizontal) {
-            fbIndex = (dy shl 8) + dx
-            tIndex = 56
-            y = 0
-            while (y < 8) {
-                x = 0
-                while (x < 8) {
-                    if (x >= srcx1 && x < srcx2 && y >= srcy1 && y < srcy2) {
-                        palIndex = pix[tIndex]
-                        tpri = priTable[fbIndex]
-                        if (palIndex != 0 && pri <= (tpri and 0xFF)) {
-                            fBuffer[fbIndex] = palette[palIndex + palAdd]
-                            tpri = (tpri and 0xF00) or pri
-                            priTable[fbIndex] = tpri
-                        }
-                    }
-                    fbIndex++
-                    tIndex++
-                    x++
-                }
-                fbIndex -= 8
-                fbIndex += 256
-                tIndex -= 16
-                y++
-            }
-        } else {
-            fbIndex = (dy shl 8) + dx
-            tIndex = 63
-            y = 0
-            while (y < 8) {
-                x = 0
-                while (x < 8) {
-                    if (x >= srcx1 && x < srcx2 && y >= srcy1 && y < srcy2) {
-                        palIndex = pix[tIndex]
-                        tpri = priTable[fbIndex]
-                        if (palIndex != 0 && pri <= (tpri and 0xFF)) {
-                            fBuffer[fbIndex] = palette[palIndex + palAdd]
-                            tpri = (tpri and 0xF00) or pri
-                            priTable[fbIndex] = tpri
-                        }
+            row = row ushr (x1 shl 1)
+
+            var fbIndex = ((dy + y) shl 8) + dx + x1
+            for (x in x1 until x2) {
+                val palIndex = row and 3
+                if (palIndex != 0) {
+                    val tpri = priTable[fbIndex]
+                    if (pri <= (tpri and 0xFF)) {
+                        fBuffer[fbIndex] = palette[palIndex + palAdd]
+                        priTable[fbIndex] = (tpri and 0xF00) or pri
                     }
-                    fbIndex++
-                    tIndex--
-                    x++
                 }
-                fbIndex -= 8
-                fbIndex += 256
-                y++
+                fbIndex++
+                row = row ushr 2
             }
         }
     }
 
     fun isTransparent(x: Int, y: Int): Boolean {
-        return (pix[(y shl 3) + x] == 0)
+        return getPixel(x, y) == 0
     }
 
     fun dumpData(file: String) {
@@ -256,7 +206,7 @@ class Tile {
 
             for (y in 0..7) {
                 for (x in 0..7) {
-                    fWriter.write(Misc.hex8(pix[(y shl 3) + x]).substring(1))
+                    fWriter.write(Misc.hex8(getPixel(x, y)).substring(1))
                 }
                 fWriter.write("\r\n")
             }
@@ -273,20 +223,50 @@ class Tile {
     fun stateSave(buf: ByteBuffer) {
         buf.putBoolean(initialized)
         for (i in 0..7) {
-            buf.putBoolean(opaque[i])
+            buf.putBoolean(isOpaque(i))
         }
         for (i in 0..63) {
-            buf.putByte(pix[i].toByte().toShort())
+            buf.putByte(getPixel(i and 7, i shr 3).toShort())
         }
     }
 
     fun stateLoad(buf: ByteBuffer) {
         initialized = buf.readBoolean()
+
+        // The opaque flags are derived from the pixels:
         for (i in 0..7) {
-            opaque[i] = buf.readBoolean()
+            buf.readBoolean()
         }
-        for (i in 0..63) {
-            pix[i] = buf.readByte().toInt()
+        for (y in 0..7) {
+            var row = 0
+            for (x in 0..7) {
+                row = row or ((buf.readByte().toInt() and 3) shl (x shl 1))
+            }
+            setRow(y, row)
+        }
+    }
+
+    companion object {
+        // Bits 7..0 of a bit plane byte moved to bits 0, 2, .., 14, i.e. to the low bit of pixels 0..7:
+        private val SPREAD = IntArray(256) { b ->
+            var spread = 0
+            for (x in 0..7) {
+                spread = spread or (((b shr (7 - x)) and 1) shl (x shl 1))
+            }
+            spread
+        }
+
+        // The four 2-bit pixels of a byte in reverse order:
+        private val REVERSE = IntArray(256) { b ->
+            ((b and 3) shl 6) or (((b shr 2) and 3) shl 4) or (((b shr 4) and 3) shl 2) or ((b shr 6) and 3)
+        }
+
+        /**
+         * Mirrors a row as returned by [getRow] horizontally.
+         */
+        @JvmStatic
+        fun flipRow(row: Int): Int {
+            return (REVERSE[row and 0xFF] shl 8) or REVERSE[row ushr 8]
         }
     }
-}
\ No newline at end of file
+}
@@ -16,17 +16,23 @@ package knes.emulator.cpu
 import knes.emulator.ByteBuffer
 import knes.emulator.CpuInfo
 import knes.emulator.Memory
+import knes.emulator.mappers.MemoryMapper
 import knes.emulator.memory.MemoryAccess
+import knes.emulator.memory.MemoryPageTable
 import knes.emulator.papu.PAPUClockFrame
 import knes.emulator.ppu.PPUCycles
 import knes.emulator.utils.Globals
+import java.util.concurrent.ConcurrentLinkedQueue
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.locks.LockSupport
 
 class CPU // Constructor:
     (private val papuClockFrame: PAPUClockFrame, private val ppucycles: PPUCycles) : Runnable, CPUIIrqRequester {
     var myThread: Thread? = null
 
-    private var mmap: MemoryAccess? = null
-    private var mem: ShortArray? = null
+    private var mmap: MemoryPageTable? = null
+    private var mem: ByteArray? = null
 
     var REG_ACC_NEW: Int = 0
     var REG_X_NEW: Int = 0
@@ -45,26 +51,41 @@ class CPU // Constructor:
     private var F_SIGN_NEW = 0
 
     // Interrupt notification:
+    @Volatile
     var irqRequested: Boolean = false
     private var irqType = 0
 
-    // Op/Inst Data:
-    private var opdata: IntArray? = null
-
     // Misc vars:
     var cyclesToHalt: Int = 0
+    @Volatile
     var stopRunning: Boolean = false
     var crash: Boolean = false
 
+    // Set by NES.runFrame(), makes the PPU stop the CPU when VBlank starts:
+    var stopAtVBlank: Boolean = false
+
+    // PAL cycle stretching, carried over between calls to emulate():
+    private var palCnt = 0
+
+    // Polling loops that emulate() fast-forwards:
+    private val idleLoop = IdleLoop()
+
+    // Commands for the emulation thread, run between calls to emulate(). See post() and execute():
+    private val commands = ConcurrentLinkedQueue<Runnable>()
+
+    // Set by pause(): the emulation thread stays alive but only runs commands until beginExecution():
+    @Volatile
+    private var paused = false
+
+    // Set by endExecution() to end the emulation thread:
+    @Volatile
+    private var shutdown = false
+
 
     // Initialize:
     fun init(
         cpuMemoryAccess: Memory
     ) {
-        // Get Op data:
-
-        opdata = CpuInfo.opData
-
         // Get Memory Access:
         this.mem = cpuMemoryAccess.mem
         // Reset crash flag:
@@ -145,14 +166,20 @@ class CPU // Constructor:
         F_BRK_NEW = 1
 
         cyclesToHalt = 0
+        palCnt = 0
     }
 
     @Synchronized
     fun beginExecution() {
         if (myThread != null && myThread!!.isAlive()) {
-            endExecution()
+            // The thread is kept while paused, it only has to continue:
+            paused = false
+            LockSupport.unpark(myThread)
+            return
         }
 
+        paused = false
+        shutdown = false
         myThread = Thread(this)
         myThread!!.start()
         myThread!!.setPriority(Thread.MIN_PRIORITY)
@@ -163,7 +190,9 @@ class CPU // Constructor:
         //System.out.println("* Attempting to stop CPU thread.");
         if (myThread != null && myThread!!.isAlive()) {
             try {
+                shutdown = true
                 stopRunning = true
+                LockSupport.unpark(myThread)
                 myThread!!.join()
             } catch (ie: InterruptedException) {
                 //System.out.println("** Unable to stop CPU thread!");
@@ -174,12 +203,90 @@ class CPU // Constructor:
         }
     }
 
+    /**
+     * Stops emulating at the next instruction boundary. Returns once the emulation thread is idle, it is
+     * kept waiting for commands until [beginExecution] continues the emulation.
+     */
+    fun pause() {
+        execute(Runnable { paused = true })
+    }
+
     val isRunning: Boolean
-        get() = (myThread != null && myThread!!.isAlive())
+        get() = (myThread != null && myThread!!.isAlive() && !paused)
+
+    // Whether the emulation thread exists, also while paused; it runs posted commands until endExecution():
+    val hasEmulationThread: Boolean
+        get() = myThread?.isAlive() == true
+
+    /**
+     * Queues a command for the emulation thread. It runs between two instructions, at the latest once the
+     * current frame is complete, with the CPU registers stored in their fields. Commands run in the order they
+     * were posted, also while the emulation is paused. Can be called from any thread.
+     */
+    fun post(command: Runnable) {
+        commands.offer(command)
+        val thread = myThread
+        if (thread != null && thread.isAlive()) {
+            stopRunning = true
+            LockSupport.unpark(thread)
+        }
+    }
+
+    /**
+     * Runs the command on the emulation thread like [post] and waits for it to complete. Without an emulation
+     * thread, or when called from it, the command runs right away.
+     */
+    fun execute(command: Runnable) {
+        val thread = myThread
+        if (thread == null || !thread.isAlive() || thread == Thread.currentThread()) {
+            command.run()
+            return
+        }
+
+        val done = CountDownLatch(1)
+        post(Runnable {
+            try {
+                command.run()
+            } finally {
+                done.countDown()
+            }
+        })
+        while (!done.await(100, TimeUnit.MILLISECONDS)) {
+            if (!thread.isAlive()) {
+                // Ended before getting to the command:
+                runCommands()
+            }
+        }
+    }
 
     override fun run() {
         initRun()
-        emulate()
+        while (!shutdown) {
+            runCommands()
+            if (shutdown) {
+                break
+            }
+            if (paused) {
+                LockSupport.park(this)
+                continue
+            }
+
+            // Returns at VBlank at the latest, so that a command posted while emulate() starts waits one frame at most:
+            stopAtVBlank = true
+            emulate()
+            stopAtVBlank = false
+
+            if (crash) {
+                paused = true
+            }
+        }
+    }
+
+    private fun runCommands() {
+        while (true) {
+            val command = commands.poll() ?: break
+            command.run()
+        }
     }
 
     @Synchronized
@@ -189,6 +296,16 @@ class CPU // Constructor:
 
     // Emulates cpu instructions until stopped.
     fun emulate() {
+        emulate(Long.MAX_VALUE, Long.MAX_VALUE)
+    }
+
+    // Emulates cpu instructions until stopped, until the given number of instructions has run or until at least
+    // the given number of cycles has passed, whichever comes first. Returns the number of cycles emulated.
+    //
+    // This is the hottest method of the emulator. The registers live in locals for the duration of the
+    // loop, so it is kept as a single method, with rarely taken paths (interrupts, crashes) moved out.
+    // HotSpot does not JIT-compile methods above 8000 bytes of bytecode, CpuMethodSizeTest guards that.
+    fun emulate(maxInstructions: Long, maxCycles: Long): Long {
         // knes.emulator.NES Memory
         // (when memory mappers switch ROM banks
         // this will be written to, no need to
@@ -202,23 +319,31 @@ class CPU // Constructor:
         val REG_STATUS = REG_STATUS_NEW
         var REG_PC = REG_PC_NEW
 
-        // Status flags:
-        var F_CARRY = F_CARRY_NEW
+        // Status flags. N, Z, C and V are evaluated lazily: instructions store the value the flag is derived from,
+        // and the flag itself is only extracted when a branch, PHP, BRK or an interrupt reads it:
+        // - F_CARRY: carry is bit 8, e.g. the unmasked result of ADC or ASL.
+        // - F_ZERO: zero flag is set when this is 0, i.e. the last result.
+        // - F_OVERFLOW: overflow is bit 7, e.g. (A ^ result) & (operand ^ result) for ADC.
+        // - F_SIGN: negative flag is bit 7, i.e. the last result.
+        var F_CARRY = F_CARRY_NEW shl 8
         var F_ZERO = (if (F_ZERO_NEW == 0) 1 else 0)
         var F_INTERRUPT = F_INTERRUPT_NEW
         var F_DECIMAL = F_DECIMAL_NEW
         var F_NOTUSED = F_NOTUSED_NEW
         var F_BRK = F_BRK_NEW
-        var F_OVERFLOW = F_OVERFLOW_NEW
-        var F_SIGN = F_SIGN_NEW
+        var F_OVERFLOW = F_OVERFLOW_NEW shl 7
+        var F_SIGN = F_SIGN_NEW shl 7
 
 
         // Misc. variables
         var opinf: Int
+        val opdata = OP_DATA
         var opaddr: Int
         var addrMode: Int
         var addr = 0
-        var palCnt = 0
+        var palCnt = this.palCnt
+        var instructionsLeft = maxInstructions
+        var cyclesLeft = maxCycles
         var cycleCount: Int
         var cycleAdd: Int
         var temp: Int
@@ -226,7 +351,9 @@ class CPU // Constructor:
 
         val palEmu = Globals.palEmulation
         val emulateSound = Globals.enableSound
-        val asApplet = Globals.appletMode
+        // PAL cycle stretching makes iterations differ:
+        val skipIdleLoops = Globals.enableIdleLoopSkipping && !palEmu
+        idleLoop.reset()
         stopRunning = false
 
         while (true) {
@@ -234,46 +361,18 @@ class CPU // Constructor:
 
             // Check interrupts:
             if (irqRequested) {
-                temp =
-                    (F_CARRY) or
-                            ((if (F_ZERO == 0) 1 else 0) shl 1) or
-                            (F_INTERRUPT shl 2) or
-                            (F_DECIMAL shl 3) or
-                            (F_BRK shl 4) or
-                            (F_NOTUSED shl 5) or
-                            (F_OVERFLOW shl 6) or
-                            (F_SIGN shl 7)
+                temp = packStatus(F_CARRY, F_ZERO, F_INTERRUPT, F_DECIMAL, F_BRK, F_NOTUSED, F_OVERFLOW, F_SIGN)
 
                 REG_PC_NEW = REG_PC
                 F_INTERRUPT_NEW = F_INTERRUPT
-                when (irqType) {
-                    0 -> {
-                        // Normal IRQ:
-                        if (F_INTERRUPT != 0) {
-                            System.out.println("Interrupt was masked.");
-                            break
-                        }
-                        doIrq(temp)
-                    }
-
-                    1 -> {
-                        // NMI:
-                        doNonMaskableInterrupt(temp)
-                    }
-
-                    2 -> {
-                        // Reset:
-                        doResetInterrupt()
-                    }
-                }
-
+                F_BRK_NEW = F_BRK
+                serviceInterrupt(temp)
                 REG_PC = REG_PC_NEW
                 F_INTERRUPT = F_INTERRUPT_NEW
                 F_BRK = F_BRK_NEW
-                irqRequested = false
             }
 
-            opinf = opdata!![mmap!!.load(REG_PC + 1).toInt()]
+            opinf = opdata[mmap!!.load(REG_PC + 1).toInt()]
             cycleCount = (opinf shr 24)
             cycleAdd = 0
 
@@ -375,7 +474,7 @@ class CPU // Constructor:
                     addr = load16bit(opaddr + 2) // Find op
                     if (addr < 0x1FFF) {
                         addr =
-                            mem!![addr] + (mem!![(addr and 0xFF00) or (((addr and 0xFF) + 1) and 0xFF)].toInt() shl 8) // Read from address given in op
+                            (mem!![addr].toInt() and 0xFF) + ((mem!![(addr and 0xFF00) or (((addr and 0xFF) + 1) and 0xFF)].toInt() and 0xFF) shl 8) // Read from address given in op
                     } else {
                         addr = mmap!!.load(addr) + (mmap!!.load((addr and 0xFF00) or (((addr and 0xFF) + 1) and 0xFF))
                             .toInt() shl 8)
@@ -399,11 +498,11 @@ class CPU // Constructor:
                     // *******
 
                     // Add with carry.
-                    temp = REG_ACC + load(addr) + F_CARRY
-                    F_OVERFLOW =
-                        (if (((REG_ACC xor load(addr)) and 0x80) == 0 && (((REG_ACC xor temp) and 0x80)) != 0) 1 else 0)
-                    F_CARRY = (if (temp > 255) 1 else 0)
-                    F_SIGN = (temp shr 7) and 1
+                    add = load(addr)
+                    temp = REG_ACC + add + ((F_CARRY shr 8) and 1)
+                    F_OVERFLOW = (REG_ACC xor add).inv() and (REG_ACC xor temp)
+                    F_CARRY = temp
+                    F_SIGN = temp
                     F_ZERO = temp and 0xFF
                     REG_ACC = (temp and 255)
                     cycleCount += cycleAdd
@@ -416,7 +515,7 @@ class CPU // Constructor:
 
                     // AND memory with accumulator.
                     REG_ACC = REG_ACC and load(addr)
-                    F_SIGN = (REG_ACC shr 7) and 1
+                    F_SIGN = REG_ACC
                     F_ZERO = REG_ACC
                     //REG_ACC = temp;
                     if (addrMode != 11) cycleCount += cycleAdd // PostIdxInd = 11
@@ -430,15 +529,14 @@ class CPU // Constructor:
                     // Shift left one bit
                     if (addrMode == 4) { // ADDR_ACC = 4
 
-                        F_CARRY = (REG_ACC shr 7) and 1
-                        REG_ACC = (REG_ACC shl 1) and 255
-                        F_SIGN = (REG_ACC shr 7) and 1
+                        F_CARRY = REG_ACC shl 1
+                        REG_ACC = F_CARRY and 255
+                        F_SIGN = REG_ACC
                         F_ZERO = REG_ACC
                     } else {
-                        temp = load(addr)
-                        F_CARRY = (temp shr 7) and 1
-                        temp = (temp shl 1) and 255
-                        F_SIGN = (temp shr 7) and 1
+                        F_CARRY = load(addr) shl 1
+                        temp = F_CARRY and 255
+                        F_SIGN = temp
                         F_ZERO = temp
                         write(addr, temp.toShort())
                     }
@@ -450,7 +548,7 @@ class CPU // Constructor:
                     // *******
 
                     // Branch on carry clear
-                    if (F_CARRY == 0) {
+                    if ((F_CARRY and 0x100) == 0) {
                         cycleCount += (if ((opaddr and 0xFF00) != (addr and 0xFF00)) 2 else 1)
                         REG_PC = addr
                     }
@@ -462,7 +560,7 @@ class CPU // Constructor:
                     // *******
 
                     // Branch on carry set
-                    if (F_CARRY == 1) {
+                    if ((F_CARRY and 0x100) != 0) {
                         cycleCount += (if ((opaddr and 0xFF00) != (addr and 0xFF00)) 2 else 1)
                         REG_PC = addr
                     }
@@ -485,8 +583,8 @@ class CPU // Constructor:
                     // * BIT *
                     // *******
                     temp = load(addr)
-                    F_SIGN = (temp shr 7) and 1
-                    F_OVERFLOW = (temp shr 6) and 1
+                    F_SIGN = temp
+                    F_OVERFLOW = temp shl 1
                     temp = temp and REG_ACC
                     F_ZERO = temp
                 }
@@ -497,7 +595,7 @@ class CPU // Constructor:
                     // *******
 
                     // Branch on negative result
-                    if (F_SIGN == 1) {
+                    if ((F_SIGN and 0x80) != 0) {
                         cycleCount++
                         REG_PC = addr
                     }
@@ -521,7 +619,7 @@ class CPU // Constructor:
                     // *******
 
                     // Branch on positive result
-                    if (F_SIGN == 0) {
+                    if ((F_SIGN and 0x80) == 0) {
                         cycleCount += (if ((opaddr and 0xFF00) != (addr and 0xFF00)) 2 else 1)
                         REG_PC = addr
                     }
@@ -537,14 +635,7 @@ class CPU // Constructor:
                     F_BRK = 1
 
                     push(
-                        (F_CARRY) or
-                                ((if (F_ZERO == 0) 1 else 0) shl 1) or
-                                (F_INTERRUPT shl 2) or
-                                (F_DECIMAL shl 3) or
-                                (F_BRK shl 4) or
-                                (F_NOTUSED shl 5) or
-                                (F_OVERFLOW shl 6) or
-                                (F_SIGN shl 7)
+                        packStatus(F_CARRY, F_ZERO, F_INTERRUPT, F_DECIMAL, F_BRK, F_NOTUSED, F_OVERFLOW, F_SIGN)
                     )
 
                     F_INTERRUPT = 1
@@ -559,7 +650,7 @@ class CPU // Constructor:
                     // *******
 
                     // Branch on overflow clear
-                    if (F_OVERFLOW == 0) {
+                    if ((F_OVERFLOW and 0x80) == 0) {
                         cycleCount += (if ((opaddr and 0xFF00) != (addr and 0xFF00)) 2 else 1)
                         REG_PC = addr
                     }
@@ -571,7 +662,7 @@ class CPU // Constructor:
                     // *******
 
                     // Branch on overflow set
-                    if (F_OVERFLOW == 1) {
+                    if ((F_OVERFLOW and 0x80) != 0) {
                         cycleCount += (if ((opaddr and 0xFF00) != (addr and 0xFF00)) 2 else 1)
                         REG_PC = addr
                     }
@@ -620,8 +711,8 @@ class CPU // Constructor:
 
                     // Compare memory and accumulator:
                     temp = REG_ACC - load(addr)
-                    F_CARRY = (if (temp >= 0) 1 else 0)
-                    F_SIGN = (temp shr 7) and 1
+                    F_CARRY = temp + 0x100
+                    F_SIGN = temp
                     F_ZERO = temp and 0xFF
                     cycleCount += cycleAdd
                 }
@@ -633,8 +724,8 @@ class CPU // Constructor:
 
                     // Compare memory and index X:
                     temp = REG_X - load(addr)
-                    F_CARRY = (if (temp >= 0) 1 else 0)
-                    F_SIGN = (temp shr 7) and 1
+                    F_CARRY = temp + 0x100
+                    F_SIGN = temp
                     F_ZERO = temp and 0xFF
                 }
 
@@ -645,8 +736,8 @@ class CPU // Constructor:
 
                     // Compare memory and index Y:
                     temp = REG_Y - load(addr)
-                    F_CARRY = (if (temp >= 0) 1 else 0)
-                    F_SIGN = (temp shr 7) and 1
+                    F_CARRY = temp + 0x100
+                    F_SIGN = temp
                     F_ZERO = temp and 0xFF
                 }
 
@@ -657,7 +748,7 @@ class CPU // Constructor:
 
                     // Decrement memory by one:
                     temp = (load(addr) - 1) and 0xFF
-                    F_SIGN = (temp shr 7) and 1
+                    F_SIGN = temp
                     F_ZERO = temp
                     write(addr, temp.toShort())
                 }
@@ -669,7 +760,7 @@ class CPU // Constructor:
 
                     // Decrement index X by one:
                     REG_X = (REG_X - 1) and 0xFF
-                    F_SIGN = (REG_X shr 7) and 1
+                    F_SIGN = REG_X
                     F_ZERO = REG_X
                 }
 
@@ -680,7 +771,7 @@ class CPU // Constructor:
 
                     // Decrement index Y by one:
                     REG_Y = (REG_Y - 1) and 0xFF
-                    F_SIGN = (REG_Y shr 7) and 1
+                    F_SIGN = REG_Y
                     F_ZERO = REG_Y
                 }
 
@@ -691,7 +782,7 @@ class CPU // Constructor:
 
                     // XOR Memory with accumulator, store in accumulator:
                     REG_ACC = (load(addr) xor REG_ACC) and 0xFF
-                    F_SIGN = (REG_ACC shr 7) and 1
+                    F_SIGN = REG_ACC
                     F_ZERO = REG_ACC
                     cycleCount += cycleAdd
                 }
@@ -703,7 +794,7 @@ class CPU // Constructor:
 
                     // Increment memory by one:
                     temp = (load(addr) + 1) and 0xFF
-                    F_SIGN = (temp shr 7) and 1
+                    F_SIGN = temp
                     F_ZERO = temp
                     write(addr, (temp and 0xFF).toShort())
                 }
@@ -715,7 +806,7 @@ class CPU // Constructor:
 
                     // Increment index X by one:
                     REG_X = (REG_X + 1) and 0xFF
-                    F_SIGN = (REG_X shr 7) and 1
+                    F_SIGN = REG_X
                     F_ZERO = REG_X
                 }
 
@@ -727,7 +818,7 @@ class CPU // Constructor:
                     // Increment index Y by one:
                     REG_Y++
                     REG_Y = REG_Y and 0xFF
-                    F_SIGN = (REG_Y shr 7) and 1
+                    F_SIGN = REG_Y
                     F_ZERO = REG_Y
                 }
 
@@ -759,7 +850,7 @@ class CPU // Constructor:
 
                     // Load accumulator with memory:
                     REG_ACC = load(addr)
-                    F_SIGN = (REG_ACC shr 7) and 1
+                    F_SIGN = REG_ACC
                     F_ZERO = REG_ACC
                     cycleCount += cycleAdd
                 }
@@ -771,7 +862,7 @@ class CPU // Constructor:
 
                     // Load index X with memory:
                     REG_X = load(addr)
-                    F_SIGN = (REG_X shr 7) and 1
+                    F_SIGN = REG_X
                     F_ZERO = REG_X
                     cycleCount += cycleAdd
                 }
@@ -783,7 +874,7 @@ class CPU // Constructor:
 
                     // Load index Y with memory:
                     REG_Y = load(addr)
-                    F_SIGN = (REG_Y shr 7) and 1
+                    F_SIGN = REG_Y
                     F_ZERO = REG_Y
                     cycleCount += cycleAdd
                 }
@@ -797,12 +888,12 @@ class CPU // Constructor:
                     if (addrMode == 4) { // ADDR_ACC
 
                         temp = (REG_ACC and 0xFF)
-                        F_CARRY = temp and 1
+                        F_CARRY = temp shl 8
                         temp = temp shr 1
                         REG_ACC = temp
                     } else {
                         temp = load(addr) and 0xFF
-                        F_CARRY = temp and 1
+                        F_CARRY = temp shl 8
                         temp = temp shr 1
                         write(addr, temp.toShort())
                     }
@@ -818,7 +909,7 @@ class CPU // Constructor:
 
                     // OR memory with accumulator, store in accumulator.
                     temp = (load(addr) or REG_ACC) and 255
-                    F_SIGN = (temp shr 7) and 1
+                    F_SIGN = temp
                     F_ZERO = temp
                     REG_ACC = temp
                     if (addrMode != 11) cycleCount += cycleAdd // PostIdxInd = 11
@@ -841,14 +932,7 @@ class CPU // Constructor:
                     // Push processor status on stack
                     F_BRK = 1
                     push(
-                        (F_CARRY) or
-                                ((if (F_ZERO == 0) 1 else 0) shl 1) or
-                                (F_INTERRUPT shl 2) or
-                                (F_DECIMAL shl 3) or
-                                (F_BRK shl 4) or
-                                (F_NOTUSED shl 5) or
-                                (F_OVERFLOW shl 6) or
-                                (F_SIGN shl 7)
+                        packStatus(F_CARRY, F_ZERO, F_INTERRUPT, F_DECIMAL, F_BRK, F_NOTUSED, F_OVERFLOW, F_SIGN)
                     )
                 }
 
@@ -859,7 +943,7 @@ class CPU // Constructor:
 
                     // Pull accumulator from stack
                     REG_ACC = pull().toInt()
-                    F_SIGN = (REG_ACC shr 7) and 1
+                    F_SIGN = REG_ACC
                     F_ZERO = REG_ACC
                 }
 
@@ -870,13 +954,13 @@ class CPU // Constructor:
 
                     // Pull processor status from stack
                     temp = pull().toInt()
-                    F_CARRY = (temp) and 1
+                    F_CARRY = temp shl 8
                     F_ZERO = if (((temp shr 1) and 1) == 1) 0 else 1
                     F_INTERRUPT = (temp shr 2) and 1
                     F_DECIMAL = (temp shr 3) and 1
                     F_BRK = (temp shr 4) and 1
-                    F_OVERFLOW = (temp shr 6) and 1
-                    F_SIGN = (temp shr 7) and 1
+                    F_OVERFLOW = temp shl 1
+                    F_SIGN = temp
 
                     F_NOTUSED = 1
                 }
@@ -890,18 +974,18 @@ class CPU // Constructor:
                     if (addrMode == 4) { // ADDR_ACC = 4
 
                         temp = REG_ACC
-                        add = F_CARRY
-                        F_CARRY = (temp shr 7) and 1
-                        temp = ((temp shl 1) and 0xFF) + add
+                        add = (F_CARRY shr 8) and 1
+                        F_CARRY = temp shl 1
+                        temp = (F_CARRY and 0xFF) + add
                         REG_ACC = temp
                     } else {
                         temp = load(addr)
-                        add = F_CARRY
-                        F_CARRY = (temp shr 7) and 1
-                        temp = ((temp shl 1) and 0xFF) + add
+                        add = (F_CARRY shr 8) and 1
+                        F_CARRY = temp shl 1
+                        temp = (F_CARRY and 0xFF) + add
                         write(addr, temp.toShort())
                     }
-                    F_SIGN = (temp shr 7) and 1
+                    F_SIGN = temp
                     F_ZERO = temp
                 }
 
@@ -913,18 +997,18 @@ class CPU // Constructor:
                     // Rotate one bit right
                     if (addrMode == 4) { // ADDR_ACC = 4
 
-                        add = F_CARRY shl 7
-                        F_CARRY = REG_ACC and 1
+                        add = (F_CARRY and 0x100) shr 1
+                        F_CARRY = REG_ACC shl 8
                         temp = (REG_ACC shr 1) + add
                         REG_ACC = temp
                     } else {
                         temp = load(addr)
-                        add = F_CARRY shl 7
-                        F_CARRY = temp and 1
+                        add = (F_CARRY and 0x100) shr 1
+                        F_CARRY = temp shl 8
                         temp = (temp shr 1) + add
                         write(addr, temp.toShort())
                     }
-                    F_SIGN = (temp shr 7) and 1
+                    F_SIGN = temp
                     F_ZERO = temp
                 }
 
@@ -935,18 +1019,18 @@ class CPU // Constructor:
 
                     // Return from interrupt. Pull status and PC from stack.
                     temp = pull().toInt()
-                    F_CARRY = (temp) and 1
+                    F_CARRY = temp shl 8
                     F_ZERO = if (((temp shr 1) and 1) == 0) 1 else 0
                     F_INTERRUPT = (temp shr 2) and 1
                     F_DECIMAL = (temp shr 3) and 1
                     F_BRK = (temp shr 4) and 1
-                    F_OVERFLOW = (temp shr 6) and 1
-                    F_SIGN = (temp shr 7) and 1
+                    F_OVERFLOW = temp shl 1
+                    F_SIGN = temp
 
                     REG_PC = pull().toInt()
                     REG_PC += (pull().toInt() shl 8)
                     if (REG_PC == 0xFFFF) {
-                        return
+                        break
                     }
                     REG_PC--
                     F_NOTUSED = 1
@@ -962,7 +1046,7 @@ class CPU // Constructor:
                     REG_PC += (pull().toInt() shl 8)
 
                     if (REG_PC == 0xFFFF) {
-                        return
+                        break
                     }
                 }
 
@@ -970,12 +1054,12 @@ class CPU // Constructor:
                     // *******
                     // * SBC *
                     // *******
-                    temp = REG_ACC - load(addr) - (1 - F_CARRY)
-                    F_SIGN = (temp shr 7) and 1
+                    add = load(addr)
+                    temp = REG_ACC - add - (1 - ((F_CARRY shr 8) and 1))
+                    F_SIGN = temp
                     F_ZERO = temp and 0xFF
-                    F_OVERFLOW =
-                        (if (((REG_ACC xor temp) and 0x80) != 0 && ((REG_ACC xor load(addr)) and 0x80) != 0) 1 else 0)
-                    F_CARRY = (if (temp < 0) 0 else 1)
+                    F_OVERFLOW = (REG_ACC xor temp) and (REG_ACC xor add)
+                    F_CARRY = temp + 0x100
                     REG_ACC = (temp and 0xFF)
                     if (addrMode != 11) cycleCount += cycleAdd // PostIdxInd = 11
                 }
@@ -986,7 +1070,7 @@ class CPU // Constructor:
                     // *******
 
                     // Set carry flag
-                    F_CARRY = 1
+                    F_CARRY = 0x100
                 }
 
                 45 -> {
@@ -1041,7 +1125,7 @@ class CPU // Constructor:
 
                     // Transfer accumulator to index X:
                     REG_X = REG_ACC
-                    F_SIGN = (REG_ACC shr 7) and 1
+                    F_SIGN = REG_ACC
                     F_ZERO = REG_ACC
                 }
 
@@ -1052,7 +1136,7 @@ class CPU // Constructor:
 
                     // Transfer accumulator to index Y:
                     REG_Y = REG_ACC
-                    F_SIGN = (REG_ACC shr 7) and 1
+                    F_SIGN = REG_ACC
                     F_ZERO = REG_ACC
                 }
 
@@ -1063,7 +1147,7 @@ class CPU // Constructor:
 
                     // Transfer stack pointer to index X:
                     REG_X = (REG_SP - 0x0100)
-                    F_SIGN = (REG_SP shr 7) and 1
+                    F_SIGN = REG_SP
                     F_ZERO = REG_X
                 }
 
@@ -1074,7 +1158,7 @@ class CPU // Constructor:
 
                     // Transfer index X to accumulator:
                     REG_ACC = REG_X
-                    F_SIGN = (REG_X shr 7) and 1
+                    F_SIGN = REG_X
                     F_ZERO = REG_X
                 }
 
@@ -1095,7 +1179,7 @@ class CPU // Constructor:
 
                     // Transfer index Y to accumulator:
                     REG_ACC = REG_Y
-                    F_SIGN = (REG_Y shr 7) and 1
+                    F_SIGN = REG_Y
                     F_ZERO = REG_Y
                 }
 
@@ -1105,11 +1189,7 @@ class CPU // Constructor:
                     // *******
 
                     // Illegal opcode!
-                    if (!crash) {
-                        crash = true
-                        stopRunning = true
-                        println("Game crashed, invalid opcode at address $" + knes.emulator.utils.Misc.hex16(opaddr))
-                    }
+                    illegalOpcode(opaddr)
                 }
 
             } // end of switch
@@ -1123,16 +1203,35 @@ class CPU // Constructor:
                 }
             }
 
-            if (asApplet) {
-                ppucycles.setCycles(cycleCount * 3)
-                ppucycles.emulateCycles()
-            }
+            // The PPU only catches up when it reaches an event or is accessed:
+            ppucycles.addCycles(cycleCount * 3)
 
             if (emulateSound) {
                 papuClockFrame.clockFrameCounter(cycleCount)
             }
+
+            cyclesLeft -= cycleCount
+            if (--instructionsLeft == 0L || cyclesLeft <= 0L) break
+
+            if (REG_PC <= opaddr && skipIdleLoops && idleLoop.check(
+                    REG_PC + 1, opaddr + 1, cycleCount, instructionsLeft,
+                    REG_ACC or (REG_X shl 8) or (REG_Y shl 16),
+                    packStatus(F_CARRY, F_ZERO, F_INTERRUPT, F_DECIMAL, F_BRK, F_NOTUSED, F_OVERFLOW, F_SIGN),
+                    mmap!!, mem!!
+                )
+            ) {
+                // Jumped back to the start of a polling loop that repeats itself, see IdleLoop:
+                temp = skipIdleLoop(
+                    minOf((instructionsLeft - 1) / idleLoop.instructions, (cyclesLeft - 1) / idleLoop.cycles),
+                    emulateSound
+                )
+                instructionsLeft -= temp.toLong() * idleLoop.instructions
+                cyclesLeft -= temp.toLong() * idleLoop.cycles
+            }
         } // End of run loop.
 
+        ppucycles.catchUp()
+
 
         // Save registers:
         REG_ACC_NEW = REG_ACC
@@ -1142,30 +1241,90 @@ class CPU // Constructor:
         REG_PC_NEW = REG_PC
 
         // Save Status flags:
-        F_CARRY_NEW = F_CARRY
+        F_CARRY_NEW = (F_CARRY shr 8) and 1
         F_ZERO_NEW = (if (F_ZERO == 0) 1 else 0)
         F_INTERRUPT_NEW = F_INTERRUPT
         F_DECIMAL_NEW = F_DECIMAL
         F_BRK_NEW = F_BRK
         F_NOTUSED_NEW = F_NOTUSED
-        F_OVERFLOW_NEW = F_OVERFLOW
-        F_SIGN_NEW = F_SIGN
+        F_OVERFLOW_NEW = (F_OVERFLOW shr 7) and 1
+        F_SIGN_NEW = (F_SIGN shr 7) and 1
+
+        this.palCnt = palCnt
+        return maxCycles - cyclesLeft
+    }
+
+    // Runs the PPU and APU through up to maxIterations of the current idle loop, as long as the loop would
+    // repeat itself. Returns the number of iterations skipped.
+    private fun skipIdleLoop(maxIterations: Long, clockSound: Boolean): Int {
+        val ppuCycles = idleLoop.cycles * 3
+        var iterations = 0
+        while (iterations < maxIterations && !irqRequested && !stopRunning &&
+            ppucycles.idleCycles() >= ppuCycles && idleLoop.isUnchanged(mem!!)
+        ) {
+            ppucycles.addCycles(ppuCycles)
+            if (clockSound) {
+                for (i in 0 until idleLoop.instructions) {
+                    papuClockFrame.clockFrameCounter(idleLoop.instructionCycles[i])
+                }
+            }
+            iterations++
+        }
+        idleLoop.skipped(iterations.toLong())
+        return iterations
+    }
+
+    // Packs the flags of emulate(), in their lazy form, into a status register value.
+    private fun packStatus(
+        carry: Int, zero: Int, interrupt: Int, decimal: Int, brk: Int, notUsed: Int, overflow: Int, sign: Int
+    ): Int {
+        return ((carry shr 8) and 1) or
+                ((if (zero == 0) 1 else 0) shl 1) or
+                (interrupt shl 2) or
+                (decimal shl 3) or
+                (brk shl 4) or
+                (notUsed shl 5) or
+                ((overflow and 0x80) shr 1) or
+                (sign and 0x80)
+    }
+
+    private fun serviceInterrupt(status: Int) {
+        when (irqType) {
+            IRQ_NORMAL -> {
+                // Normal IRQ, dropped while interrupts are disabled:
+                if (F_INTERRUPT_NEW == 0) {
+                    doIrq(status)
+                }
+            }
+
+            IRQ_NMI -> doNonMaskableInterrupt(status)
+            IRQ_RESET -> doResetInterrupt()
+        }
+        irqRequested = false
+    }
+
+    private fun illegalOpcode(opaddr: Int) {
+        if (!crash) {
+            crash = true
+            stopRunning = true
+            println("Game crashed, invalid opcode at address $" + knes.emulator.utils.Misc.hex16(opaddr))
+        }
     }
 
     private fun load(addr: Int): Int {
-        return (if (addr < 0x2000) mem!![addr and 0x7FF] else mmap!!.load(addr)).toInt()
+        return if (addr < 0x2000) mem!![addr and 0x7FF].toInt() and 0xFF else mmap!!.load(addr).toInt()
     }
 
     private fun load16bit(addr: Int): Int {
         return if (addr < 0x1FFF)
-            mem!![addr and 0x7FF].toInt() or (mem!![(addr + 1) and 0x7FF].toInt() shl 8)
+            (mem!![addr and 0x7FF].toInt() and 0xFF) or ((mem!![(addr + 1) and 0x7FF].toInt() and 0xFF) shl 8)
         else
             mmap!!.load(addr).toInt() or (mmap!!.load(addr + 1).toInt() shl 8)
     }
 
     private fun write(addr: Int, `val`: Short) {
         if (addr < 0x2000) {
-            mem!![addr and 0x7FF] = `val`
+            mem!![addr and 0x7FF] = `val`.toByte()
         } else {
             mmap!!.write(addr, `val`)
         }
@@ -1260,8 +1419,13 @@ class CPU // Constructor:
      *
      * @param memoryAccess the memory access component to use
      */
-    fun setMapper(memoryAccess: knes.emulator.memory.MemoryAccess?) {
-        mmap = memoryAccess
+    fun setMapper(memoryAccess: MemoryAccess?) {
+        // Memory mappers provide a page table, anything else gets one that hands every page to it:
+        mmap = when (memoryAccess) {
+            null -> null
+            is MemoryMapper -> memoryAccess.pageTable
+            else -> MemoryPageTable(memoryAccess)
+        }
     }
 
     fun destroy() {
@@ -1273,5 +1437,8 @@ class CPU // Constructor:
         const val IRQ_NORMAL: Int = 0
         const val IRQ_NMI: Int = 1
         const val IRQ_RESET: Int = 2
+
+        // Packed opcode data, see CpuInfo.opData:
+        private val OP_DATA: IntArray = CpuInfo.opData!!
     }
 }
\ No newline at end of file
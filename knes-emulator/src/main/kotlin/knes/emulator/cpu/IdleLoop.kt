@@ -0,0 +1,211 @@
+/*
+ *
+ *  * Copyright (C) 2025 Artur Skowroński
+ *  * This file is part of kNES, a fork of vNES (GPLv3) rewritten in Kotlin.
+ *  *
+ *  * vNES was originally developed by Brian F. R. (bfirsh) and released under the GPL-3.0 license.
+ *  * This project is a reimplementation and extension of that work.
+ *  *
+ *  * kNES is licensed under the GNU General Public License v3.0.
+ *  * See the LICENSE file for more details.
+ *
+ */
+
+package knes.emulator.cpu
+
+import knes.emulator.CpuInfo
+import knes.emulator.memory.MemoryAccess
+
+/**
+ * Recognizes idle loops: short loops that poll the PPU status register or a RAM variable without any side effect,
+ * like `LDA $2002 / BPL` waiting for VBlank or `LDA flag / BEQ` waiting for the NMI handler to set a flag.
+ *
+ * The first instruction of such a loop reads one memory location, the rest only change registers and flags. So once
+ * an iteration starts and ends with the same registers and flags and reads the same value as the iteration before
+ * it, every further iteration is an exact repeat until that value changes or an interrupt arrives. The CPU then only needs
+ * to account the cycles of the skipped iterations to the PPU and APU instead of interpreting them.
+ *
+ * Reading $2002 clears the VBlank flag, but only the first read after VBlank started sees it set, so repeated
+ * reads of the same value have no further effect. Other registers are never treated as idle.
+ */
+class IdleLoop {
+
+    // Number of instructions in the loop, including the final branch or jump:
+    var instructions = 0
+        private set
+
+    // CPU cycles of one iteration:
+    var cycles = 0
+        private set
+
+    // CPU cycles of each instruction, in order, for clocking the APU like the interpreter does:
+    val instructionCycles = IntArray(MAX_INSTRUCTIONS)
+
+    // Loop start and polled address of the previous check, or -1:
+    private var head = -1
+    private var address = NO_ADDRESS
+
+    // State seen by the previous check:
+    private var value = 0
+    private var registers = 0
+    private var status = 0
+    private var nextInstructionsLeft = 0L
+
+    /**
+     * Called at the end of a backward branch or jump. Returns true when the loop from [head] up to that instruction
+     * at [last] is an idle loop that has just repeated its previous iteration exactly, so that it can be skipped.
+     *
+     * [lastCycles] is the number of cycles the branch or jump took, [instructionsLeft] counts down once per executed
+     * instruction and detects whether exactly one iteration passed since the previous check. [registers] and
+     * [status] are the CPU registers and status flags, in any fixed packing.
+     */
+    fun check(
+        head: Int,
+        last: Int,
+        lastCycles: Int,
+        instructionsLeft: Long,
+        registers: Int,
+        status: Int,
+        mmap: MemoryAccess,
+        mem: ByteArray
+    ): Boolean {
+        val previousHead = this.head
+        val previousAddress = this.address
+        if (!decode(head, last, lastCycles, mmap, mem)) {
+            this.head = -1
+            return false
+        }
+
+        val value = peek(mem)
+        val repeated = head == previousHead && address == previousAddress && value == this.value &&
+                instructionsLeft == nextInstructionsLeft && registers == this.registers && status == this.status
+
+        this.head = head
+        this.value = value
+        this.registers = registers
+        this.status = status
+        nextInstructionsLeft = instructionsLeft - instructions
+        return repeated
+    }
+
+    /**
+     * Returns true while the polled location still holds the value the loop read in its last iteration.
+     */
+    fun isUnchanged(mem: ByteArray): Boolean {
+        return peek(mem) == value
+    }
+
+    /**
+     * Records that the CPU skipped the given number of iterations, so that the next check still sees them
+     * as consecutive.
+     */
+    fun skipped(iterations: Long) {
+        nextInstructionsLeft -= iterations * instructions
+    }
+
+    fun reset() {
+        head = -1
+    }
+
+    // Reads the polled location without side effects. The PPU keeps its status register in CPU memory too:
+    private fun peek(mem: ByteArray): Int {
+        return when {
+            address == NO_ADDRESS -> 0
+            address < 0x2000 -> mem[address and 0x7FF].toInt() and 0xFF
+            else -> mem[address].toInt() and 0xFF
+        }
+    }
+
+    // Decodes the loop body, setting instructions, cycles and address. Returns false if it is not an idle loop.
+    private fun decode(head: Int, last: Int, lastCycles: Int, mmap: MemoryAccess, mem: ByteArray): Boolean {
+        // Code is only read from RAM, SRAM and ROM, where loading it has no side effects:
+        if ((head in 0x2000..0x5FFF) || last - head > MAX_LENGTH) {
+            return false
+        }
+
+        var pc = head
+        var count = 0
+        var total = 0
+        address = NO_ADDRESS
+        while (pc < last) {
+            val opinf = OP_DATA[load(pc, mmap, mem)]
+            if (count == MAX_INSTRUCTIONS - 1 || !isSideEffectFree(opinf and 0xFF, (opinf shr 8) and 0xFF)) {
+                return false
+            }
+
+            // Only the first instruction may read memory, so that it reads what the loop start sees:
+            val addrMode = (opinf shr 8) and 0xFF
+            if (addrMode == CpuInfo.ADDR_ZP || addrMode == CpuInfo.ADDR_ABS) {
+                val operand = if (addrMode == CpuInfo.ADDR_ZP) load(pc + 1, mmap, mem)
+                else load(pc + 1, mmap, mem) or (load(pc + 2, mmap, mem) shl 8)
+                if (count > 0 || !poll(operand)) {
+                    return false
+                }
+            }
+
+            instructionCycles[count++] = opinf shr 24
+            total += opinf shr 24
+            pc += (opinf shr 16) and 0xFF
+        }
+
+        // The loop must end in a branch or jump back to its start:
+        val opinf = OP_DATA[load(last, mmap, mem)]
+        val addrMode = (opinf shr 8) and 0xFF
+        val target = when {
+            addrMode == CpuInfo.ADDR_REL -> last + 2 + load(last + 1, mmap, mem).toByte()
+            (opinf and 0xFF) == CpuInfo.INS_JMP && addrMode == CpuInfo.ADDR_ABS ->
+                load(last + 1, mmap, mem) or (load(last + 2, mmap, mem) shl 8)
+
+            else -> -1
+        }
+        if (pc != last || target != head) {
+            return false
+        }
+
+        instructionCycles[count++] = lastCycles
+        instructions = count
+        cycles = total + lastCycles
+        return true
+    }
+
+    // Sets the polled address, which has to be in RAM or $2002.
+    private fun poll(address: Int): Boolean {
+        if (address >= 0x2000 && address != PPU_STATUS) {
+            return false
+        }
+        this.address = address
+        return true
+    }
+
+    private fun isSideEffectFree(instruction: Int, addrMode: Int): Boolean {
+        return when (instruction) {
+            // Only read memory or change registers and flags:
+            CpuInfo.INS_ADC, CpuInfo.INS_AND, CpuInfo.INS_BIT, CpuInfo.INS_CMP, CpuInfo.INS_CPX, CpuInfo.INS_CPY,
+            CpuInfo.INS_EOR, CpuInfo.INS_LDA, CpuInfo.INS_LDX, CpuInfo.INS_LDY, CpuInfo.INS_ORA, CpuInfo.INS_SBC ->
+                addrMode == CpuInfo.ADDR_ZP || addrMode == CpuInfo.ADDR_ABS || addrMode == CpuInfo.ADDR_IMM
+
+            CpuInfo.INS_CLC, CpuInfo.INS_CLV, CpuInfo.INS_DEX, CpuInfo.INS_DEY, CpuInfo.INS_INX, CpuInfo.INS_INY,
+            CpuInfo.INS_NOP, CpuInfo.INS_SEC, CpuInfo.INS_TAX, CpuInfo.INS_TAY, CpuInfo.INS_TXA, CpuInfo.INS_TYA -> true
+
+            // Shifts only when applied to the accumulator:
+            CpuInfo.INS_ASL, CpuInfo.INS_LSR, CpuInfo.INS_ROL, CpuInfo.INS_ROR -> addrMode == CpuInfo.ADDR_ACC
+
+            else -> false
+        }
+    }
+
+    private fun load(address: Int, mmap: MemoryAccess, mem: ByteArray): Int {
+        return if (address < 0x2000) mem[address and 0x7FF].toInt() and 0xFF else mmap.load(address).toInt()
+    }
+
+    companion object {
+        // Longest loop body in bytes, not counting the final branch or jump, and in instructions, counting it:
+        private const val MAX_LENGTH = 8
+        private const val MAX_INSTRUCTIONS = 5
+
+        private const val PPU_STATUS = 0x2002
+        private const val NO_ADDRESS = -1
+
+        private val OP_DATA: IntArray = CpuInfo.opData!!
+    }
+}
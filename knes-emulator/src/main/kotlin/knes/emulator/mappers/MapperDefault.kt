@@ -17,6 +17,7 @@ import knes.emulator.Memory
 import knes.emulator.NES
 import knes.emulator.cpu.CPU
 import knes.emulator.input.InputHandler
+import knes.emulator.memory.MemoryPageTable
 import knes.emulator.papu.PAPU
 import knes.emulator.ppu.PPU
 import knes.emulator.rom.ROMData
@@ -26,7 +27,7 @@ import kotlin.math.min
 class MapperDefault(nes: NES) : MemoryMapper {
     var cpuMem: Memory
     var ppuMem: Memory
-    var cpuMemArray: ShortArray?
+    var cpuMemArray: ByteArray?
     var rom: ROMData? = null
     var cpu: CPU?
     var ppu: PPU?
@@ -42,6 +43,7 @@ class MapperDefault(nes: NES) : MemoryMapper {
     var tmp: Int = 0
     private val inputHandler: InputHandler
     private val inputHandler2: InputHandler?
+    override val pageTable: MemoryPageTable = MemoryPageTable(this)
 
     init {
         this.cpuMem = nes.cpuMemory
@@ -55,6 +57,16 @@ class MapperDefault(nes: NES) : MemoryMapper {
 
         cpuMemSize = cpuMem.memSize
         joypadLastWrite = -1
+
+        // RAM, mirrored four times up to $2000:
+        for (mirror in 0 until 4) {
+            pageTable.mapMemory(mirror * 8, 8, cpuMem.mem, 0)
+        }
+        // $2000-$40FF are I/O registers, left to load() and write().
+        // Expansion, SRAM and PRG-ROM, the ROM banks are copied into CPU memory:
+        pageTable.mapMemory(0x41, 0xBF, cpuMem.mem, 0x4100)
+        // Writes to $8000-$FFFF have to reach write(), where mapper subclasses see their bank-switch registers:
+        pageTable.mapWriteHandler(0x80, 0x80, this)
     }
 
     override fun stateLoad(buf: knes.emulator.ByteBuffer?) {
@@ -102,9 +114,9 @@ class MapperDefault(nes: NES) : MemoryMapper {
         if (address < 0x2000) {
             // Mirroring of RAM:
 
-            cpuMem!!.mem[address and 0x7FF] = value
+            cpuMem!!.mem[address and 0x7FF] = value.toByte()
         } else if (address > 0x4017) {
-            cpuMem!!.mem[address] = value
+            cpuMem!!.mem[address] = value.toByte()
             if (address >= 0x6000 && address < 0x8000) {
                 // Write to SaveRAM. Store in file:
 //                if (rom != null) {
@@ -121,9 +133,9 @@ class MapperDefault(nes: NES) : MemoryMapper {
     fun writelow(address: Int, value: Short) {
         if (address < 0x2000) {
             // Mirroring of RAM:
-            cpuMem.mem[address and 0x7FF] = value
+            cpuMem.mem[address and 0x7FF] = value.toByte()
         } else if (address > 0x4017) {
-            cpuMem.mem[address] = value
+            cpuMem.mem[address] = value.toByte()
         } else if (address > 0x2007 && address < 0x4000) {
             regWrite(0x2000 + (address and 0x7), value)
         } else {
@@ -141,7 +153,7 @@ class MapperDefault(nes: NES) : MemoryMapper {
         if (address > 0x4017) {
             // ROM:
 
-            return cpuMemArray!![address]
+            return (cpuMemArray!![address].toInt() and 0xFF).toShort()
         } else if (address >= 0x2000) {
             // I/O Ports.
 
@@ -149,11 +161,14 @@ class MapperDefault(nes: NES) : MemoryMapper {
         } else {
             // RAM (mirrored)
 
-            return cpuMemArray!![address and 0x7FF]
+            return (cpuMemArray!![address and 0x7FF].toInt() and 0xFF).toShort()
         }
     }
 
     fun regLoad(address: Int): Short {
+        // The PPU runs behind the CPU until it is accessed:
+        ppu?.catchUp()
+
         when (address shr 12) {
             0 -> {}
             1 -> {}
@@ -169,7 +184,7 @@ class MapperDefault(nes: NES) : MemoryMapper {
                             // in main memory and in the
                             // PPU as flags):
                             // (not in the real NES)
-                            return cpuMem.mem[0x2000]
+                            return cpuMem.load(0x2000)
                         }
 
                         0x1 -> {
@@ -179,7 +194,7 @@ class MapperDefault(nes: NES) : MemoryMapper {
                             // in main memory and in the
                             // PPU as flags):
                             // (not in the real NES)
-                            return cpuMem.mem[0x2001]
+                            return cpuMem.load(0x2001)
                         }
 
                         0x2 -> {
@@ -224,11 +239,11 @@ class MapperDefault(nes: NES) : MemoryMapper {
             3 -> {
                 when (address and 0x7) {
                     0x0 -> {
-                        return cpuMem.mem[0x2000]
+                        return cpuMem.load(0x2000)
                     }
 
                     0x1 -> {
-                        return cpuMem.mem[0x2001]
+                        return cpuMem.load(0x2001)
                     }
 
                     0x2 -> {
@@ -295,7 +310,7 @@ class MapperDefault(nes: NES) : MemoryMapper {
                             while (y < ey) {
                                 var x = sx
                                 while (x < ex) {
-                                    if ((ppu!!.buffer[(y shl 8) + x] and 0xFFFFFF) == 0xFFFFFF) {
+                                    if ((ppu!!.getPixelRgb((y shl 8) + x) and 0xFFFFFF) == 0xFFFFFF) {
                                         w = 0x1 shl 3
                                         break
                                     }
@@ -322,6 +337,8 @@ class MapperDefault(nes: NES) : MemoryMapper {
     }
 
     fun regWrite(address: Int, value: Short) {
+        ppu?.catchUp()
+
         when (address) {
             0x2000 -> {
                 // PPU Control register 1
@@ -544,11 +561,13 @@ class MapperDefault(nes: NES) : MemoryMapper {
             return
         }
         ppu!!.triggerRendering()
+        ppu!!.decodePatterns()
 
         System.arraycopy(rom!!.getVromBank(bank % rom!!.getVromBankCount()), 0, ppuMem!!.mem, address, 4096)
 
         val vromTile = rom!!.getVromBankTiles(bank % rom!!.getVromBankCount())
         System.arraycopy(vromTile, 0, ppu!!.ptTile, address shr 4, 256)
+        ppu!!.invalidatePatternTiles(address shr 4, 256)
     }
 
     protected fun load32kRomBank(bank: Int, address: Int) {
@@ -571,6 +590,7 @@ class MapperDefault(nes: NES) : MemoryMapper {
             return
         }
         ppu!!.triggerRendering()
+        ppu!!.decodePatterns()
 
         val bank4k = (bank1k / 4) % rom!!.getVromBankCount()
         val bankoffset = (bank1k % 4) * 1024
@@ -580,6 +600,7 @@ class MapperDefault(nes: NES) : MemoryMapper {
         val vromTile = rom!!.getVromBankTiles(bank4k)
         val baseIndex = address shr 4
         System.arraycopy(vromTile, ((bank1k % 4) shl 6) + 0, ppu!!.ptTile, baseIndex + 0, 64)
+        ppu!!.invalidatePatternTiles(baseIndex, 64)
     }
 
     protected fun load2kVromBank(bank2k: Int, address: Int) {
@@ -587,6 +608,7 @@ class MapperDefault(nes: NES) : MemoryMapper {
             return
         }
         ppu!!.triggerRendering()
+        ppu!!.decodePatterns()
 
         val bank4k = (bank2k / 2) % rom!!.getVromBankCount()
         val bankoffset = (bank2k % 2) * 2048
@@ -596,6 +618,7 @@ class MapperDefault(nes: NES) : MemoryMapper {
         val vromTile = rom!!.getVromBankTiles(bank4k)
         val baseIndex = address shr 4
         System.arraycopy(vromTile, ((bank2k % 2) shl 7) + 0, ppu!!.ptTile, baseIndex + 0, 128)
+        ppu!!.invalidatePatternTiles(baseIndex, 128)
     }
 
     protected fun load8kRomBank(bank8k: Int, address: Int) {
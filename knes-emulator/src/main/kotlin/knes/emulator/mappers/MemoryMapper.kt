@@ -15,9 +15,13 @@ package knes.emulator.mappers
 
 import knes.emulator.ByteBuffer
 import knes.emulator.memory.MemoryAccess
+import knes.emulator.memory.MemoryPageTable
 import knes.emulator.rom.ROMData
 
 interface MemoryMapper : MemoryAccess {
+    // CPU address decoding, kept up to date by the mapper:
+    val pageTable: MemoryPageTable
+
     fun loadROM(romData: ROMData?)
     override fun write(address: Int, value: Short)
     override fun load(address: Int): Short
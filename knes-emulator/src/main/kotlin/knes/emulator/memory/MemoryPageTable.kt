@@ -0,0 +1,117 @@
+/*
+ *
+ *  * Copyright (C) 2025 Artur Skowroński
+ *  * This file is part of kNES, a fork of vNES (GPLv3) rewritten in Kotlin.
+ *  *
+ *  * vNES was originally developed by Brian F. R. (bfirsh) and released under the GPL-3.0 license.
+ *  * This project is a reimplementation and extension of that work.
+ *  *
+ *  * kNES is licensed under the GNU General Public License v3.0.
+ *  * See the LICENSE file for more details.
+ *
+ */
+
+
+package knes.emulator.memory
+
+/**
+ * Decodes CPU addresses through a table of 256 pages of 256 bytes each.
+ *
+ * A page is either backed directly by an array (RAM, SRAM, PRG-ROM) or handed to a [MemoryAccess] handler
+ * (I/O registers). Loads and writes to array-backed pages cost a table lookup and an array access, without a
+ * call into the memory mapper. Reads and writes are mapped separately, so a page can be read directly while
+ * writes to it still reach a handler, e.g. for bank switching registers in ROM space.
+ *
+ * Memory mappers own their table and remap pages when they switch banks.
+ * All pages start out mapped to the given handler.
+ */
+class MemoryPageTable(handler: MemoryAccess) : MemoryAccess {
+
+    // Backing array of each page, or null if the page goes through its handler:
+    private val readArrays = arrayOfNulls<ByteArray>(PAGE_COUNT)
+    private val writeArrays = arrayOfNulls<ByteArray>(PAGE_COUNT)
+
+    // Index of the first byte of each page in its backing array:
+    private val readOffsets = IntArray(PAGE_COUNT)
+    private val writeOffsets = IntArray(PAGE_COUNT)
+
+    private val readHandlers = Array(PAGE_COUNT) { handler }
+    private val writeHandlers = Array(PAGE_COUNT) { handler }
+
+    /**
+     * Maps reads and writes of [pageCount] pages starting at [firstPage] to the given array,
+     * the first page starting at [offset].
+     */
+    fun mapMemory(firstPage: Int, pageCount: Int, array: ByteArray, offset: Int) {
+        for (i in 0 until pageCount) {
+            val page = firstPage + i
+            readArrays[page] = array
+            readOffsets[page] = offset + (i shl 8)
+            writeArrays[page] = array
+            writeOffsets[page] = offset + (i shl 8)
+        }
+    }
+
+    /**
+     * Maps reads and writes of [pageCount] pages starting at [firstPage] to the given handler.
+     */
+    fun mapHandler(firstPage: Int, pageCount: Int, handler: MemoryAccess) {
+        for (page in firstPage until firstPage + pageCount) {
+            readArrays[page] = null
+            readHandlers[page] = handler
+            writeArrays[page] = null
+            writeHandlers[page] = handler
+        }
+    }
+
+    /**
+     * Maps only the writes of [pageCount] pages starting at [firstPage] to the given handler, reads are left as
+     * they are.
+     */
+    fun mapWriteHandler(firstPage: Int, pageCount: Int, handler: MemoryAccess) {
+        for (page in firstPage until firstPage + pageCount) {
+            writeArrays[page] = null
+            writeHandlers[page] = handler
+        }
+    }
+
+    override fun load(address: Int): Short {
+        val page = (address shr 8) and 0xFF
+        val array = readArrays[page]
+        return if (array != null) {
+            (array[readOffsets[page] + (address and 0xFF)].toInt() and 0xFF).toShort()
+        } else {
+            readHandlers[page].load(address)
+        }
+    }
+
+    override fun write(address: Int, value: Short) {
+        val page = (address shr 8) and 0xFF
+        val array = writeArrays[page]
+        if (array != null) {
+            array[writeOffsets[page] + (address and 0xFF)] = value.toByte()
+        } else {
+            writeHandlers[page].write(address, value)
+        }
+    }
+
+    /**
+     * Copies [length] bytes of the given page, starting at byte [start] of the page, into [dest] at [destOffset].
+     * Pages backed by an array are copied in bulk, pages behind a handler are loaded byte by byte.
+     */
+    fun copyPage(page: Int, start: Int, dest: ByteArray, destOffset: Int, length: Int) {
+        val array = readArrays[page]
+        if (array != null) {
+            System.arraycopy(array, readOffsets[page] + start, dest, destOffset, length)
+        } else {
+            val handler = readHandlers[page]
+            for (i in 0 until length) {
+                dest[destOffset + i] = handler.load((page shl 8) + start + i).toByte()
+            }
+        }
+    }
+
+    companion object {
+        const val PAGE_COUNT: Int = 256
+    }
+}
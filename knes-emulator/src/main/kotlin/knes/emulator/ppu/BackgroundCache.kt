@@ -0,0 +1,151 @@
+/*
+ *
+ *  * Copyright (C) 2025 Artur Skowroński
+ *  * This file is part of kNES, a fork of vNES (GPLv3) rewritten in Kotlin.
+ *  *
+ *  * vNES was originally developed by Brian F. R. (bfirsh) and released under the GPL-3.0 license.
+ *  * This project is a reimplementation and extension of that work.
+ *  *
+ *  * kNES is licensed under the GNU General Public License v3.0.
+ *  * See the LICENSE file for more details.
+ *
+ */
+
+package knes.emulator.ppu
+
+import knes.emulator.Tile
+import knes.emulator.utils.NameTable
+
+/**
+ * The four name tables drawn as 256x256 planes of palette indices, so that a background scanline is copied from a
+ * plane instead of fetching and expanding its tiles again. A pixel holds its 2-bit tile color in the low bits and
+ * the attribute in bits 2-3, the same index into the image palette that the renderer uses. Palette changes
+ * therefore don't affect the planes.
+ *
+ * Tiles are drawn lazily, one tile row at a time, and are invalidated by name table, attribute and pattern writes
+ * and by CHR bank switches.
+ */
+internal class BackgroundCache {
+
+    private val planes = Array(4) { ByteArray(256 * 256) }
+
+    // Per name table cell: whether it is drawn, and the pattern tile it was drawn from:
+    private val cellValid = Array(4) { BooleanArray(1024) }
+    private val cellPattern = Array(4) { IntArray(1024) }
+    private val cellTile = Array(4) { arrayOfNulls<Tile>(1024) }
+    private val rowValid = Array(4) { BooleanArray(32) }
+    private val planeBase = IntArray(4)
+
+    // Pattern tiles that were written to, and pattern table entries that were switched to another tile:
+    private val writtenPatterns = LongArray(8)
+    private val switchedPatterns = LongArray(8)
+    private var patternsChanged = false
+
+    fun invalidateAll() {
+        for (nt in 0..3) {
+            cellValid[nt].fill(false)
+            rowValid[nt].fill(false)
+        }
+        writtenPatterns.fill(0)
+        switchedPatterns.fill(0)
+        patternsChanged = false
+    }
+
+    fun invalidateTile(nt: Int, address: Int) {
+        invalidateCell(nt, address)
+    }
+
+    fun invalidateAttrib(nt: Int, address: Int) {
+        // An attribute byte covers 4x4 tiles:
+        val basex = (address % 8) * 4
+        val basey = (address / 8) * 4
+        for (y in basey until basey + 4) {
+            for (x in basex until basex + 4) {
+                invalidateCell(nt, (y shl 5) + x)
+            }
+        }
+    }
+
+    fun invalidatePattern(index: Int) {
+        writtenPatterns[index shr 6] = writtenPatterns[index shr 6] or (1L shl index)
+        patternsChanged = true
+    }
+
+    fun invalidatePatternTiles(first: Int, count: Int) {
+        for (index in first until first + count) {
+            switchedPatterns[index shr 6] = switchedPatterns[index shr 6] or (1L shl index)
+        }
+        patternsChanged = true
+    }
+
+    /**
+     * Returns the plane of name table [nt], with tile row [row] drawn from the pattern tiles starting at [base].
+     */
+    fun getPlane(nt: Int, row: Int, nameTable: NameTable, ptTile: Array<Tile>, base: Int): ByteArray {
+        if (patternsChanged) {
+            applyPatternChanges(ptTile)
+        }
+        if (planeBase[nt] != base) {
+            cellValid[nt].fill(false)
+            rowValid[nt].fill(false)
+            planeBase[nt] = base
+        }
+        if (!rowValid[nt][row]) {
+            drawRow(nt, row, nameTable, ptTile, base)
+        }
+        return planes[nt]
+    }
+
+    private fun invalidateCell(nt: Int, cell: Int) {
+        cellValid[nt][cell] = false
+        rowValid[nt][cell shr 5] = false
+    }
+
+    // Invalidates the cells drawn from a pattern tile that was written to, or that was switched to another tile.
+    private fun applyPatternChanges(ptTile: Array<Tile>) {
+        for (nt in 0..3) {
+            val valid = cellValid[nt]
+            for (cell in 0..1023) {
+                if (valid[cell]) {
+                    val index = cellPattern[nt][cell]
+                    val bit = 1L shl index
+                    if ((writtenPatterns[index shr 6] and bit) != 0L ||
+                        ((switchedPatterns[index shr 6] and bit) != 0L && cellTile[nt][cell] !== ptTile[index])
+                    ) {
+                        invalidateCell(nt, cell)
+                    }
+                }
+            }
+        }
+        writtenPatterns.fill(0)
+        switchedPatterns.fill(0)
+        patternsChanged = false
+    }
+
+    private fun drawRow(nt: Int, row: Int, nameTable: NameTable, ptTile: Array<Tile>, base: Int) {
+        val plane = planes[nt]
+        for (cell in (row shl 5) until (row shl 5) + 32) {
+            if (cellValid[nt][cell]) {
+                continue
+            }
+            val x = cell and 31
+            val index = base + nameTable.getTileIndex(x, row)
+            val t = ptTile[index]
+            val att = nameTable.getAttrib(x, row).toInt()
+
+            var offset = (row shl 11) + (x shl 3)
+            for (y in 0..7) {
+                val pixels = t.getRow(y)
+                for (sx in 0..7) {
+                    plane[offset + sx] = (((pixels ushr (sx shl 1)) and 3) or att).toByte()
+                }
+                offset += 256
+            }
+
+            cellPattern[nt][cell] = index
+            cellTile[nt][cell] = t
+            cellValid[nt][cell] = true
+        }
+        rowValid[nt][row] = true
+    }
+}
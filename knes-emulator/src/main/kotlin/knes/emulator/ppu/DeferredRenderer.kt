@@ -0,0 +1,432 @@
+/*
+ *
+ *  * Copyright (C) 2025 Artur Skowroński
+ *  * This file is part of kNES, a fork of vNES (GPLv3) rewritten in Kotlin.
+ *  *
+ *  * vNES was originally developed by Brian F. R. (bfirsh) and released under the GPL-3.0 license.
+ *  * This project is a reimplementation and extension of that work.
+ *  *
+ *  * kNES is licensed under the GNU General Public License v3.0.
+ *  * See the LICENSE file for more details.
+ *
+ */
+
+package knes.emulator.ppu
+
+import knes.emulator.Tile
+import knes.emulator.ui.FrameExchange
+import knes.emulator.ui.ScreenView
+import knes.emulator.utils.NameTable
+import knes.emulator.utils.PaletteTable
+import java.util.Arrays
+import java.util.concurrent.ExecutionException
+import java.util.concurrent.ExecutorService
+import java.util.concurrent.Executors
+import java.util.concurrent.Future
+
+/**
+ * Draws frames on a worker thread from a log that the PPU records during the frame, see
+ * [knes.emulator.utils.Globals.enableDeferredRendering].
+ *
+ * While a frame is recorded the PPU draws nothing, as in a skipped frame. Where it would draw a background scanline
+ * or flush the scanlines up to the current one, it logs the scroll counters and control flags instead, with the
+ * name tables, pattern tiles, palettes and sprites in use at that point. Those are copied when they have changed
+ * since they were last logged, which happens about once per frame, and shared otherwise. At VBlank the log is handed
+ * to the worker, which replays it into the screen buffer with its own [FrameCompositor], the drawing code the PPU
+ * uses, while the next frame is emulated. At the following VBlank the emulation thread waits for the worker and publishes the frame, so frames are
+ * shown one frame later. The screen buffer is taken and published on the emulation thread, which owns the back
+ * buffer of a FrameExchange; Future.get() makes the worker's pixels visible to it.
+ *
+ * Methods are called on the emulation thread, except where noted.
+ */
+internal class DeferredRenderer {
+
+    // The PPU state that is logged:
+    private var nameTable: Array<NameTable?> = emptyArray()
+    private var ntable1 = IntArray(4)
+    private var ptTile: Array<Tile> = emptyArray()
+    private var imgPalette = IntArray(16)
+    private var sprPalette = IntArray(16)
+    private var sprX = IntArray(64)
+    private var sprY = IntArray(64)
+    private var sprTile = IntArray(64)
+    private var sprCol = IntArray(64)
+    private var vertFlip = BooleanArray(64)
+    private var horiFlip = BooleanArray(64)
+    private var bgPriority = BooleanArray(64)
+
+    // Copies of that state as last logged, null when it changed since:
+    private var nameTables: NameTables? = null
+    private var palettes: Palettes? = null
+    private var sprites: FrameCompositor.Sprites? = null
+    private var patterns: Patterns? = null
+    private val changedPatterns = LongArray(8)
+
+    private var recording = FrameLog()
+    private var spare = FrameLog()
+    private var executor: ExecutorService? = null
+    private var rendering: Future<*>? = null
+    private var renderingExchange: FrameExchange? = null
+
+    // Used by the worker only:
+    private val compositor = FrameCompositor()
+    private var spriteLinesFrom: FrameCompositor.Sprites? = null
+    private var cachedNameTables: NameTables? = null
+    private var cachedPatterns: Array<Tile>? = null
+    private val frameHistogram = FrameHistogram()
+
+    /**
+     * Sets the arrays the PPU keeps its state in. They are read when a log entry is recorded.
+     */
+    fun setSources(
+        nameTable: Array<NameTable?>,
+        ntable1: IntArray,
+        ptTile: Array<Tile>,
+        imgPalette: IntArray,
+        sprPalette: IntArray,
+        sprX: IntArray,
+        sprY: IntArray,
+        sprTile: IntArray,
+        sprCol: IntArray,
+        vertFlip: BooleanArray,
+        horiFlip: BooleanArray,
+        bgPriority: BooleanArray
+    ) {
+        this.nameTable = nameTable
+        this.ntable1 = ntable1
+        this.ptTile = ptTile
+        this.imgPalette = imgPalette
+        this.sprPalette = sprPalette
+        this.sprX = sprX
+        this.sprY = sprY
+        this.sprTile = sprTile
+        this.sprCol = sprCol
+        this.vertFlip = vertFlip
+        this.horiFlip = horiFlip
+        this.bgPriority = bgPriority
+        invalidateAll()
+    }
+
+    fun invalidateAll() {
+        nameTables = null
+        palettes = null
+        sprites = null
+        patterns = null
+    }
+
+    // Name table, attribute or mirroring changes:
+    fun invalidateNameTables() {
+        nameTables = null
+    }
+
+    // Pattern writes and CHR bank switches:
+    fun invalidatePatterns(first: Int, count: Int) {
+        for (i in first until first + count) {
+            changedPatterns[i shr 6] = changedPatterns[i shr 6] or (1L shl i)
+        }
+    }
+
+    fun invalidatePalettes() {
+        palettes = null
+    }
+
+    // The PPU switched to other palette arrays:
+    fun setPalettes(imgPalette: IntArray, sprPalette: IntArray) {
+        this.imgPalette = imgPalette
+        this.sprPalette = sprPalette
+        palettes = null
+    }
+
+    fun invalidateSprites() {
+        sprites = null
+    }
+
+    /**
+     * Starts the log of a frame, which is first filled with [bgColor].
+     */
+    fun beginFrame(bgColor: Int) {
+        recording.clear()
+        recording.bgColor = bgColor
+    }
+
+    /**
+     * Logs a background scanline with the counters at its start, in place of PPU.renderBgScanline(). [toScreen]
+     * selects the screen buffer instead of the background buffer.
+     */
+    fun recordBgLine(
+        scan: Int,
+        toScreen: Boolean,
+        cntFV: Int,
+        cntV: Int,
+        cntH: Int,
+        cntVT: Int,
+        cntHT: Int,
+        regFH: Int,
+        baseTile: Int
+    ) {
+        recording.add(BG_LINE, scan, if (toScreen) 1 else 0, cntFV, cntV, cntH, cntVT, cntHT, regFH, baseTile)
+        recording.addRefs(currentNameTables(), currentPatterns(), currentPalettes())
+    }
+
+    /**
+     * Logs the flush of [scanCount] scanlines from [startScan], in place of PPU.renderFramePartially().
+     */
+    fun recordFlush(
+        startScan: Int,
+        scanCount: Int,
+        bgVisible: Boolean,
+        spritesVisible: Boolean,
+        spriteHeight: Int,
+        spriteTiles: Int,
+        spriteLimit: Int
+    ) {
+        recording.add(
+            FLUSH, startScan, scanCount, if (bgVisible) 1 else 0, if (spritesVisible) 1 else 0, spriteHeight,
+            spriteTiles, spriteLimit, 0, 0
+        )
+        recording.addRefs(currentSprites(), currentPatterns(), currentPalettes())
+    }
+
+    /**
+     * Logs what is drawn over the completed frame, in place of PPU.endFrame().
+     */
+    fun recordFrameEnd(borders: FrameCompositor.Borders) {
+        recording.borders.copyFrom(borders)
+    }
+
+    /**
+     * Hands the recorded frame to the worker, which draws it into the screen view's buffer. [finish] publishes it
+     * through [exchange] if there is one. [analytics] are called on the worker.
+     */
+    fun submit(screenView: ScreenView, exchange: FrameExchange?, analytics: Array<FrameAnalytics>, indexed: Boolean) {
+        finish()
+
+        val log = recording
+        recording = spare
+        spare = log
+        log.buffer = screenView.getBuffer()
+        log.analytics = analytics
+        log.indexed = indexed
+
+        val worker = executor ?: Executors.newSingleThreadExecutor {
+            Thread(it, "Deferred renderer").apply { isDaemon = true }
+        }.also { executor = it }
+        rendering = worker.submit { render(log) }
+        renderingExchange = exchange
+    }
+
+    /**
+     * Waits until the frame handed over last is drawn, and publishes it. Returns false if there was none.
+     */
+    fun finish(): Boolean {
+        val frame = rendering ?: return false
+        val exchange = renderingExchange
+        rendering = null
+        renderingExchange = null
+        try {
+            frame.get()
+        } catch (e: ExecutionException) {
+            throw e.cause ?: e
+        }
+        exchange?.publish()
+        return true
+    }
+
+    fun shutdown() {
+        executor?.shutdown()
+        executor = null
+        rendering = null
+        renderingExchange = null
+    }
+
+    private fun currentNameTables(): NameTables {
+        return nameTables ?: NameTables(
+            Array(4) { copyNameTable(nameTable[it]!!) },
+            ntable1.copyOf()
+        ).also { nameTables = it }
+    }
+
+    private fun copyNameTable(source: NameTable): NameTable {
+        val copy = NameTable(source.width, source.height, source.name)
+        System.arraycopy(source.tile, 0, copy.tile, 0, copy.tile.size)
+        System.arraycopy(source.attrib, 0, copy.attrib, 0, copy.attrib.size)
+        return copy
+    }
+
+    private fun currentPalettes(): Palettes {
+        return palettes ?: Palettes(imgPalette.copyOf(), sprPalette.copyOf()).also { palettes = it }
+    }
+
+    private fun currentSprites(): FrameCompositor.Sprites {
+        return sprites ?: FrameCompositor.Sprites(
+            sprX.copyOf(), sprY.copyOf(), sprTile.copyOf(), sprCol.copyOf(),
+            vertFlip.copyOf(), horiFlip.copyOf(), bgPriority.copyOf()
+        ).also { sprites = it }
+    }
+
+    // Only the changed tiles are copied again, the logged arrays share the others:
+    private fun currentPatterns(): Patterns {
+        val logged = patterns
+        if (logged == null || logged.tiles.size != ptTile.size) {
+            changedPatterns.fill(0)
+            return Patterns(Array(ptTile.size) { ptTile[it].copy() }).also { patterns = it }
+        }
+        if (changedPatterns.any { it != 0L }) {
+            val copy = logged.tiles.copyOf()
+            for (word in changedPatterns.indices) {
+                var bits = changedPatterns[word]
+                while (bits != 0L) {
+                    val i = (word shl 6) + java.lang.Long.numberOfTrailingZeros(bits)
+                    bits = bits and (bits - 1)
+                    if (i < copy.size) {
+                        copy[i] = ptTile[i].copy()
+                    }
+                }
+            }
+            changedPatterns.fill(0)
+            return Patterns(copy).also { patterns = it }
+        }
+        return logged
+    }
+
+    // Worker thread:
+    private fun render(log: FrameLog) {
+        val buffer = log.buffer!!
+        compositor.startFrame()
+        Arrays.fill(buffer, log.bgColor)
+
+        val ops = log.ops
+        var op = 0
+        var ref = 0
+        while (op < log.size) {
+            if (ops[op] == BG_LINE) {
+                val nameTables = log.refs[ref] as NameTables
+                val patterns = (log.refs[ref + 1] as Patterns).tiles
+                updateBackgroundCache(nameTables, patterns)
+                compositor.renderBgLine(
+                    if (ops[op + 2] != 0) buffer else compositor.bgbuffer, ops[op + 1], ops[op + 3], ops[op + 4],
+                    ops[op + 5], ops[op + 6], ops[op + 7], ops[op + 8], ops[op + 9],
+                    nameTables.tables, nameTables.mirroring, patterns, (log.refs[ref + 2] as Palettes).image
+                )
+            } else {
+                val sprites = log.refs[ref] as FrameCompositor.Sprites
+                if (sprites !== spriteLinesFrom) {
+                    spriteLinesFrom = sprites
+                    compositor.spriteLines.invalidate()
+                }
+                compositor.renderFlush(
+                    buffer, ops[op + 1], ops[op + 2], ops[op + 3] != 0, ops[op + 4] != 0, ops[op + 5], ops[op + 6],
+                    ops[op + 7], sprites, (log.refs[ref + 1] as Patterns).tiles, (log.refs[ref + 2] as Palettes).sprite
+                )
+            }
+            op += ENTRY_SIZE
+            ref += 3
+        }
+        compositor.drawBorders(buffer, log.borders)
+
+        val listeners = log.analytics
+        if (listeners.isNotEmpty()) {
+            if (log.indexed) {
+                frameHistogram.countIndexed(buffer)
+            } else {
+                frameHistogram.count(buffer, PaletteTable.curTable)
+            }
+            for (listener in listeners) {
+                listener.frameCompleted(frameHistogram.counts, frameHistogram.otherPixels)
+            }
+        }
+
+        log.release()
+    }
+
+    // Invalidates the cells that differ from the name tables and pattern tiles the cache was last used with:
+    private fun updateBackgroundCache(nameTables: NameTables, patterns: Array<Tile>) {
+        val cached = cachedNameTables
+        if (cached == null) {
+            compositor.backgroundCache.invalidateAll()
+        } else if (cached !== nameTables) {
+            for (nt in 0..3) {
+                val before = cached.tables[nt]
+                val after = nameTables.tables[nt]
+                for (cell in before.tile.indices) {
+                    if (before.tile[cell] != after.tile[cell] || before.attrib[cell] != after.attrib[cell]) {
+                        compositor.backgroundCache.invalidateTile(nt, cell)
+                    }
+                }
+            }
+        }
+        cachedNameTables = nameTables
+
+        // Changed tiles are new copies, so the cache finds them by identity:
+        if (patterns !== cachedPatterns) {
+            compositor.backgroundCache.invalidatePatternTiles(0, patterns.size)
+            cachedPatterns = patterns
+        }
+    }
+
+    private class NameTables(val tables: Array<NameTable>, val mirroring: IntArray)
+
+    private class Patterns(val tiles: Array<Tile>)
+
+    private class Palettes(val image: IntArray, val sprite: IntArray)
+
+    // One frame: entries of ENTRY_SIZE ints, each with three copies of PPU state in refs, and the frame borders:
+    private class FrameLog {
+        var ops = IntArray(ENTRY_SIZE * 512)
+        var size = 0
+        var refs = arrayOfNulls<Any>(3 * 512)
+        var refCount = 0
+
+        var bgColor = 0
+        val borders = FrameCompositor.Borders()
+
+        var buffer: IntArray? = null
+        var analytics: Array<FrameAnalytics> = emptyArray()
+        var indexed = false
+
+        fun clear() {
+            size = 0
+            refCount = 0
+        }
+
+        fun add(op: Int, a: Int, b: Int, c: Int, d: Int, e: Int, f: Int, g: Int, h: Int, i: Int) {
+            if (size + ENTRY_SIZE > ops.size) {
+                ops = ops.copyOf(ops.size * 2)
+            }
+            ops[size] = op
+            ops[size + 1] = a
+            ops[size + 2] = b
+            ops[size + 3] = c
+            ops[size + 4] = d
+            ops[size + 5] = e
+            ops[size + 6] = f
+            ops[size + 7] = g
+            ops[size + 8] = h
+            ops[size + 9] = i
+            size += ENTRY_SIZE
+        }
+
+        fun addRefs(a: Any, b: Any, c: Any) {
+            if (refCount + 3 > refs.size) {
+                refs = refs.copyOf(refs.size * 2)
+            }
+            refs[refCount] = a
+            refs[refCount + 1] = b
+            refs[refCount + 2] = c
+            refCount += 3
+        }
+
+        // Drops the copies of PPU state, which may be large:
+        fun release() {
+            Arrays.fill(refs, 0, refCount, null)
+            buffer = null
+            analytics = emptyArray()
+        }
+    }
+
+    companion object {
+        private const val BG_LINE = 0
+        private const val FLUSH = 1
+        private const val ENTRY_SIZE = 10
+    }
+}
@@ -0,0 +1,31 @@
+/*
+ *
+ *  * Copyright (C) 2025 Artur Skowroński
+ *  * This file is part of kNES, a fork of vNES (GPLv3) rewritten in Kotlin.
+ *  *
+ *  * vNES was originally developed by Brian F. R. (bfirsh) and released under the GPL-3.0 license.
+ *  * This project is a reimplementation and extension of that work.
+ *  *
+ *  * kNES is licensed under the GNU General Public License v3.0.
+ *  * See the LICENSE file for more details.
+ *
+ */
+
+package knes.emulator.ppu
+
+/**
+ * Opt-in statistics about each rendered frame, see [PPU.addFrameAnalytics]. The PPU computes nothing while no
+ * listener is added.
+ */
+fun interface FrameAnalytics {
+
+    /**
+     * Called on the emulation thread when a frame is complete, or on the renderer thread with
+     * [knes.emulator.utils.Globals.enableDeferredRendering]. [histogram] holds the number of pixels of each
+     * NES palette index, 64 entries. [otherPixels] counts the pixels matching no color of the current palette,
+     * like debug overlays or rows drawn before the color emphasis changed.
+     *
+     * The array is reused for the next frame, copy what has to be kept.
+     */
+    fun frameCompleted(histogram: IntArray, otherPixels: Int)
+}
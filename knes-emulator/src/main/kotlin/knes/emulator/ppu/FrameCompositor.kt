@@ -0,0 +1,325 @@
+/*
+ *
+ *  * Copyright (C) 2025 Artur Skowroński
+ *  * This file is part of kNES, a fork of vNES (GPLv3) rewritten in Kotlin.
+ *  *
+ *  * vNES was originally developed by Brian F. R. (bfirsh) and released under the GPL-3.0 license.
+ *  * This project is a reimplementation and extension of that work.
+ *  *
+ *  * kNES is licensed under the GNU General Public License v3.0.
+ *  * See the LICENSE file for more details.
+ *
+ */
+
+package knes.emulator.ppu
+
+import knes.emulator.Tile
+import knes.emulator.utils.NameTable
+import java.util.Arrays
+
+/**
+ * Draws background lines, sprites and the frame overlays into a frame buffer with the PPU's drawing rules.
+ *
+ * The PPU draws with it while it emulates, passing its live state. The [DeferredRenderer] replays a logged frame
+ * with it on its worker thread, passing the logged copies of that state. Each keeps its own instance, which holds
+ * the background buffer, the pixel priority table, the background cache and the sprite lines of the frame it draws.
+ */
+internal class FrameCompositor {
+
+    // Background scanlines drawn ahead of the sprites, composited by renderFlush():
+    val bgbuffer = IntArray(256 * 240)
+
+    // Per pixel: the sprite drawn there in the low byte, 256 when the background is opaque:
+    val pixrendered = IntArray(256 * 240)
+
+    // Frame in which each row of pixrendered was last cleared, so rows are reset on first use
+    // instead of clearing the whole table at the start of every frame:
+    private val pixrenderedFrame = IntArray(240)
+    private var pixrenderedFrameNumber = 0
+
+    val spriteLines = SpriteLines()
+    val backgroundCache = BackgroundCache()
+
+    fun startFrame() {
+        pixrenderedFrameNumber++
+    }
+
+    /**
+     * Clears the given rows of the pixel priority table if they have not been used yet in the current frame.
+     */
+    fun preparePixrendered(firstRow: Int, lastRow: Int) {
+        for (row in maxOf(firstRow, 0)..minOf(lastRow, 239)) {
+            if (pixrenderedFrame[row] != pixrenderedFrameNumber) {
+                pixrenderedFrame[row] = pixrenderedFrameNumber
+                Arrays.fill(pixrendered, row shl 8, (row shl 8) + 256, 65)
+            }
+        }
+    }
+
+    /**
+     * Marks all rows of the pixel priority table as used in the current frame, after it was restored from a state.
+     */
+    fun keepPixrendered() {
+        pixrenderedFrame.fill(pixrenderedFrameNumber)
+    }
+
+    /**
+     * Draws background scanline [scan] from the cached name table planes, with the scroll counters at its start.
+     * [mirroring] maps the four logical name tables to [nameTables].
+     */
+    fun renderBgLine(
+        buffer: IntArray,
+        scan: Int,
+        cntFV: Int,
+        cntV: Int,
+        cntH: Int,
+        cntVT: Int,
+        cntHT: Int,
+        regFH: Int,
+        baseTile: Int,
+        nameTables: Array<out NameTable?>,
+        mirroring: IntArray,
+        patterns: Array<Tile>,
+        palette: IntArray
+    ) {
+        preparePixrendered(scan, scan)
+
+        val row = (cntVT shl 3) + cntFV
+        val leftNt = mirroring[(cntV shl 1) + cntH]
+        val rightNt = mirroring[(cntV shl 1) + (cntH xor 1)]
+        val left = backgroundCache.getPlane(leftNt, cntVT, nameTables[leftNt]!!, patterns, baseTile)
+        val right = backgroundCache.getPlane(rightNt, cntVT, nameTables[rightNt]!!, patterns, baseTile)
+
+        // The fine X scroll shifts the row left, and the last regFH pixels are not drawn:
+        val split = 256 - (cntHT shl 3) - regFH
+        blitPlane(buffer, scan shl 8, left, (row shl 8) + (cntHT shl 3) + regFH, split, palette)
+        blitPlane(buffer, (scan shl 8) + split, right, row shl 8, 256 - regFH - split, palette)
+    }
+
+    private fun blitPlane(buffer: IntArray, destStart: Int, plane: ByteArray, srcStart: Int, length: Int, palette: IntArray) {
+        var dest = destStart
+        for (src in srcStart until srcStart + length) {
+            val index = plane[src].toInt()
+            if ((index and 3) != 0) {
+                buffer[dest] = palette[index]
+                pixrendered[dest] = pixrendered[dest] or 256
+            }
+            dest++
+        }
+    }
+
+    /**
+     * Draws [scanCount] scanlines from [startScan]: the sprites behind the background, the background from
+     * [bgbuffer], then the sprites in front of it. [spriteTiles] is the first pattern of 8x8 sprites and
+     * [spriteLimit] the number of sprites per line, 64 for no limit.
+     */
+    fun renderFlush(
+        buffer: IntArray,
+        startScan: Int,
+        scanCount: Int,
+        bgVisible: Boolean,
+        spritesVisible: Boolean,
+        spriteHeight: Int,
+        spriteTiles: Int,
+        spriteLimit: Int,
+        sprites: Sprites,
+        patterns: Array<Tile>,
+        palette: IntArray
+    ) {
+        // Sprites clipped to this range may still draw one line below it:
+        preparePixrendered(startScan, startScan + scanCount + 1)
+
+        if (spritesVisible) {
+            renderSprites(buffer, startScan, scanCount, true, spriteHeight, spriteTiles, spriteLimit, sprites, patterns, palette)
+        }
+
+        if (bgVisible) {
+            val end = minOf((startScan + scanCount) shl 8, 0xF000)
+            for (i in startScan shl 8 until end) {
+                if (pixrendered[i] > 0xFF) {
+                    buffer[i] = bgbuffer[i]
+                }
+            }
+        }
+
+        if (spritesVisible) {
+            renderSprites(buffer, startScan, scanCount, false, spriteHeight, spriteTiles, spriteLimit, sprites, patterns, palette)
+        }
+    }
+
+    private fun renderSprites(
+        buffer: IntArray,
+        startScan: Int,
+        scanCount: Int,
+        bgPri: Boolean,
+        spriteHeight: Int,
+        spriteTiles: Int,
+        spriteLimit: Int,
+        sprites: Sprites,
+        patterns: Array<Tile>,
+        palette: IntArray
+    ) {
+        spriteLines.update(sprites.y, spriteHeight, spriteLimit)
+        val endScan = startScan + scanCount
+
+        // Only the sprites on the flushed lines are visited:
+        var mask = spriteLines.inRange(startScan, endScan)
+        while (mask != 0L) {
+            val i = java.lang.Long.numberOfTrailingZeros(mask)
+            mask = mask and (mask - 1)
+            if (sprites.bgPriority[i] != bgPri || sprites.x[i] < 0 || sprites.x[i] >= 256) {
+                continue
+            }
+
+            if ((spriteLines.partialMask and (1L shl i)) == 0L) {
+                // 8x8 sprites are drawn one line past the range, which the next flush draws again:
+                val lastLine = if (spriteHeight == 8) endScan + 1 else endScan
+                renderSprite(buffer, i, startScan, lastLine, spriteHeight, spriteTiles, sprites, patterns, palette)
+            } else {
+                // Dropped from some of its lines by the sprite limit:
+                for (line in startScan..endScan) {
+                    if (spriteLines.isOnLine(i, line)) {
+                        renderSprite(buffer, i, line, line, spriteHeight, spriteTiles, sprites, patterns, palette)
+                    }
+                }
+            }
+        }
+    }
+
+    // Renders the lines firstLine to lastLine of a sprite.
+    private fun renderSprite(
+        buffer: IntArray,
+        i: Int,
+        firstLine: Int,
+        lastLine: Int,
+        spriteHeight: Int,
+        spriteTiles: Int,
+        sprites: Sprites,
+        patterns: Array<Tile>,
+        palette: IntArray
+    ) {
+        val dy = sprites.y[i] + 1
+        if (spriteHeight == 8) {
+            renderSpriteTile(buffer, patterns[sprites.tile[i] + spriteTiles], i, dy, firstLine, lastLine, sprites, palette)
+        } else {
+            var top = sprites.tile[i]
+            if ((top and 1) != 0) {
+                top = sprites.tile[i] - 1 + 256
+            }
+            val flip = sprites.vertFlip[i]
+            renderSpriteTile(buffer, patterns[top + (if (flip) 1 else 0)], i, dy, firstLine, lastLine, sprites, palette)
+            renderSpriteTile(buffer, patterns[top + (if (flip) 0 else 1)], i, dy + 8, firstLine, lastLine, sprites, palette)
+        }
+    }
+
+    private fun renderSpriteTile(
+        buffer: IntArray,
+        t: Tile,
+        i: Int,
+        dy: Int,
+        firstLine: Int,
+        lastLine: Int,
+        sprites: Sprites,
+        palette: IntArray
+    ) {
+        val srcy1 = maxOf(firstLine - dy, 0)
+        val srcy2 = minOf(lastLine - dy + 1, 8)
+        if (srcy1 < srcy2) {
+            t.render(
+                0, srcy1, 8, srcy2, sprites.x[i], dy, buffer, sprites.col[i], palette,
+                sprites.horiFlip[i], sprites.vertFlip[i], i, pixrendered
+            )
+        }
+    }
+
+    /**
+     * Draws the overlays of a completed frame: the sprite #0 debug lines, the clipped borders and the sound
+     * buffer bar.
+     */
+    fun drawBorders(buffer: IntArray, borders: Borders) {
+        // Sprite #0 position and hit position:
+        drawCross(buffer, borders.spr0X, borders.spr0Y, borders.spr0Color)
+        drawCross(buffer, borders.hitX, borders.hitY, borders.hitColor)
+
+        // If either the sprites or the background should be clipped, both are clipped after rendering is finished:
+        val black = borders.black
+        if (borders.clipLeft) {
+            for (y in 0..239) {
+                Arrays.fill(buffer, y shl 8, (y shl 8) + 8, black)
+            }
+        }
+        if (borders.clipRight) {
+            for (y in 0..239) {
+                Arrays.fill(buffer, (y shl 8) + 248, (y shl 8) + 256, black)
+            }
+        }
+        if (borders.clipRows) {
+            Arrays.fill(buffer, 0, 8 shl 8, black)
+            Arrays.fill(buffer, 232 shl 8, 240 shl 8, black)
+        }
+
+        if (borders.soundBar >= 0) {
+            for (y in 0..3) {
+                for (x in 0..255) {
+                    buffer[(y shl 8) + x] = if (x >= borders.soundBar) borders.white else black
+                }
+            }
+        }
+    }
+
+    private fun drawCross(buffer: IntArray, x: Int, y: Int, color: Int) {
+        if (x >= 0 && x < 256 && y >= 0 && y < 240) {
+            Arrays.fill(buffer, y shl 8, (y shl 8) + 256, color)
+            for (i in 0..239) {
+                buffer[(i shl 8) + x] = color
+            }
+        }
+    }
+
+    /**
+     * The sprite attributes renderFlush() reads, see PPU.spriteRamWriteUpdate().
+     */
+    class Sprites(
+        val x: IntArray,
+        val y: IntArray,
+        val tile: IntArray,
+        val col: IntArray,
+        val vertFlip: BooleanArray,
+        val horiFlip: BooleanArray,
+        val bgPriority: BooleanArray
+    )
+
+    /**
+     * What drawBorders() draws over a completed frame. Coordinates outside the screen draw no sprite #0 lines, and a
+     * negative [soundBar] no sound buffer bar.
+     */
+    class Borders {
+        var spr0X = -1
+        var spr0Y = -1
+        var spr0Color = 0
+        var hitX = -1
+        var hitY = -1
+        var hitColor = 0
+        var clipLeft = false
+        var clipRight = false
+        var clipRows = false
+        var black = 0
+        var soundBar = -1
+        var white = 0
+
+        fun copyFrom(other: Borders) {
+            spr0X = other.spr0X
+            spr0Y = other.spr0Y
+            spr0Color = other.spr0Color
+            hitX = other.hitX
+            hitY = other.hitY
+            hitColor = other.hitColor
+            clipLeft = other.clipLeft
+            clipRight = other.clipRight
+            clipRows = other.clipRows
+            black = other.black
+            soundBar = other.soundBar
+            white = other.white
+        }
+    }
+}
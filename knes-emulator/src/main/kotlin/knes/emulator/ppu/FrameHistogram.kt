@@ -0,0 +1,99 @@
+/*
+ *
+ *  * Copyright (C) 2025 Artur Skowroński
+ *  * This file is part of kNES, a fork of vNES (GPLv3) rewritten in Kotlin.
+ *  *
+ *  * vNES was originally developed by Brian F. R. (bfirsh) and released under the GPL-3.0 license.
+ *  * This project is a reimplementation and extension of that work.
+ *  *
+ *  * kNES is licensed under the GNU General Public License v3.0.
+ *  * See the LICENSE file for more details.
+ *
+ */
+
+package knes.emulator.ppu
+
+/**
+ * Counts the pixels of a frame per NES palette index, for [FrameAnalytics].
+ *
+ * For RGB frames, the 64 colors of the current palette go into a small open addressing table from RGB value to palette index,
+ * rebuilt for every frame, so counting needs no boxing or allocation. When several indices share the same RGB
+ * value, e.g. the blacks, their pixels are counted for the lowest one.
+ */
+internal class FrameHistogram {
+
+    val counts = IntArray(64)
+    var otherPixels = 0
+        private set
+
+    private val keys = IntArray(TABLE_SIZE)
+
+    // Palette index + 1 per slot, 0 for an empty slot:
+    private val values = IntArray(TABLE_SIZE)
+
+    fun count(buffer: IntArray, palette: IntArray) {
+        values.fill(0)
+        for (i in 0 until 64) {
+            var slot = hash(palette[i])
+            while (values[slot] != 0 && keys[slot] != palette[i]) {
+                slot = (slot + 1) and (TABLE_SIZE - 1)
+            }
+            if (values[slot] == 0) {
+                keys[slot] = palette[i]
+                values[slot] = i + 1
+            }
+        }
+
+        counts.fill(0)
+        var other = 0
+
+        // Neighbouring pixels mostly have the same color, so the last lookup is reused:
+        var lastColor = buffer[0] + 1
+        var lastIndex = -1
+        for (pixel in buffer) {
+            if (pixel != lastColor) {
+                lastColor = pixel
+                lastIndex = lookup(pixel)
+            }
+            if (lastIndex >= 0) {
+                counts[lastIndex]++
+            } else {
+                other++
+            }
+        }
+        otherPixels = other
+    }
+
+    /**
+     * Counts a frame rendered in indexed color mode, where every pixel already holds its palette index.
+     */
+    fun countIndexed(buffer: IntArray) {
+        counts.fill(0)
+        for (pixel in buffer) {
+            counts[pixel and 63]++
+        }
+        otherPixels = 0
+    }
+
+    // Returns the palette index of the given color, or -1:
+    private fun lookup(color: Int): Int {
+        var slot = hash(color)
+        while (values[slot] != 0) {
+            if (keys[slot] == color) {
+                return values[slot] - 1
+            }
+            slot = (slot + 1) and (TABLE_SIZE - 1)
+        }
+        return -1
+    }
+
+    private fun hash(color: Int): Int {
+        return (color * -0x61c88647) ushr (32 - TABLE_BITS)
+    }
+
+    companion object {
+        // Twice the palette size, keeping probe sequences short:
+        private const val TABLE_BITS = 7
+        private const val TABLE_SIZE = 1 shl TABLE_BITS
+    }
+}
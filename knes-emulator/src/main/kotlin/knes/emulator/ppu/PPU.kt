@@ -19,16 +19,14 @@ import knes.emulator.ROM
 import knes.emulator.Tile
 import knes.emulator.cpu.CPU
 import knes.emulator.mappers.MemoryMapper
+import knes.emulator.ui.FrameExchange
 import knes.emulator.ui.GUI
 import knes.emulator.utils.Globals
 import knes.emulator.utils.HiResTimer
+import knes.emulator.utils.Misc
 import knes.emulator.utils.NameTable
 import knes.emulator.utils.PaletteTable
 import java.util.Arrays
-import java.util.Locale
-import java.util.Map
-import java.util.function.Consumer
-import java.util.stream.Collectors
 import javax.sound.sampled.SourceDataLine
 
 class PPU : PPUCycles {
@@ -51,8 +49,10 @@ class PPU : PPUCycles {
 
     private var showSoundBuffer = false
     var isEnablePpuLogging: Boolean = false
-        get() = field
         set(value) {
+            if (value != field) {
+                if (value) addFrameAnalytics(colorLogger) else removeFrameAnalytics(colorLogger)
+            }
             field = value
         }
     private val clipTVcolumn = true
@@ -124,20 +124,56 @@ class PPU : PPUCycles {
     private var bgPriority: BooleanArray = BooleanArray(64) // Background priority
     private var spr0HitX = 0 // Sprite #0 hit X coordinate
     private var spr0HitY = 0 // Sprite #0 hit Y coordinate
+    private var spr0HitDot = -1 // scanline * 341 + curX of the sprite #0 hit, -1 if none
     var hitSpr0: Boolean = false
 
     // Tiles:
     @JvmField
     var ptTile: Array<knes.emulator.Tile>? = null
 
+    // Pattern rows written to since they were last decoded, bit tile * 8 + row:
+    private val dirtyPatternRows = LongArray(64)
+    private var patternsDirty = false
+
     // Name table data:
     var ntable1: IntArray = IntArray(4)
     var nameTable: Array<knes.emulator.utils.NameTable?> = arrayOfNulls<knes.emulator.utils.NameTable>(4)
     var currentMirroring: Int = -1
 
-    // Palette data:
-    private val sprPalette = IntArray(16)
-    private val imgPalette = IntArray(16)
+    // Palette data, one bank per emphasis setting (0-7) and the same with the grayscale bit (8-15), so that
+    // writes to $2001 only select a bank:
+    private val imgPalettes = Array(16) { IntArray(16) }
+    private val sprPalettes = Array(16) { IntArray(16) }
+    private var imgPalette = imgPalettes[0]
+    private var sprPalette = sprPalettes[0]
+
+    // PaletteTable.indexedTable the banks were computed from, null when they have to be computed again:
+    private var paletteSource: IntArray? = null
+
+    // Whether the screen view takes palette indices instead of RGB, see ScreenView.indexedColor():
+    private var indexedColor = false
+
+    // Where completed frames are published, see ScreenView.getFrameExchange():
+    private var frameExchange: FrameExchange? = null
+
+    /**
+     * The number of frames skipped after each rendered frame, or [SKIP_ALL_FRAMES] to render none.
+     * Skipped frames are emulated the same, with the same timing, VBlank, NMI and sprite 0 hits, but nothing is drawn,
+     * frame analytics are not called and the screen view gets imageReady(true). Applies from the next frame.
+     */
+    @Volatile
+    var frameSkip = 0
+        set(value) {
+            require(value >= SKIP_ALL_FRAMES) { "Invalid frame skip: $value" }
+            field = value
+        }
+
+    // Whether the current frame is drawn, and the frames skipped since the last drawn one:
+    private var renderFrame = true
+    private var framesSkipped = 0
+
+    // Whether the frame is drawn by the deferred renderer instead, see Globals.enableDeferredRendering:
+    private var deferFrame = false
 
     // Misc:
     private var scanlineAlreadyRendered = false
@@ -154,8 +190,9 @@ class PPU : PPUCycles {
 
     // Variables used when rendering:
     private val attrib = IntArray(32)
-    private val bgbuffer = IntArray(256 * 240)
-    private val pixrendered = IntArray(256 * 240)
+    private val compositor = FrameCompositor()
+    private val bgbuffer = compositor.bgbuffer
+    private val pixrendered = compositor.pixrendered
     private val spr0dummybuffer = IntArray(256 * 240)
     private val dummyPixPriTable = IntArray(256 * 240)
     private val oldFrame = IntArray(256 * 240)
@@ -163,7 +200,8 @@ class PPU : PPUCycles {
     @JvmField
     var buffer: IntArray = IntArray(256 * 240)
 
-    private var tpix: IntArray = IntArray(64)
+    // Pixels of the tile row being rendered, see Tile.getRow():
+    private var tpix = 0
 
     val scanlineChanged: BooleanArray = BooleanArray(240)
 
@@ -181,13 +219,14 @@ class PPU : PPUCycles {
     private var y = 0
     private var sx = 0
     private var si = 0
-    private var ei = 0
     private var tile = 0
     private var col = 0
     private var baseTile = 0
-    private var tscanoffset = 0
-    private var srcy1 = 0
-    private var srcy2 = 0
+    private val spriteLines = compositor.spriteLines
+    private val backgroundCache = compositor.backgroundCache
+    private var sprites = FrameCompositor.Sprites(sprX, sprY, sprTile, sprCol, vertFlip, horiFlip, bgPriority)
+    private val borders = FrameCompositor.Borders()
+    private val deferredRenderer = DeferredRenderer()
     private var bufferSize = 0
     private var available = 0
     private var scale = 0
@@ -198,18 +237,29 @@ class PPU : PPUCycles {
 
     private var cycles = 0
 
-    // Maps to store pixel color counts for debugging
-    private val currentFrameColorCounts: MutableMap<Int?, Int?> = HashMap<Int?, Int?>()
-    private val previousFrameColorCounts: MutableMap<Int?, Int?> = HashMap<Int?, Int?>()
+    // PPU cycles added by the CPU but not emulated yet, and how many can be left pending. Pending cycles would only
+    // advance curX, so they are emulated when the next event is reached or when the PPU is accessed, see addCycles():
+    private var pendingCycles = 0
+    private var pendingLimit = 0
 
-    val topColors: MutableList<MutableMap.MutableEntry<Int?, Int?>?>
-        /**
-         * Returns the top 5 most common colors in the current frame.
-         *
-         * @return A list of Map.Entry objects containing the color (key) and count (value)
-         */
-        get() = currentFrameColorCounts.entries.stream().sorted(Map.Entry.comparingByValue<Int?, Int?>().reversed())
-            .limit(5).collect(Collectors.toList())
+    // Frame statistics, only computed while a listener is added:
+    @Volatile
+    private var frameAnalytics: Array<FrameAnalytics> = emptyArray()
+    private val frameHistogram = FrameHistogram()
+    private val colorLogger = ColorLogger()
+
+    /**
+     * Adds a listener called with the color histogram of every frame, see [FrameAnalytics].
+     */
+    @Synchronized
+    fun addFrameAnalytics(listener: FrameAnalytics) {
+        frameAnalytics = frameAnalytics + listener
+    }
+
+    @Synchronized
+    fun removeFrameAnalytics(listener: FrameAnalytics) {
+        frameAnalytics = frameAnalytics.filter { it !== listener }.toTypedArray()
+    }
 
     fun init(
         gui: GUI,
@@ -227,6 +277,8 @@ class PPU : PPUCycles {
         this.cpu = cpu
         this.sourceDataLine = sourceDataLine
         this.palTable = palTable
+        indexedColor = gui.getScreenView().indexedColor()
+        frameExchange = gui.getScreenView().getFrameExchange()
 
         updateControlReg1(0)
         updateControlReg2(0)
@@ -243,6 +295,8 @@ class PPU : PPUCycles {
         vertFlip = BooleanArray(64)
         horiFlip = BooleanArray(64)
         bgPriority = BooleanArray(64)
+        sprites = FrameCompositor.Sprites(sprX, sprY, sprTile, sprCol, vertFlip, horiFlip, bgPriority)
+        spriteLines.invalidate()
 
         // Create pattern table tile buffers:
         if (ptTile == null) {
@@ -255,6 +309,11 @@ class PPU : PPUCycles {
         for (i in 0..3) {
             nameTable[i] = NameTable(32, 32, "Nt" + i)
         }
+        backgroundCache.invalidateAll()
+        deferredRenderer.setSources(
+            nameTable, ntable1, ptTile!!, imgPalette, sprPalette,
+            sprX, sprY, sprTile, sprCol, vertFlip, horiFlip, bgPriority
+        )
 
         // Initialize mirroring lookup table:
         vramMirrorTable = IntArray(0x8000)
@@ -280,6 +339,7 @@ class PPU : PPUCycles {
 
         currentMirroring = mirroring
         triggerRendering()
+        deferredRenderer.invalidateNameTables()
 
         // Remove mirroring:
         if (vramMirrorTable == null) {
@@ -360,16 +420,43 @@ class PPU : PPUCycles {
         }
     }
 
+    // Records PPU cycles run by the CPU. They are emulated when they reach the sprite 0 hit, the VBlank NMI or the
+    // end of the scanline. Until then nothing but curX would change, and every access goes through catchUp() first.
+    override fun addCycles(cycles: Int) {
+        pendingCycles += cycles
+        if (pendingCycles > pendingLimit) {
+            catchUp()
+            pendingLimit = cyclesToNextEvent()
+        }
+    }
+
+    override fun catchUp() {
+        if (pendingCycles > 0) {
+            cycles = pendingCycles
+            pendingCycles = 0
+            emulateCycles()
+        }
+
+        // The access may change what comes next:
+        pendingLimit = 0
+    }
+
     // Emulates PPU cycles
     override fun emulateCycles() {
-        //int n = (!requestEndFrame && curX+cycles<341 && (scanline-20 < spr0HitY || scanline-22 > spr0HitY))?cycles:1;
-
         while (cycles > 0) {
-            if (scanline - 21 == spr0HitY) {
-                if ((curX == spr0HitX) && (f_spVisibility == 1)) {
-                    // Set sprite 0 hit flag:
-                    setStatusFlag(STATUS_SPRITE0HIT, true)
+            // Cycles that only advance curX are skipped at once:
+            val idle = minOf(cyclesToNextEvent(), cycles - 1)
+            if (idle > 0) {
+                curX += idle
+                if (requestEndFrame) {
+                    nmiCounter -= idle
                 }
+                cycles -= idle
+            }
+
+            if (scanline * 341 + curX == spr0HitDot) {
+                // Set sprite 0 hit flag:
+                setStatusFlag(STATUS_SPRITE0HIT, true)
             }
 
             if (requestEndFrame) {
@@ -390,12 +477,34 @@ class PPU : PPUCycles {
         }
     }
 
+    override fun idleCycles(): Int {
+        return cyclesToNextEvent() - pendingCycles
+    }
+
+    // Cycles until the sprite 0 hit, the VBlank NMI or the end of the scanline, whichever comes first:
+    private fun cyclesToNextEvent(): Int {
+        var idle = 340 - curX
+        if (requestEndFrame) {
+            idle = minOf(idle, nmiCounter - 1)
+        }
+        val spr0Hit = spr0HitDot - (scanline * 341 + curX)
+        if (spr0Hit >= 0) {
+            idle = minOf(idle, spr0Hit)
+        }
+        return idle
+    }
+
     fun startVBlank() {
         // Start VBlank period:
         // Do NMI:
 
         cpu!!.requestIrq(knes.emulator.cpu.CPU.Companion.IRQ_NMI)
 
+        // The frame is complete, NES.runFrame() returns after the current instruction:
+        if (cpu!!.stopAtVBlank) {
+            cpu!!.stopRunning = true
+        }
+
         // Make sure everything is rendered:
         if (lastRenderedScanline < 239) {
             renderFramePartially(
@@ -403,69 +512,34 @@ class PPU : PPUCycles {
             )
         }
 
-        /**Generate here debbuging info for the framebuffer. I want you to aggregate pixels per color and show it in the console. I want to show it only if changed between frames */
-        // Clear current frame color counts
-        currentFrameColorCounts.clear()
-
-        // Get the buffer and count pixels by color
-        val frameBuffer = gui!!.getScreenView().getBuffer()
-        for (i in frameBuffer.indices) {
-            val color = frameBuffer[i]
-            currentFrameColorCounts.put(color, currentFrameColorCounts.getOrDefault(color, 0)!! + 1)
-        }
-
-        // Get the top 5 colors sorted by color value
-        val top5Colors =
-            currentFrameColorCounts.entries.stream().sorted(Map.Entry.comparingByKey<Int?, Int?>()).limit(5)
-                .collect(Collectors.toList())
+        // The frame handed to the deferred renderer at the last VBlank is drawn by now:
+        val deferredFrameDrawn = deferredRenderer.finish()
 
-        // Get the previous top 5 colors
-        val prevTop5Colors =
-            previousFrameColorCounts.entries.stream().sorted(Map.Entry.comparingByKey<Int?, Int?>()).limit(5)
-                .collect(Collectors.toList())
+        if (renderFrame && deferFrame) {
+            deferredRenderer.recordFrameEnd(updateBorders())
+            deferredRenderer.submit(gui!!.getScreenView(), frameExchange, frameAnalytics, indexedColor)
+        } else if (renderFrame) {
+            endFrame()
 
-        // Check if the top 5 colors have changed
-        var top5ColorsChanged = false
-        if (top5Colors.size != prevTop5Colors.size) {
-            top5ColorsChanged = true
-        } else {
-            for (i in top5Colors.indices) {
-                if (i >= prevTop5Colors.size) {
-                    top5ColorsChanged = true
-                    break
+            val listeners = frameAnalytics
+            if (listeners.isNotEmpty()) {
+                if (indexedColor) {
+                    frameHistogram.countIndexed(gui!!.getScreenView().getBuffer())
+                } else {
+                    frameHistogram.count(gui!!.getScreenView().getBuffer(), PaletteTable.curTable)
                 }
-                val current = top5Colors.get(i)
-                val previous = prevTop5Colors.get(i)
-                if (current.key != previous.key || current.value != previous.value) {
-                    top5ColorsChanged = true
-                    break
+                for (listener in listeners) {
+                    listener.frameCompleted(frameHistogram.counts, frameHistogram.otherPixels)
                 }
             }
-        }
 
-        // Display top 5 colors only if they changed and logging is enabled
-        if (top5ColorsChanged && this.isEnablePpuLogging) {
-            println("======================")
-            println("[PPU] Top 5 colors in buffer (sorted by color):")
-            top5Colors.forEach(Consumer { entry: MutableMap.MutableEntry<Int?, Int?>? ->
-                println(
-                    "[PPU] 0x" + Integer.toHexString(
-                        entry!!.key!!
-                    ).uppercase(Locale.getDefault()) + " : " + entry.value
-                )
-            })
-            println("Total unique colors: " + currentFrameColorCounts.size)
+            // Hand the frame to the UI and continue in the next buffer:
+            frameExchange?.let { buffer = it.publish() }
         }
 
-        // Update previous frame color counts for next comparison
-        previousFrameColorCounts.clear()
-        previousFrameColorCounts.putAll(currentFrameColorCounts)
-
-        endFrame()
-
-
         // Notify image buffer:
-        gui!!.getScreenView().imageReady(false)
+        val frameDrawn = renderFrame && !deferFrame || deferredFrameDrawn
+        gui!!.getScreenView().imageReady(!frameDrawn)
 
         // Reset scanline counter:
         lastRenderedScanline = -1
@@ -499,6 +573,7 @@ class PPU : PPUCycles {
             hitSpr0 = false
             spr0HitX = -1
             spr0HitY = -1
+            spr0HitDot = -1
 
             if (f_bgVisibility == 1 || f_spVisibility == 1) {
                 // Update counters:
@@ -569,7 +644,26 @@ class PPU : PPUCycles {
     }
 
     fun startFrame() {
-        val buffer = gui!!.getScreenView().getBuffer()
+        compositor.startFrame()
+
+        // Decide whether this frame is drawn:
+        val skip = frameSkip
+        if (skip != SKIP_ALL_FRAMES && framesSkipped >= skip) {
+            renderFrame = true
+            framesSkipped = 0
+        } else {
+            renderFrame = false
+            deferFrame = false
+            framesSkipped++
+            return
+        }
+
+        // The software scalers need the changed scanlines, which only drawing on this thread finds:
+        deferFrame = Globals.enableDeferredRendering && !isNonHWScalingEnabled
+        if (!deferFrame && deferredRenderer.finish()) {
+            // The renderer published its last frame, continue in the buffer after it:
+            frameExchange?.let { buffer = it.getBackBuffer() }
+        }
 
         // Set background color:
         var bgColor = 0
@@ -580,6 +674,8 @@ class PPU : PPUCycles {
             // Use first entry of image palette as BG color.
 
             bgColor = imgPalette[0]
+        } else if (indexedColor) {
+            bgColor = BLACK_INDEX
         } else {
             // Monochrome display.
             // f_color determines the bg color.
@@ -655,93 +751,51 @@ class PPU : PPUCycles {
             }
         }
 
+        if (deferFrame) {
+            deferredRenderer.beginFrame(bgColor)
+            return
+        }
+
+        val buffer = gui!!.getScreenView().getBuffer()
         for (i in buffer.indices) {
             buffer[i] = bgColor
         }
-        for (i in pixrendered.indices) {
-            pixrendered[i] = 65
-        }
     }
 
     fun endFrame() {
-        val buffer = gui!!.getScreenView().getBuffer()
-
-        // Count colors in the buffer
-        currentFrameColorCounts.clear()
-        for (pixel in buffer) {
-            currentFrameColorCounts.put(pixel, currentFrameColorCounts.getOrDefault(pixel, 0)!! + 1)
-        }
+        compositor.drawBorders(gui!!.getScreenView().getBuffer(), updateBorders())
 
-        // Draw spr#0 hit coordinates:
-        if (showSpr0Hit) {
-            // Spr 0 position:
-            if (sprX[0] >= 0 && sprX[0] < 256 && sprY[0] >= 0 && sprY[0] < 240) {
-                for (i in 0..255) {
-                    buffer[(sprY[0] shl 8) + i] = 0xFF5555
-                }
-                for (i in 0..239) {
-                    buffer[(i shl 8) + sprX[0]] = 0xFF5555
-                }
-            }
-            // Hit position:
-            if (spr0HitX >= 0 && spr0HitX < 256 && spr0HitY >= 0 && spr0HitY < 240) {
-                for (i in 0..255) {
-                    buffer[(spr0HitY shl 8) + i] = 0x55FF55
-                }
-                for (i in 0..239) {
-                    buffer[(i shl 8) + spr0HitX] = 0x55FF55
-                }
+        // The sound buffer bar changes every frame:
+        if (borders.soundBar >= 0) {
+            for (y in 0..3) {
+                scanlineChanged[y] = true
             }
         }
+    }
+
+    // Sets what is drawn over the completed frame, see FrameCompositor.drawBorders():
+    private fun updateBorders(): FrameCompositor.Borders {
+        // Sprite #0 and hit coordinates:
+        borders.spr0X = if (showSpr0Hit) sprX[0] else -1
+        borders.spr0Y = if (showSpr0Hit) sprY[0] else -1
+        borders.spr0Color = debugColor(0xFF5555, 0x16)
+        borders.hitX = if (showSpr0Hit) spr0HitX else -1
+        borders.hitY = if (showSpr0Hit) spr0HitY else -1
+        borders.hitColor = debugColor(0x55FF55, 0x2A)
 
         // This is a bit lazy..
         // if either the sprites or the background should be clipped,
         // both are clipped after rendering is finished.
-        if (clipTVcolumn || f_bgClipping == 0 || f_spClipping == 0) {
-            // Clip left 8-pixels column:
-            for (y in 0..239) {
-                for (x in 0..7) {
-                    buffer[(y shl 8) + x] = 0
-                }
-            }
-        }
-
-        if (clipTVcolumn) {
-            // Clip right 8-pixels column too:
-            for (y in 0..239) {
-                for (x in 0..7) {
-                    buffer[(y shl 8) + 255 - x] = 0
-                }
-            }
-        }
-
-        // Clip top and bottom 8 pixels:
-        if (clipTVrow) {
-            for (y in 0..7) {
-                for (x in 0..255) {
-                    buffer[(y shl 8) + x] = 0
-                    buffer[((239 - y) shl 8) + x] = 0
-                }
-            }
-        }
+        borders.clipLeft = clipTVcolumn || f_bgClipping == 0 || f_spClipping == 0
+        borders.clipRight = clipTVcolumn
+        borders.clipRows = clipTVrow
+        borders.black = debugColor(0, BLACK_INDEX)
 
         // Show sound buffer:
-        if (showSoundBuffer && sourceDataLine != null) {
-            bufferSize = sourceDataLine!!.getBufferSize()
-            available = sourceDataLine!!.available()
-            scale = bufferSize / 256
-
-            for (y in 0..3) {
-                scanlineChanged[y] = true
-                for (x in 0..255) {
-                    if (x >= (available / scale)) {
-                        buffer[y * 256 + x] = 0xFFFFFF
-                    } else {
-                        buffer[y * 256 + x] = 0
-                    }
-                }
-            }
-        }
+        val line = sourceDataLine
+        borders.soundBar = if (showSoundBuffer && line != null) line.available() / (line.getBufferSize() / 256) else -1
+        borders.white = debugColor(0xFFFFFF, 0x30)
+        return borders
     }
 
     fun updateControlReg1(value: Int) {
@@ -768,11 +822,12 @@ class PPU : PPUCycles {
         f_spClipping = (value shr 2) and 1
         f_bgClipping = (value shr 1) and 1
         f_dispType = value and 1
+        updateSpr0HitDot()
 
         if (f_dispType == 0) {
             palTable!!.setEmphasis(f_color)
         }
-        updatePalettes()
+        selectPalettes()
     }
 
     fun setStatusFlag(flag: Int, value: Boolean) {
@@ -951,12 +1006,11 @@ class PPU : PPUCycles {
     // Write 256 bytes of main memory
     // into Sprite RAM.
     fun sramDMA(value: Short) {
-        val baseAddress = value * 0x100
-        var data: Short
-        for (i in sramAddress..255) {
-            data = cpuMem!!.load(baseAddress + i)
-            sprMem!!.write(i, data)
-            spriteRamWriteUpdate(i, data)
+        val spr = sprMem!!.mem
+        val start = sramAddress.toInt()
+        memoryMapper!!.pageTable.copyPage(value.toInt(), start, spr, start, 256 - start)
+        for (i in start..255) {
+            spriteRamWriteUpdate(i, (spr[i].toInt() and 0xFF).toShort())
         }
 
         cpu!!.haltCycles(513)
@@ -1099,32 +1153,43 @@ class PPU : PPUCycles {
         // Check if buffer is null to prevent NullPointerException
         // This can happen if the buffer is not set on the PPU before rendering starts
         var scanCount = scanCount
-        if (buffer == null) {
+        if (buffer == null || !renderFrame) {
             return
         }
-
-        if (f_spVisibility == 1 && !knes.emulator.utils.Globals.disableSprites) {
-            renderSpritesPartially(startScan, scanCount, true)
-        }
-
-        if (f_bgVisibility == 1) {
-            si = startScan shl 8
-            ei = (startScan + scanCount) shl 8
-            if (ei > 0xF000) {
-                ei = 0xF000
-            }
-            destIndex = si
-            while (destIndex < ei) {
-                if (pixrendered[destIndex] > 0xFF) {
-                    buffer[destIndex] = bgbuffer[destIndex]
-                }
-                destIndex++
-            }
+        decodePatterns()
+
+        if (deferFrame) {
+            deferredRenderer.recordFlush(
+                startScan,
+                scanCount,
+                f_bgVisibility == 1,
+                f_spVisibility == 1 && !Globals.disableSprites,
+                if (f_spriteSize == 0) 8 else 16,
+                if (f_spPatternTable == 0) 0 else 256,
+                if (Globals.enableSpriteLimit) 8 else 64
+            )
+            validTileData = false
+            return
         }
 
-        if (f_spVisibility == 1 && !knes.emulator.utils.Globals.disableSprites) {
-            renderSpritesPartially(startScan, scanCount, false)
+        val spritesVisible = f_spVisibility == 1 && !Globals.disableSprites
+        if (spritesVisible) {
+            // Later flushes started by register writes draw into the screen view's buffer:
+            this.buffer = gui!!.getScreenView().getBuffer()
         }
+        compositor.renderFlush(
+            buffer,
+            startScan,
+            scanCount,
+            f_bgVisibility == 1,
+            spritesVisible,
+            if (f_spriteSize == 0) 8 else 16,
+            if (f_spPatternTable == 0) 0 else 256,
+            if (Globals.enableSpriteLimit) 8 else 64,
+            sprites,
+            ptTile!!,
+            sprPalette
+        )
 
         if (this.isNonHWScalingEnabled && !this.isRequestRenderAll) {
             // Check which scanlines have changed, to try to
@@ -1159,6 +1224,7 @@ class PPU : PPUCycles {
         get() = gui!!.getScreenView().scalingEnabled() && !gui!!.getScreenView().useHWScaling()
 
     private fun renderBgScanline(buffer: IntArray, scan: Int) {
+        decodePatterns()
         baseTile = (if (regS == 0) 0 else 256)
         destIndex = (scan shl 8) - regFH
         curNt = ntable1[cntV + cntV + cntH]
@@ -1167,8 +1233,27 @@ class PPU : PPUCycles {
         cntH = regH
         curNt = ntable1[cntV + cntV + cntH]
 
-        if (scan < 240 && (scan - cntFV) >= 0) {
-            tscanoffset = cntFV shl 3
+        if (scan < 240 && (scan - cntFV) >= 0 && (!renderFrame || deferFrame)) {
+            if (deferFrame) {
+                deferredRenderer.recordBgLine(
+                    scan, buffer !== bgbuffer, cntFV, cntV, cntH, cntVT, cntHT, regFH, baseTile
+                )
+            }
+
+            // Nothing is drawn, but the counters move on to the next name table like the tile loop:
+            cntH = cntH xor 1
+            curNt = ntable1[(cntV shl 1) + cntH]
+        } else if (scan < 240 && (scan - cntFV) >= 0 && Globals.enableBackgroundCache) {
+            compositor.renderBgLine(
+                buffer, scan, cntFV, cntV, cntH, cntVT, cntHT, regFH, baseTile, nameTable, ntable1, ptTile!!, imgPalette
+            )
+
+            // The counters are left as the tile loop would leave them:
+            cntH = cntH xor 1
+            curNt = ntable1[(cntV shl 1) + cntH]
+            validTileData = false
+        } else if (scan < 240 && (scan - cntFV) >= 0) {
+            compositor.preparePixrendered(scan, scan)
             y = scan - cntFV
             tile = 0
             while (tile < 32) {
@@ -1178,12 +1263,12 @@ class PPU : PPUCycles {
                     if (validTileData) {
                         // Get data from array:
                         t = scantile!![tile]
-                        tpix = t!!.pix
+                        tpix = t!!.getRow(cntFV)
                         att = attrib[tile]
                     } else {
                         // Fetch data:
                         t = ptTile!![baseTile + nameTable[curNt]!!.getTileIndex(cntHT, cntVT)]
-                        tpix = t!!.pix
+                        tpix = t!!.getRow(cntFV)
                         att = nameTable[curNt]!!.getAttrib(cntHT, cntVT).toInt()
                         scantile!![tile] = t!!
                         attrib[tile] = att
@@ -1197,16 +1282,16 @@ class PPU : PPUCycles {
                             destIndex -= x
                             sx = -x
                         }
-                        if (t!!.opaque[cntFV]) {
+                        if (t!!.isOpaque(cntFV)) {
                             while (sx < 8) {
-                                buffer[destIndex] = imgPalette[tpix[tscanoffset + sx] + att]
+                                buffer[destIndex] = imgPalette[((tpix ushr (sx shl 1)) and 3) + att]
                                 pixrendered[destIndex] = pixrendered[destIndex] or 256
                                 destIndex++
                                 sx++
                             }
                         } else {
                             while (sx < 8) {
-                                col = tpix[tscanoffset + sx]
+                                col = (tpix ushr (sx shl 1)) and 3
                                 if (col != 0) {
                                     buffer[destIndex] = imgPalette[col + att]
                                     pixrendered[destIndex] = pixrendered[destIndex] or 256
@@ -1255,131 +1340,23 @@ class PPU : PPUCycles {
         }
     }
 
-    private fun renderSpritesPartially(startscan: Int, scancount: Int, bgPri: Boolean) {
-        buffer = gui!!.getScreenView().getBuffer()
-        if (f_spVisibility == 1) {
-            var sprT1: Int
-            var sprT2: Int
-
-            for (i in 0..63) {
-                if (bgPriority[i] == bgPri && sprX[i] >= 0 && sprX[i] < 256 && sprY[i] + 8 >= startscan && sprY[i] < startscan + scancount) {
-                    // Show sprite.
-                    if (f_spriteSize == 0) {
-                        // 8x8 sprites
-
-                        srcy1 = 0
-                        srcy2 = 8
-
-                        if (sprY[i] < startscan) {
-                            srcy1 = startscan - sprY[i] - 1
-                        }
-
-                        if (sprY[i] + 8 > startscan + scancount) {
-                            srcy2 = startscan + scancount - sprY[i] + 1
-                        }
-
-                        if (f_spPatternTable == 0) {
-                            ptTile!![sprTile[i]].render(
-                                0,
-                                srcy1,
-                                8,
-                                srcy2,
-                                sprX[i],
-                                sprY[i] + 1,
-                                buffer,
-                                sprCol[i],
-                                sprPalette,
-                                horiFlip[i],
-                                vertFlip[i],
-                                i,
-                                pixrendered
-                            )
-                        } else {
-                            ptTile!![sprTile[i] + 256].render(
-                                0,
-                                srcy1,
-                                8,
-                                srcy2,
-                                sprX[i],
-                                sprY[i] + 1,
-                                buffer,
-                                sprCol[i],
-                                sprPalette,
-                                horiFlip[i],
-                                vertFlip[i],
-                                i,
-                                pixrendered
-                            )
-                        }
-                    } else {
-                        // 8x16 sprites
-                        var top = sprTile[i]
-                        if ((top and 1) != 0) {
-                            top = sprTile[i] - 1 + 256
-                        }
-
-                        srcy1 = 0
-                        srcy2 = 8
-
-                        if (sprY[i] < startscan) {
-                            srcy1 = startscan - sprY[i] - 1
-                        }
-
-                        if (sprY[i] + 8 > startscan + scancount) {
-                            srcy2 = startscan + scancount - sprY[i]
-                        }
-
-                        ptTile!![top + (if (vertFlip[i]) 1 else 0)].render(
-                            0,
-                            srcy1,
-                            8,
-                            srcy2,
-                            sprX[i],
-                            sprY[i] + 1,
-                            buffer,
-                            sprCol[i],
-                            sprPalette,
-                            horiFlip[i],
-                            vertFlip[i],
-                            i,
-                            pixrendered
-                        )
-
-                        srcy1 = 0
-                        srcy2 = 8
-
-                        if (sprY[i] + 8 < startscan) {
-                            srcy1 = startscan - (sprY[i] + 8 + 1)
-                        }
-
-                        if (sprY[i] + 16 > startscan + scancount) {
-                            srcy2 = startscan + scancount - (sprY[i] + 8)
-                        }
+    // Looks for the sprite #0 hit on the given line and schedules it for emulateCycles():
+    private fun checkSprite0(scan: Int): Boolean {
+        val hit = findSprite0Hit(scan)
+        updateSpr0HitDot()
+        return hit
+    }
 
-                        ptTile!![top + (if (vertFlip[i]) 0 else 1)].render(
-                            0,
-                            srcy1,
-                            8,
-                            srcy2,
-                            sprX[i],
-                            sprY[i] + 1 + 8,
-                            buffer,
-                            sprCol[i],
-                            sprPalette,
-                            horiFlip[i],
-                            vertFlip[i],
-                            i,
-                            pixrendered
-                        )
-                    }
-                }
-            }
-        }
+    // The hit only happens while sprites are shown, so it is unscheduled while they are not:
+    private fun updateSpr0HitDot() {
+        spr0HitDot = if (spr0HitX >= 0 && spr0HitY >= 0 && f_spVisibility == 1) (spr0HitY + 21) * 341 + spr0HitX else -1
     }
 
-    private fun checkSprite0(scan: Int): Boolean {
+    private fun findSprite0Hit(scan: Int): Boolean {
+        decodePatterns()
         spr0HitX = -1
         spr0HitY = -1
+        compositor.preparePixrendered(scan, scan)
 
         var toffset: Int
         val tIndexAdd = (if (f_spPatternTable == 0) 0 else 256)
@@ -1412,14 +1389,13 @@ class PPU : PPUCycles {
                 } else {
                     toffset = scan - y
                 }
-                toffset *= 8
 
                 bufferIndex = scan * 256 + x
                 if (horiFlip[0]) {
                     for (i in 7 downTo 0) {
                         if (x >= 0 && x < 256) {
                             if (bufferIndex >= 0 && bufferIndex < 61440 && pixrendered[bufferIndex] != 0) {
-                                if (t.pix[toffset + i] != 0) {
+                                if (t.getPixel(i, toffset) != 0) {
                                     spr0HitX = bufferIndex % 256
                                     spr0HitY = scan
                                     return true
@@ -1433,7 +1409,7 @@ class PPU : PPUCycles {
                     for (i in 0..7) {
                         if (x >= 0 && x < 256) {
                             if (bufferIndex >= 0 && bufferIndex < 61440 && pixrendered[bufferIndex] != 0) {
-                                if (t.pix[toffset + i] != 0) {
+                                if (t.getPixel(i, toffset) != 0) {
                                     spr0HitX = bufferIndex % 256
                                     spr0HitY = scan
                                     return true
@@ -1472,7 +1448,6 @@ class PPU : PPUCycles {
                         toffset -= 8
                     }
                 }
-                toffset *= 8
                 col = sprCol[0]
                 bgPri = bgPriority[0]
 
@@ -1481,7 +1456,7 @@ class PPU : PPUCycles {
                     for (i in 7 downTo 0) {
                         if (x >= 0 && x < 256) {
                             if (bufferIndex >= 0 && bufferIndex < 61440 && pixrendered[bufferIndex] != 0) {
-                                if (t.pix[toffset + i] != 0) {
+                                if (t.getPixel(i, toffset) != 0) {
                                     spr0HitX = bufferIndex % 256
                                     spr0HitY = scan
                                     return true
@@ -1495,7 +1470,7 @@ class PPU : PPUCycles {
                     for (i in 0..7) {
                         if (x >= 0 && x < 256) {
                             if (bufferIndex >= 0 && bufferIndex < 61440 && pixrendered[bufferIndex] != 0) {
-                                if (t.pix[toffset + i] != 0) {
+                                if (t.getPixel(i, toffset) != 0) {
                                     spr0HitX = bufferIndex % 256
                                     spr0HitY = scan
                                     return true
@@ -1539,60 +1514,146 @@ class PPU : PPUCycles {
         } else if (address >= 0x2fc0 && address < 0x3000) {
             attribTableWrite(ntable1[3], address - 0x2fc0, value)
         } else if (address >= 0x3f00 && address < 0x3f20) {
-            updatePalettes()
+            paletteWrite(address)
         }
     }
 
     // Reads data from $3f00 to $f20
-    // into the two buffered palettes.
+    // into the palette banks.
     fun updatePalettes() {
-        for (i in 0..15) {
-            if (f_dispType == 0) {
-                imgPalette[i] = palTable!!.getEntry(ppuMem!!.load(0x3f00 + i).toInt() and 63)
-            } else {
-                imgPalette[i] = palTable!!.getEntry(ppuMem!!.load(0x3f00 + i).toInt() and 32)
-            }
-        }
-        for (i in 0..15) {
-            if (f_dispType == 0) {
-                sprPalette[i] = palTable!!.getEntry(ppuMem!!.load(0x3f10 + i).toInt() and 63)
-            } else {
-                sprPalette[i] = palTable!!.getEntry(ppuMem!!.load(0x3f10 + i).toInt() and 32)
+        val table = PaletteTable.indexedTable
+        for (bank in 0..15) {
+            for (i in 0..15) {
+                imgPalettes[bank][i] = paletteEntry(table, bank, ppuMem!!.load(0x3f00 + i).toInt())
+                sprPalettes[bank][i] = paletteEntry(table, bank, ppuMem!!.load(0x3f10 + i).toInt())
             }
         }
+        paletteSource = table
+        deferredRenderer.invalidatePalettes()
+        selectPalettes()
 
         //renderPalettes();
     }
 
+    // Updates the entry written to in all banks:
+    private fun paletteWrite(address: Int) {
+        val table = paletteSource
+        if (table !== PaletteTable.indexedTable) {
+            updatePalettes()
+            return
+        }
+
+        val value = ppuMem!!.load(address).toInt()
+        val banks = if (address < 0x3f10) imgPalettes else sprPalettes
+        for (bank in 0..15) {
+            banks[bank][address and 15] = paletteEntry(table!!, bank, value)
+        }
+        deferredRenderer.invalidatePalettes()
+    }
+
+    // Switches to the bank of the current emphasis and grayscale bit. The banks are computed again
+    // first when the palette table was adjusted, or the palette memory was replaced, since.
+    private fun selectPalettes() {
+        if (paletteSource !== PaletteTable.indexedTable) {
+            updatePalettes()
+            return
+        }
+
+        val bank = palTable!!.getEmphasis() or (f_dispType shl 3)
+        if (imgPalette !== imgPalettes[bank]) {
+            imgPalette = imgPalettes[bank]
+            sprPalette = sprPalettes[bank]
+            deferredRenderer.setPalettes(imgPalette, sprPalette)
+        }
+    }
+
+    // Color of palette memory value in a bank: the RGB color, or the palette index and emphasis with indexed color.
+    // Grayscale keeps the emphasis of the table, which only changes in color mode.
+    private fun paletteEntry(table: IntArray, bank: Int, value: Int): Int {
+        val index = (value and (if (bank < 8) 63 else 32)) or ((bank and 7) shl 6)
+        return if (indexedColor) index else table[index]
+    }
+
+    // Color of the debugging overlays and clipped borders, in the format of the screen buffer:
+    private fun debugColor(rgb: Int, index: Int): Int {
+        return if (indexedColor) index else rgb
+    }
+
+    /**
+     * Returns the RGB color of the given pixel of the screen buffer, converting it if the screen view
+     * uses indexed color.
+     */
+    fun getPixelRgb(offset: Int): Int {
+        val pixel = buffer[offset]
+        return if (indexedColor) PaletteTable.indexedTable[pixel] else pixel
+    }
+
 
     // Updates the internal pattern
-    // table buffers with this new byte.
+    // table buffers with this new byte, which is already in VRAM.
+    // The row is only marked here and decoded by decodePatterns() when
+    // tiles are next read, so CHR RAM uploads that rewrite a tile
+    // several times before it is drawn decode it once.
     fun patternWrite(address: Int, value: Short) {
-        val tileIndex = address / 16
-        val leftOver = address % 16
-        if (leftOver < 8) {
-            ptTile!![tileIndex].setScanline(leftOver, value, ppuMem!!.load(address + 8))
-        } else {
-            ptTile!![tileIndex].setScanline(leftOver - 8, ppuMem!!.load(address - 8), value)
-        }
+        val tileIndex = address shr 4
+        backgroundCache.invalidatePattern(tileIndex)
+        deferredRenderer.invalidatePatterns(tileIndex, 1)
+        val row = (tileIndex shl 3) or (address and 7)
+        dirtyPatternRows[row shr 6] = dirtyPatternRows[row shr 6] or (1L shl row)
+        patternsDirty = true
     }
 
-    fun patternWrite(address: Int, value: ShortArray, offset: Int, length: Int) {
+    fun patternWrite(address: Int, value: ByteArray, offset: Int, length: Int) {
         var tileIndex: Int
         var leftOver: Int
 
+        // Rows written earlier would otherwise be decoded over these later:
+        decodePatterns()
+
         for (i in 0 until length) {
             tileIndex = (address + i) shr 4
             leftOver = (address + i) % 16
+            backgroundCache.invalidatePattern(tileIndex)
+            deferredRenderer.invalidatePatterns(tileIndex, 1)
 
             if (leftOver < 8) {
-                ptTile!![tileIndex].setScanline(leftOver, value[offset + i], ppuMem!!.load(address + 8 + i))
+                ptTile!![tileIndex].setScanline(leftOver, value[offset + i].toShort(), ppuMem!!.load(address + 8 + i))
             } else {
-                ptTile!![tileIndex].setScanline(leftOver - 8, ppuMem!!.load(address - 8 + i), value[offset + i])
+                ptTile!![tileIndex].setScanline(leftOver - 8, ppuMem!!.load(address - 8 + i), value[offset + i].toShort())
             }
         }
     }
 
+    /**
+     * Decodes the pattern rows written to since the last call into [ptTile]. Runs before anything reads the tiles,
+     * and has to run before mappers replace tiles or the VRAM they are decoded from.
+     */
+    fun decodePatterns() {
+        if (!patternsDirty) {
+            return
+        }
+        patternsDirty = false
+
+        val tiles = ptTile!!
+        val mem = ppuMem!!
+        for (word in dirtyPatternRows.indices) {
+            var bits = dirtyPatternRows[word]
+            dirtyPatternRows[word] = 0
+            while (bits != 0L) {
+                val row = (word shl 6) + java.lang.Long.numberOfTrailingZeros(bits)
+                bits = bits and (bits - 1)
+                val address = ((row shr 3) shl 4) or (row and 7)
+                tiles[row shr 3].setScanline(row and 7, mem.load(address), mem.load(address + 8))
+            }
+        }
+    }
+
+    // Called by mappers after switching the tiles of a CHR bank into the pattern tables.
+    fun invalidatePatternTiles(first: Int, count: Int) {
+        backgroundCache.invalidatePatternTiles(first, count)
+        deferredRenderer.invalidatePatterns(first, count)
+    }
+
     fun invalidateFrameCache() {
         // Clear the no-update scanline buffer:
 
@@ -1607,6 +1668,8 @@ class PPU : PPUCycles {
     // with this new byte.
     fun nameTableWrite(index: Int, address: Int, value: Short) {
         nameTable[index]!!.writeTileIndex(address, value.toInt())
+        backgroundCache.invalidateTile(index, address)
+        deferredRenderer.invalidateNameTables()
 
         // Update Sprite #0 hit:
         //updateSpr0Hit();
@@ -1618,12 +1681,15 @@ class PPU : PPUCycles {
     // table byte.
     fun attribTableWrite(index: Int, address: Int, value: Short) {
         nameTable[index]!!.writeAttrib(address, value.toInt())
+        backgroundCache.invalidateAttrib(index, address)
+        deferredRenderer.invalidateNameTables()
     }
 
     // Updates the internally buffered sprite
     // data with this new byte of info.
     fun spriteRamWriteUpdate(address: Int, value: Short) {
         val tIndex = address / 4
+        deferredRenderer.invalidateSprites()
 
         if (tIndex == 0) {
             //updateSpr0Hit();
@@ -1633,7 +1699,10 @@ class PPU : PPUCycles {
         if (address % 4 == 0) {
             // Y coordinate
 
-            sprY[tIndex] = value.toInt()
+            if (sprY[tIndex] != value.toInt()) {
+                sprY[tIndex] = value.toInt()
+                spriteLines.invalidate()
+            }
         } else if (address % 4 == 1) {
             // Tile index
 
@@ -1682,9 +1751,15 @@ class PPU : PPUCycles {
         f_spClipping = (n shr 9) and 0x1
         f_bgClipping = (n shr 10) and 0x1
         f_dispType = (n shr 11) and 0x1
+        updateSpr0HitDot()
     }
 
     fun stateLoad(buf: knes.emulator.ByteBuffer) {
+        // Cycles pending from before the load are dropped:
+        pendingCycles = 0
+        pendingLimit = 0
+        paletteSource = null
+
         // Check version:
 
         if (buf.readByte().toInt() == 1) {
@@ -1756,6 +1831,7 @@ class PPU : PPUCycles {
             for (i in pixrendered.indices) {
                 pixrendered[i] = buf.readByte().toInt()
             }
+            compositor.keepPixrendered()
 
             // Name tables:
             for (i in 0..3) {
@@ -1767,6 +1843,10 @@ class PPU : PPUCycles {
             for (i in ptTile!!.indices) {
                 ptTile!![i].stateLoad(buf)
             }
+            dirtyPatternRows.fill(0)
+            patternsDirty = false
+            backgroundCache.invalidateAll()
+            deferredRenderer.invalidateAll()
 
             // Update internally stored stuff from VRAM memory:
             /*short[] mem = ppuMem.mem;
@@ -1777,14 +1857,16 @@ class PPU : PPUCycles {
             }
              */
             // Sprite data:
-            val sprmem = sprMem!!.mem
-            for (i in sprmem!!.indices) {
-                spriteRamWriteUpdate(i, sprmem[i])
+            val sprmem = sprMem!!
+            for (i in 0 until sprmem.memSize) {
+                spriteRamWriteUpdate(i, sprmem.load(i))
             }
         }
     }
 
     fun stateSave(buf: knes.emulator.ByteBuffer) {
+        catchUp()
+
         // Version:
 
 
@@ -1852,6 +1934,7 @@ class PPU : PPUCycles {
         for (i in bgbuffer.indices) {
             buf.putByte(bgbuffer[i].toShort())
         }
+        compositor.preparePixrendered(0, 239)
         for (i in pixrendered.indices) {
             buf.putByte(pixrendered[i].toShort())
         }
@@ -1863,6 +1946,7 @@ class PPU : PPUCycles {
         }
 
         // Pattern data:
+        decodePatterns()
         for (i in ptTile!!.indices) {
             ptTile!![i].stateSave(buf)
         }
@@ -1870,16 +1954,22 @@ class PPU : PPUCycles {
 
     // Reset PPU:
     fun reset() {
+        // The tiles keep their pixels while VRAM is cleared:
+        decodePatterns()
         ppuMem!!.reset()
+        paletteSource = null
         sprMem!!.reset()
 
         vramBufferedReadValue = 0
         sramAddress = 0
         curX = 0
+        pendingCycles = 0
+        pendingLimit = 0
         scanline = 0
         lastRenderedScanline = 0
         spr0HitX = 0
         spr0HitY = 0
+        spr0HitDot = -1
         mapperIrqCounter = 0
 
         currentMirroring = -1
@@ -1938,6 +2028,7 @@ class PPU : PPUCycles {
     }
 
     fun destroy() {
+        deferredRenderer.shutdown()
         ppuMem = null
         sprMem = null
         scantile = null
@@ -1946,4 +2037,65 @@ class PPU : PPUCycles {
     fun setMapper(memMapper: knes.emulator.mappers.MemoryMapper) {
         this.memoryMapper = memMapper
     }
+
+    // Prints the most common palette colors of a frame whenever they change, see isEnablePpuLogging:
+    private class ColorLogger : FrameAnalytics {
+        // Palette index and pixel count of the top 5 colors, -1 for none:
+        private val top = IntArray(10)
+        private val previousTop = IntArray(10)
+
+        override fun frameCompleted(histogram: IntArray, otherPixels: Int) {
+            var unique = 0
+            for (count in histogram) {
+                if (count > 0) unique++
+            }
+
+            top.fill(-1)
+            for (rank in 0 until 5) {
+                var best = -1
+                for (i in 0 until 64) {
+                    if (histogram[i] > 0 && !isTop(i, rank) && (best < 0 || histogram[i] > histogram[best])) {
+                        best = i
+                    }
+                }
+                if (best >= 0) {
+                    top[rank * 2] = best
+                    top[rank * 2 + 1] = histogram[best]
+                }
+            }
+
+            if (!top.contentEquals(previousTop)) {
+                println("======================")
+                println("[PPU] Top 5 palette colors in frame:")
+                for (rank in 0 until 5) {
+                    val index = top[rank * 2]
+                    if (index >= 0) {
+                        println(
+                            "[PPU] $" + Misc.hex8(index) + " (0x" + Integer.toHexString(PaletteTable.curTable[index])
+                                .uppercase() + ") : " + top[rank * 2 + 1]
+                        )
+                    }
+                }
+                println("Total unique colors: $unique, other pixels: $otherPixels")
+                top.copyInto(previousTop)
+            }
+        }
+
+        private fun isTop(index: Int, ranks: Int): Boolean {
+            for (rank in 0 until ranks) {
+                if (top[rank * 2] == index) return true
+            }
+            return false
+        }
+    }
+
+    companion object {
+        /**
+         * [frameSkip] value to render no frames at all, e.g. for headless runs that only read RAM.
+         */
+        const val SKIP_ALL_FRAMES = -1
+
+        // Palette index of black, used for the clipped borders in indexed color mode:
+        private const val BLACK_INDEX = 0x0F
+    }
 }
\ No newline at end of file
@@ -20,4 +20,25 @@ package knes.emulator.ppu
 interface PPUCycles {
     fun setCycles(cycles: Int)
     fun emulateCycles()
+
+    /**
+     * Runs the given number of PPU cycles, or only records them until something could observe the difference,
+     * see [catchUp].
+     */
+    fun addCycles(cycles: Int) {
+        setCycles(cycles)
+        emulateCycles()
+    }
+
+    /**
+     * Emulates the cycles recorded by [addCycles] and not run yet. Called before the PPU is accessed from outside.
+     */
+    fun catchUp() {
+    }
+
+    /**
+     * Returns how many of the next PPU cycles pass without anything the CPU could observe, so that idle CPU loops
+     * can be skipped over them. 0 if unknown.
+     */
+    fun idleCycles(): Int = 0
 }
\ No newline at end of file
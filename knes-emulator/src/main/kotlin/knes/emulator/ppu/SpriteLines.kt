@@ -0,0 +1,80 @@
+/*
+ *
+ *  * Copyright (C) 2025 Artur Skowroński
+ *  * This file is part of kNES, a fork of vNES (GPLv3) rewritten in Kotlin.
+ *  *
+ *  * vNES was originally developed by Brian F. R. (bfirsh) and released under the GPL-3.0 license.
+ *  * This project is a reimplementation and extension of that work.
+ *  *
+ *  * kNES is licensed under the GNU General Public License v3.0.
+ *  * See the LICENSE file for more details.
+ *
+ */
+
+package knes.emulator.ppu
+
+/**
+ * The sprites on every visible scanline, as a 64-bit mask per line with bit i set for sprite i, so that rendering a
+ * range of scanlines only visits the sprites on it. This plays the role of the PPU's secondary OAM, but it is only
+ * rebuilt when a sprite's Y coordinate, the sprite size or the limit has changed, not on every line.
+ *
+ * With a limit, a line only keeps the first sprites in OAM order, like the real PPU which evaluates at most 8.
+ * Sprites that were dropped from some of their lines are listed in [partialMask].
+ */
+internal class SpriteLines {
+
+    private val lines = LongArray(240)
+    private var dirty = true
+    private var height = 0
+    private var limit = 0
+
+    var partialMask = 0L
+        private set
+
+    fun invalidate() {
+        dirty = true
+    }
+
+    /**
+     * Rebuilds the lines if needed. A sprite at [sprY] covers lines sprY + 1 to sprY + height; [limit] is the
+     * maximum number of sprites per line, 64 for no limit.
+     */
+    fun update(sprY: IntArray, height: Int, limit: Int) {
+        if (!dirty && height == this.height && limit == this.limit) {
+            return
+        }
+        dirty = false
+        this.height = height
+        this.limit = limit
+
+        lines.fill(0)
+        var partial = 0L
+        for (i in 0..63) {
+            val bit = 1L shl i
+            val last = minOf(sprY[i] + height, 239)
+            for (line in sprY[i] + 1..last) {
+                if (java.lang.Long.bitCount(lines[line]) < limit) {
+                    lines[line] = lines[line] or bit
+                } else {
+                    partial = partial or bit
+                }
+            }
+        }
+        partialMask = partial
+    }
+
+    /**
+     * Returns the sprites on any line from [first] to [last], inclusive.
+     */
+    fun inRange(first: Int, last: Int): Long {
+        var mask = 0L
+        for (line in maxOf(first, 0)..minOf(last, 239)) {
+            mask = mask or lines[line]
+        }
+        return mask
+    }
+
+    fun isOnLine(sprite: Int, line: Int): Boolean {
+        return line in 0..239 && (lines[line] and (1L shl sprite)) != 0L
+    }
+}
@@ -25,7 +25,7 @@ interface ROMData {
      * @return true if the ROM is valid, false otherwise
      */
     fun isValid(): Boolean
-    fun saveBatteryRam(): ShortArray
+    fun saveBatteryRam(): ByteArray
     fun getRomBankCount(): Int
     fun getVromBankCount(): Int
 
@@ -40,14 +40,14 @@ interface ROMData {
      * @param bank the bank number
      * @return the ROM bank data
      */
-    fun getRomBank(bank: Int): ShortArray?
+    fun getRomBank(bank: Int): ByteArray?
 
     /**
      * Gets a specific VROM bank.
      * @param bank the bank number
      * @return the VROM bank data
      */
-    fun getVromBank(bank: Int): ShortArray?
+    fun getVromBank(bank: Int): ByteArray?
 
     /**
      * Gets the tiles for a specific VROM bank.
@@ -0,0 +1,83 @@
+/*
+ *
+ *  * Copyright (C) 2025 Artur Skowroński
+ *  * This file is part of kNES, a fork of vNES (GPLv3) rewritten in Kotlin.
+ *  *
+ *  * vNES was originally developed by Brian F. R. (bfirsh) and released under the GPL-3.0 license.
+ *  * This project is a reimplementation and extension of that work.
+ *  *
+ *  * kNES is licensed under the GNU General Public License v3.0.
+ *  * See the LICENSE file for more details.
+ *
+ */
+
+package knes.emulator.ui
+
+import java.util.concurrent.atomic.AtomicInteger
+
+/**
+ * A triple buffer handing completed frames from the emulation thread to a UI thread.
+ *
+ * The PPU draws into the back buffer, and [publish] swaps it with the middle buffer, which then holds the newest
+ * complete frame. The UI takes that frame with [acquireLatest], swapping it with the front buffer that it reads.
+ * Each swap is a single atomic exchange, so neither thread ever waits for the other and no buffer is written while
+ * it is read. Frames the UI doesn't take in time are dropped.
+ *
+ * The back buffer belongs to the emulation thread. Another thread may draw into it while the emulation thread waits
+ * for that work to complete (as DeferredRenderer does through Future.get()), but only the emulation thread calls
+ * [getBackBuffer] and [publish].
+ *
+ * @param size Pixels per frame
+ * @param initialValue Pixel value of the buffers until the first frame
+ */
+class FrameExchange(size: Int, initialValue: Int) {
+    private val buffers = Array(3) { IntArray(size).apply { fill(initialValue) } }
+
+    // Index of the middle buffer, plus NEW_FRAME when it holds a frame the UI hasn't taken:
+    private val middle = AtomicInteger(1)
+
+    // Only used by the emulation thread:
+    private var back = 0
+
+    // Only used by the UI thread:
+    private var front = 2
+
+    /**
+     * Returns the buffer the PPU draws into. Emulation thread only.
+     */
+    fun getBackBuffer(): IntArray {
+        return buffers[back]
+    }
+
+    /**
+     * Publishes the back buffer as the newest frame. Emulation thread only.
+     *
+     * @return The new back buffer, for the next frame
+     */
+    fun publish(): IntArray {
+        back = middle.getAndSet(back or NEW_FRAME) and INDEX_MASK
+        return buffers[back]
+    }
+
+    /**
+     * Whether a frame was published since the UI last took one.
+     */
+    fun hasNewFrame(): Boolean {
+        return (middle.get() and NEW_FRAME) != 0
+    }
+
+    /**
+     * Returns the newest published frame, which stays unchanged until the next call. UI thread only.
+     */
+    fun acquireLatest(): IntArray {
+        if (hasNewFrame()) {
+            front = middle.getAndSet(front) and INDEX_MASK
+        }
+        return buffers[front]
+    }
+
+    companion object {
+        private const val INDEX_MASK = 3
+        private const val NEW_FRAME = 4
+    }
+}
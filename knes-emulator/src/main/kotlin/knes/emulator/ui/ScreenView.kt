@@ -32,6 +32,26 @@ interface ScreenView {
      */
     fun getBuffer(): IntArray
 
+    /**
+     * Whether the PPU should write NES color indices into the buffer instead of RGB values.
+     * Each pixel is then `(emphasis shl 6) or colorIndex`, which
+     * [knes.emulator.utils.PaletteTable.indexedTable] maps to RGB when the frame is presented.
+     * Read once, when the PPU is initialized.
+     *
+     * @return true for palette indices, false for RGB
+     */
+    fun indexedColor(): Boolean = false
+
+    /**
+     * The triple buffer through which the PPU hands completed frames to the UI thread, or null if the PPU draws
+     * straight into [getBuffer] and the frame is presented from [imageReady].
+     * With an exchange, [getBuffer] returns its back buffer, and the PPU publishes the frame just before [imageReady].
+     * Read once, when the PPU is initialized.
+     *
+     * @return The frame exchange, or null
+     */
+    fun getFrameExchange(): FrameExchange? = null
+
     /**
      * Get the width of the buffer.
      *
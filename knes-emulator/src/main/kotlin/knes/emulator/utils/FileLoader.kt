@@ -22,8 +22,7 @@ import java.util.zip.ZipInputStream
 
 class FileLoader {
     // Load a file.
-    fun loadFile(fileName: String, loadProgress: Consumer<Int>): ShortArray? {
-        val flen: Int
+    fun loadFile(fileName: String, loadProgress: Consumer<Int>): ByteArray? {
         var tmp = ByteArray(2048)
 
         // Read file:
@@ -90,9 +89,6 @@ class FileLoader {
                 newtmp[i] = tmp[i]
             }
             tmp = newtmp
-
-            // File size:
-            flen = tmp.size
         } catch (ioe: IOException) {
             // Something went wrong.
 
@@ -100,10 +96,6 @@ class FileLoader {
             return null
         }
 
-        val ret = ShortArray(flen)
-        for (i in 0 until flen) {
-            ret[i] = (tmp[i].toInt() and 255).toShort()
-        }
-        return ret
+        return tmp
     }
 }
@@ -31,16 +31,35 @@ object Globals {
     const val debug: Boolean = true
     const val fsdebug: Boolean = false
 
-    @JvmField
-    var appletMode: Boolean = true
     @JvmField
     var disableSprites: Boolean = false
+
+    // Draw at most 8 sprites per scanline, like the real PPU (see knes.emulator.ppu.SpriteLines):
+    @JvmField
+    var enableSpriteLimit: Boolean = false
     @JvmField
     var timeEmulation: Boolean = true
     @JvmField
     var palEmulation: Boolean = false
     @JvmField
     var enableSound: Boolean = true
+
+    // Fast-forward through loops polling for VBlank or the NMI (see knes.emulator.cpu.IdleLoop):
+    @JvmField
+    var enableIdleLoopSkipping: Boolean = true
+
+    // Copy background scanlines from cached name table planes (see knes.emulator.ppu.BackgroundCache):
+    @JvmField
+    var enableBackgroundCache: Boolean = true
+
+    // Draw frames on a worker thread from a log of the PPU state (see knes.emulator.ppu.DeferredRenderer), unless
+    // the screen view scales them in software:
+    @JvmField
+    var enableDeferredRendering: Boolean = false
+
+    // Scale frames in bands of rows on the common ForkJoin pool (see knes.emulator.Scale):
+    @JvmField
+    var enableParallelScaling: Boolean = true
     @JvmField
     var focused: Boolean = false
 
@@ -35,21 +35,40 @@ import java.io.InputStreamReader
 
 class PaletteTable {
     companion object {
-        @JvmField
-        val curTable = IntArray(64)
+        /**
+         * RGB color of every palette entry under the current emphasis, with the current palette adjustments. Changing
+         * the emphasis replaces the array with another precomputed one rather than modifying it.
+         */
+        @JvmStatic
+        @Volatile
+        var curTable = IntArray(64)
+            private set
 
         @JvmField
         val origTable = IntArray(64)
 
         @JvmField
         val emphTable = Array(8) { IntArray(64) }
+
+        /**
+         * RGB color of every pixel value of an indexed color frame (see [knes.emulator.ui.ScreenView.indexedColor]),
+         * i.e. of palette entry `value and 63` under emphasis `value shr 6`, with the current palette adjustments.
+         * The array is replaced, never modified, when the palette changes, so a reference read once stays consistent.
+         */
+        @JvmStatic
+        @Volatile
+        var indexedTable = IntArray(512)
+            private set
     }
 
+    // indexedTable split by emphasis, curTable is one of them:
+    private var emphasisTables = Array(8) { IntArray(64) }
     private var currentEmph = -1
     private var currentHue = 0
     private var currentSaturation = 0
     private var currentLightness = 0
     private var currentContrast = 0
+    private var indexedTableValid = false
 
     // Load the NTSC palette:
     fun loadNTSCPalette(): Boolean {
@@ -128,6 +147,8 @@ class PaletteTable {
     }
 
     fun makeTables() {
+        indexedTableValid = false
+
         // Calculate a table for each possible emphasis setting:
         for (emph in 0 until 8) {
             // Determine color component factors:
@@ -162,9 +183,6 @@ class PaletteTable {
     fun setEmphasis(emph: Int) {
         if (emph != currentEmph) {
             currentEmph = emph
-            for (i in 0 until 64) {
-                curTable[i] = emphTable[emph][i]
-            }
             updatePalette()
         }
     }
@@ -173,6 +191,11 @@ class PaletteTable {
         return curTable[yiq]
     }
 
+    // Emphasis bits of the current table, 0 until a palette has been loaded:
+    fun getEmphasis(): Int {
+        return maxOf(currentEmph, 0)
+    }
+
     fun RGBtoHSL(r: Int, g: Int, b: Int): Int {
         val hsbvals = FloatArray(3)
         Color.RGBtoHSB(b, g, r, hsbvals)
@@ -242,8 +265,18 @@ class PaletteTable {
             contrastAddValue *= 4
         }
 
-        for (i in 0 until 64) {
-            val hsl = RGBtoHSL(emphTable[currentEmph][i])
+        // The adjusted colors are computed for all emphasis settings at once, so changing the
+        // emphasis only has to select them:
+        if (indexedTableValid && hueAdd == currentHue && saturationAdd == currentSaturation &&
+            lightnessAdd == currentLightness && contrastAdd == currentContrast
+        ) {
+            curTable = emphasisTables[currentEmph]
+            return
+        }
+
+        val table = IntArray(512)
+        for (i in 0 until 512) {
+            val hsl = RGBtoHSL(emphTable[i shr 6][i and 63])
             var h = getHue(hsl) + hueAdd
             var s = (getSaturation(hsl) * (1.0 + saturationAdd / 256f)).toInt()
             var l = getLightness(hsl)
@@ -299,8 +332,12 @@ class PaletteTable {
             }
 
             val finalRgb = getRgb(r, g, b)
-            curTable[i] = finalRgb
+            table[i] = finalRgb
         }
+        indexedTable = table
+        indexedTableValid = true
+        emphasisTables = Array(8) { table.copyOfRange(it shl 6, (it + 1) shl 6) }
+        curTable = emphasisTables[currentEmph]
 
         currentHue = hueAdd
         currentSaturation = saturationAdd
@@ -0,0 +1,66 @@
+/*
+ *
+ *  * Copyright (C) 2025 Artur Skowroński
+ *  * This file is part of kNES, a fork of vNES (GPLv3) rewritten in Kotlin.
+ *  *
+ *  * vNES was originally developed by Brian F. R. (bfirsh) and released under the GPL-3.0 license.
+ *  * This project is a reimplementation and extension of that work.
+ *  *
+ *  * kNES is licensed under the GNU General Public License v3.0.
+ *  * See the LICENSE file for more details.
+ *
+ */
+
+package knes.emulator
+
+import org.junit.Assert.assertEquals
+import org.junit.Test
+
+/**
+ * Checks the packed pixels of Tile against the bit planes they are decoded from.
+ */
+class TileTest {
+
+    @Test
+    fun pixelsMatchBitPlanes() {
+        val tile = Tile()
+        val expected = IntArray(8)
+
+        for (b1 in 0..255) {
+            for (b2 in 0..255) {
+                // Every row in turn, so that both halves of the packed tile are covered:
+                val y = (b1 + b2) and 7
+                tile.setScanline(y, b1.toShort(), b2.toShort())
+                expected[y] = pixels { x -> ((b1 shr (7 - x)) and 1) or (((b2 shr (7 - x)) and 1) shl 1) }
+
+                // The other rows keep their pixels:
+                for (row in 0..7) {
+                    assertEquals(
+                        "Row $row after setting row $y to $b1, $b2",
+                        expected[row].toLong(), pixels { x -> tile.getPixel(x, row) }.toLong()
+                    )
+                }
+                assertEquals("Row $y opaque for $b1, $b2", (b1 or b2) == 0xFF, tile.isOpaque(y))
+            }
+        }
+    }
+
+    @Test
+    fun flipRowReversesPixels() {
+        for (row in 0..0xFFFF) {
+            assertEquals(
+                "Row $row flipped",
+                pixels { x -> (row ushr ((7 - x) shl 1)) and 3 }.toLong(), Tile.flipRow(row).toLong()
+            )
+        }
+    }
+
+    // Packs the pixels 0..7 of a row into the layout of Tile.getRow().
+    private inline fun pixels(pixel: (Int) -> Int): Int {
+        var row = 0
+        for (x in 0..7) {
+            row = row or (pixel(x) shl (x shl 1))
+        }
+        return row
+    }
+}
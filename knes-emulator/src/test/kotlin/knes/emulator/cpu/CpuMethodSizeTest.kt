@@ -0,0 +1,117 @@
+/*
+ *
+ *  * Copyright (C) 2025 Artur Skowroński
+ *  * This file is part of kNES, a fork of vNES (GPLv3) rewritten in Kotlin.
+ *  *
+ *  * vNES was originally developed by Brian F. R. (bfirsh) and released under the GPL-3.0 license.
+ *  * This project is a reimplementation and extension of that work.
+ *  *
+ *  * kNES is licensed under the GNU General Public License v3.0.
+ *  * See the LICENSE file for more details.
+ *
+ */
+
+package knes.emulator.cpu
+
+import org.junit.Assert.assertTrue
+import org.junit.Test
+import java.io.DataInputStream
+
+/**
+ * HotSpot refuses to JIT-compile methods whose bytecode is larger than HugeMethodLimit (8000 bytes)
+ * unless -XX:-DontCompileHugeMethods is given, leaving them in the bytecode interpreter.
+ * This keeps every method of the CPU interpreter below that limit.
+ */
+class CpuMethodSizeTest {
+
+    @Test
+    fun cpuMethodsFitHotSpotCompileLimit() {
+        val sizes = readCodeSizes(CPU::class.java)
+        assertTrue("No methods found in CPU.class", sizes.isNotEmpty())
+
+        for ((method, size) in sizes) {
+            assertTrue(
+                "CPU.$method is $size bytes of bytecode, above HotSpot's $HUGE_METHOD_LIMIT byte limit for JIT compilation",
+                size <= HUGE_METHOD_LIMIT
+            )
+        }
+    }
+
+    /**
+     * Reads the class file of the given class and returns the bytecode length of every method
+     * that has a Code attribute, keyed by name and descriptor.
+     */
+    private fun readCodeSizes(clazz: Class<*>): Map<String, Int> {
+        val resource = clazz.getResourceAsStream(clazz.simpleName + ".class")
+            ?: throw IllegalStateException("Class file not found for ${clazz.name}")
+
+        DataInputStream(resource.buffered()).use { input ->
+            input.readInt() // magic
+            input.readUnsignedShort() // minor version
+            input.readUnsignedShort() // major version
+
+            // Constant pool, keeping only the UTF-8 entries:
+            val poolSize = input.readUnsignedShort()
+            val utf8 = arrayOfNulls<String>(poolSize)
+            var i = 1
+            while (i < poolSize) {
+                when (val tag = input.readUnsignedByte()) {
+                    1 -> utf8[i] = input.readUTF()
+                    3, 4 -> input.skipBytes(4)
+                    5, 6 -> {
+                        // Long and Double take two slots:
+                        input.skipBytes(8)
+                        i++
+                    }
+
+                    7, 8, 16, 19, 20 -> input.skipBytes(2)
+                    9, 10, 11, 12, 17, 18 -> input.skipBytes(4)
+                    15 -> input.skipBytes(3)
+                    else -> throw IllegalStateException("Unknown constant pool tag $tag")
+                }
+                i++
+            }
+
+            input.skipBytes(6) // access flags, this class, super class
+            input.skipBytes(2 * input.readUnsignedShort()) // interfaces
+
+            // Fields:
+            repeat(input.readUnsignedShort()) {
+                input.skipBytes(6)
+                skipAttributes(input)
+            }
+
+            // Methods:
+            val sizes = LinkedHashMap<String, Int>()
+            repeat(input.readUnsignedShort()) {
+                input.skipBytes(2) // access flags
+                val name = utf8[input.readUnsignedShort()] + utf8[input.readUnsignedShort()]
+                repeat(input.readUnsignedShort()) {
+                    val attributeName = utf8[input.readUnsignedShort()]
+                    val length = input.readInt()
+                    if (attributeName == "Code") {
+                        input.skipBytes(4) // max stack, max locals
+                        val codeLength = input.readInt()
+                        sizes[name] = codeLength
+                        input.skipBytes(length - 8)
+                    } else {
+                        input.skipBytes(length)
+                    }
+                }
+            }
+            return sizes
+        }
+    }
+
+    private fun skipAttributes(input: DataInputStream) {
+        repeat(input.readUnsignedShort()) {
+            input.skipBytes(2)
+            input.skipBytes(input.readInt())
+        }
+    }
+
+    companion object {
+        // Default value of -XX:HugeMethodLimit:
+        private const val HUGE_METHOD_LIMIT = 8000
+    }
+}
@@ -0,0 +1,266 @@
+/*
+ *
+ *  * Copyright (C) 2025 Artur Skowroński
+ *  * This file is part of kNES, a fork of vNES (GPLv3) rewritten in Kotlin.
+ *  *
+ *  * vNES was originally developed by Brian F. R. (bfirsh) and released under the GPL-3.0 license.
+ *  * This project is a reimplementation and extension of that work.
+ *  *
+ *  * kNES is licensed under the GNU General Public License v3.0.
+ *  * See the LICENSE file for more details.
+ *
+ */
+
+package knes.emulator.cpu
+
+import knes.controllers.ControllerProvider
+import knes.emulator.NES
+import knes.emulator.input.InputHandler
+import knes.emulator.memory.MemoryAccess
+import knes.emulator.ui.NESUIFactory
+import knes.emulator.ui.ScreenView
+import knes.emulator.utils.Globals
+import org.junit.Assert.assertArrayEquals
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertFalse
+import org.junit.Assert.assertTrue
+import org.junit.Test
+import java.io.File
+
+/**
+ * Checks which loops IdleLoop lets the CPU fast-forward, and that fast-forwarding a VBlank polling loop gives the
+ * same result as interpreting every iteration.
+ */
+class IdleLoopTest {
+
+    @Test
+    fun pollingLoopsAreSkipped() {
+        assertTrue(repeats(LDA_ABS, 0x02, 0x20))
+        assertTrue(repeats(BIT_ABS, 0x02, 0x20))
+        assertTrue(repeats(LDA_ZP, 0x10, CMP_IMM, 0x05))
+        assertTrue(repeats(LDA_ZP, 0x10, ASL_ACC))
+    }
+
+    @Test
+    fun firstIterationIsNotSkipped() {
+        val mem = ByteArray(0x10000)
+        val idleLoop = IdleLoop()
+        val last = store(mem, LDA_ABS, 0x02, 0x20)
+
+        assertFalse(idleLoop.check(HEAD, last, 3, 1000, 0, 0, Memory(mem), mem))
+    }
+
+    @Test
+    fun changedIterationIsNotSkipped() {
+        val mem = ByteArray(0x10000)
+        val idleLoop = IdleLoop()
+        val last = store(mem, LDA_ABS, 0x02, 0x20)
+
+        // The polled value changed:
+        assertFalse(idleLoop.check(HEAD, last, 3, 1000, 0, 0, Memory(mem), mem))
+        mem[0x2002] = 0x80.toByte()
+        assertFalse(idleLoop.check(HEAD, last, 3, 1000 - 2, 0, 0, Memory(mem), mem))
+
+        // The registers changed:
+        assertFalse(idleLoop.check(HEAD, last, 3, 1000 - 4, 1, 0, Memory(mem), mem))
+
+        // Something else ran in between:
+        assertFalse(idleLoop.check(HEAD, last, 3, 1000 - 7, 1, 0, Memory(mem), mem))
+        assertTrue(idleLoop.check(HEAD, last, 3, 1000 - 9, 1, 0, Memory(mem), mem))
+    }
+
+    @Test
+    fun loopsWithStoresAreNotSkipped() {
+        assertFalse(repeats(LDA_ABS, 0x02, 0x20, STA_ZP, 0x10))
+        assertFalse(repeats(LDA_ABS, 0x02, 0x20, STA_ABS, 0x00, 0x20))
+    }
+
+    @Test
+    fun loopsWithStackOperationsAreNotSkipped() {
+        assertFalse(repeats(LDA_ABS, 0x02, 0x20, PHA, PLA))
+        assertFalse(repeats(LDA_ABS, 0x02, 0x20, PHP, PLP))
+    }
+
+    @Test
+    fun loopsWritingRamAreNotSkipped() {
+        assertFalse(repeats(INC_ZP, 0x10, LDA_ZP, 0x10))
+        assertFalse(repeats(LDA_ABS, 0x02, 0x20, DEC_ZP, 0x10))
+        assertFalse(repeats(LDA_ABS, 0x02, 0x20, ASL_ZP, 0x10))
+    }
+
+    @Test
+    fun loopsReadingOtherRegistersAreNotSkipped() {
+        assertFalse(repeats(LDA_ABS, 0x07, 0x20))
+        assertFalse(repeats(LDA_ABS, 0x16, 0x40))
+
+        // Only the first instruction may read memory:
+        assertFalse(repeats(LDA_ABS, 0x02, 0x20, LDX_ZP, 0x10))
+    }
+
+    @Test
+    fun skippedVBlankLoopMatchesStepping() {
+        val stepped = runVBlankLoop(false)
+        val skipped = runVBlankLoop(true)
+
+        assertEquals(stepped.size.toLong(), skipped.size.toLong())
+        for (i in stepped.indices) {
+            assertArrayEquals("State after step $i differs", stepped[i], skipped[i])
+        }
+
+        // The loop saw every VBlank, with and without skipping:
+        assertEquals(FRAMES.toLong(), stepped.last()[VBLANKS].toLong())
+    }
+
+    // Runs `LDA $2002 / BPL` waiting for VBlank, counting each VBlank in RAM, in steps of an odd number of cycles.
+    // Returns the cycle count, RAM and PPU status after each step.
+    private fun runVBlankLoop(skipIdleLoops: Boolean): List<ByteArray> {
+        val enableSound = Globals.enableSound
+        val enableIdleLoopSkipping = Globals.enableIdleLoopSkipping
+        val rom = File.createTempFile("idleloop", ".nes")
+        try {
+            Globals.enableSound = false
+            Globals.enableIdleLoopSkipping = skipIdleLoops
+            rom.writeBytes(vBlankLoopRom())
+
+            val nes = NES(null, Factory, Screen(), Controller)
+            nes.enableSound(false)
+            assertTrue(nes.loadRom(rom.path))
+            nes.cpuMemory.mem.fill(0, 0, 0x800)
+
+            val states = ArrayList<ByteArray>()
+            var cycles = 0L
+            while (cycles < FRAMES * FRAME_CYCLES) {
+                cycles += nes.runCycles(STEP_CYCLES)
+                val state = nes.cpuMemory.mem.copyOf(0x800 + 3)
+                state[0x800] = nes.cpuMemory.mem[0x2002]
+                state[0x801] = cycles.toByte()
+                state[0x802] = (cycles shr 8).toByte()
+                states.add(state)
+            }
+            return states
+        } finally {
+            Globals.enableSound = enableSound
+            Globals.enableIdleLoopSkipping = enableIdleLoopSkipping
+            rom.delete()
+        }
+    }
+
+    // NROM image that disables NMI and rendering, then counts VBlanks at VBLANKS:
+    private fun vBlankLoopRom(): ByteArray {
+        val code = intArrayOf(
+            0x78,                   // SEI
+            0xA9, 0x00,             // LDA #$00
+            0x8D, 0x00, 0x20,       // STA $2000
+            0x8D, 0x01, 0x20,       // STA $2001
+            0xAD, 0x02, 0x20,       // $C009: LDA $2002
+            0x10, 0xFB,             // BPL $C009
+            0xE6, VBLANKS,          // INC VBLANKS
+            0x4C, 0x09, 0xC0        // JMP $C009
+        )
+        val prg = ByteArray(0x4000)
+        for (i in code.indices) {
+            prg[i] = code[i].toByte()
+        }
+        // NMI, reset and IRQ vectors:
+        for (vector in 0x3FFA until 0x4000 step 2) {
+            prg[vector + 1] = 0xC0.toByte()
+        }
+        val header = byteArrayOf(0x4E, 0x45, 0x53, 0x1A, 1, 1, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0)
+        return header + prg + ByteArray(0x2000)
+    }
+
+    // Stores a loop made of the given body and a BPL back to its start at HEAD. Returns the address of the BPL.
+    private fun store(mem: ByteArray, vararg body: Int): Int {
+        for (i in body.indices) {
+            mem[HEAD + i] = body[i].toByte()
+        }
+        mem[HEAD + body.size] = BPL.toByte()
+        mem[HEAD + body.size + 1] = (-(body.size + 2)).toByte()
+        return HEAD + body.size
+    }
+
+    // Whether a loop with the given body is skipped once it has run two identical iterations.
+    private fun repeats(vararg body: Int): Boolean {
+        val mem = ByteArray(0x10000)
+        val idleLoop = IdleLoop()
+        val last = store(mem, *body)
+
+        if (idleLoop.check(HEAD, last, 3, 1000, 0, 0, Memory(mem), mem)) {
+            return true
+        }
+        return idleLoop.check(HEAD, last, 3, 1000L - idleLoop.instructions, 0, 0, Memory(mem), mem)
+    }
+
+    private class Memory(private val mem: ByteArray) : MemoryAccess {
+        override fun write(address: Int, value: Short) {
+            mem[address] = value.toByte()
+        }
+
+        override fun load(address: Int): Short {
+            return (mem[address].toInt() and 0xFF).toShort()
+        }
+    }
+
+    private class Screen : ScreenView {
+        private val buffer = IntArray(256 * 240)
+
+        override fun init() {}
+        override fun getBuffer(): IntArray = buffer
+        override fun getBufferWidth(): Int = 256
+        override fun getBufferHeight(): Int = 240
+        override fun imageReady(skipFrame: Boolean) {}
+        override fun scalingEnabled(): Boolean = false
+        override fun useHWScaling(): Boolean = false
+        override fun getScaleMode(): Int = 0
+        override fun setScaleMode(newMode: Int) {}
+        override fun getScaleModeScale(mode: Int): Int = 1
+        override fun setFPSEnabled(enabled: Boolean) {}
+        override fun setBgColor(color: Int) {}
+        override fun destroy() {}
+    }
+
+    private object Controller : ControllerProvider {
+        override fun getButtonState(button: ControllerProvider.NESButton): Short = 0x40
+        override fun mapButton(button: ControllerProvider.NESButton, code: Int) {}
+        override fun update() {}
+    }
+
+    private object Factory : NESUIFactory {
+        override fun createInputHandler(controller: ControllerProvider): InputHandler = object : InputHandler {
+            override fun getKeyState(padKey: Int): Short = 0x40
+            override fun mapKey(padKey: Int, deviceKey: Int) {}
+            override fun reset() {}
+            override fun update() {}
+            override fun destroy() {}
+        }
+
+        override fun createScreenView(scale: Int): ScreenView? = null
+    }
+
+    companion object {
+        // Loops are stored in RAM, where IdleLoop reads them from the memory array:
+        private const val HEAD = 0x0300
+
+        private const val VBLANKS = 0x00
+        private const val FRAMES = 10
+        private const val FRAME_CYCLES = 29781L
+        private const val STEP_CYCLES = 997L
+
+        private const val ASL_ACC = 0x0A
+        private const val ASL_ZP = 0x06
+        private const val BIT_ABS = 0x2C
+        private const val BPL = 0x10
+        private const val CMP_IMM = 0xC9
+        private const val DEC_ZP = 0xC6
+        private const val INC_ZP = 0xE6
+        private const val LDA_ABS = 0xAD
+        private const val LDA_ZP = 0xA5
+        private const val LDX_ZP = 0xA6
+        private const val PHA = 0x48
+        private const val PHP = 0x08
+        private const val PLA = 0x68
+        private const val PLP = 0x28
+        private const val STA_ABS = 0x8D
+        private const val STA_ZP = 0x85
+    }
+}
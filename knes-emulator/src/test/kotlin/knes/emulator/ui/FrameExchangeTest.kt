@@ -0,0 +1,125 @@
+/*
+ *
+ *  * Copyright (C) 2025 Artur Skowroński
+ *  * This file is part of kNES, a fork of vNES (GPLv3) rewritten in Kotlin.
+ *  *
+ *  * vNES was originally developed by Brian F. R. (bfirsh) and released under the GPL-3.0 license.
+ *  * This project is a reimplementation and extension of that work.
+ *  *
+ *  * kNES is licensed under the GNU General Public License v3.0.
+ *  * See the LICENSE file for more details.
+ *
+ */
+
+package knes.emulator.ui
+
+import org.junit.Assert.assertFalse
+import org.junit.Assert.assertNotSame
+import org.junit.Assert.assertSame
+import org.junit.Assert.assertTrue
+import org.junit.Test
+import java.util.concurrent.atomic.AtomicReference
+
+/**
+ * Checks that FrameExchange hands over frames in order and never lets the emulation thread draw into the frame
+ * the UI thread is reading.
+ */
+class FrameExchangeTest {
+
+    @Test
+    fun startsWithoutFrame() {
+        val exchange = FrameExchange(SIZE, 0x0F)
+
+        assertFalse(exchange.hasNewFrame())
+        assertTrue(exchange.acquireLatest().all { it == 0x0F })
+        assertTrue(exchange.getBackBuffer().all { it == 0x0F })
+    }
+
+    @Test
+    fun acquireReturnsPublishedFrame() {
+        val exchange = FrameExchange(SIZE, 0)
+
+        val drawn = exchange.getBackBuffer()
+        drawn.fill(1)
+        val next = exchange.publish()
+        assertNotSame(drawn, next)
+        assertSame(next, exchange.getBackBuffer())
+        assertTrue(exchange.hasNewFrame())
+
+        assertSame(drawn, exchange.acquireLatest())
+        assertFalse(exchange.hasNewFrame())
+
+        // Without a new frame the UI keeps the one it has:
+        assertSame(drawn, exchange.acquireLatest())
+    }
+
+    @Test
+    fun acquireReturnsNewestFrame() {
+        val exchange = FrameExchange(SIZE, 0)
+        val front = exchange.acquireLatest()
+
+        for (frame in 1..3) {
+            val back = exchange.getBackBuffer()
+            assertNotSame(front, back)
+            back.fill(frame)
+            exchange.publish()
+        }
+
+        assertTrue(exchange.hasNewFrame())
+        val latest = exchange.acquireLatest()
+        assertTrue(latest.all { it == 3 })
+        assertFalse(exchange.hasNewFrame())
+    }
+
+    @Test
+    fun frameIsNotWrittenWhileRead() {
+        val exchange = FrameExchange(SIZE, 0)
+        val failure = AtomicReference<Throwable>()
+
+        // Fills each frame with its number, a frame the producer writes while it is read is not uniform. Yielding
+        // halfway lets the consumer run in the middle of a frame even on a single core:
+        val producer = Thread {
+            for (frame in 1..FRAMES) {
+                val buffer = exchange.getBackBuffer()
+                buffer.fill(frame, 0, SIZE / 2)
+                Thread.yield()
+                buffer.fill(frame, SIZE / 2, SIZE)
+                exchange.publish()
+            }
+        }
+
+        val consumer = Thread {
+            try {
+                var last = 0
+                while (last < FRAMES) {
+                    val frame = exchange.acquireLatest()
+                    val number = frame[0]
+                    assertTrue("Frame $number came after frame $last", number >= last)
+                    // Read the frame twice, the producer keeps running meanwhile:
+                    repeat(2) {
+                        assertTrue("Frame $number was written while read", frame.all { it == number })
+                        Thread.yield()
+                    }
+                    last = number
+                }
+            } catch (e: Throwable) {
+                failure.set(e)
+            }
+        }
+
+        consumer.start()
+        producer.start()
+        producer.join(TIMEOUT_MILLIS)
+        consumer.join(TIMEOUT_MILLIS)
+
+        assertFalse("Producer did not finish", producer.isAlive)
+        assertFalse("Consumer did not finish", consumer.isAlive)
+        failure.get()?.let { throw it }
+    }
+
+    companion object {
+        private const val SIZE = 256 * 240
+        private const val FRAMES = 5000
+        private const val TIMEOUT_MILLIS = 60_000L
+    }
+}
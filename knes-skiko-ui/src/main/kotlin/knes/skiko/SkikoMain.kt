@@ -45,6 +45,7 @@ import java.awt.Font
 import java.awt.event.WindowAdapter
 import java.awt.event.WindowEvent
 import javax.swing.JButton
+import javax.swing.JComboBox
 import javax.swing.JFileChooser
 import javax.swing.JFrame
 import javax.swing.JLabel
@@ -196,6 +197,17 @@ class SkikoMain {
         }
         controlPanel.add(loadRomButton)
 
+        // Create the filter selection
+        val filterModes = SkikoScreenView.FILTER_MODES.keys.toList()
+        val filterBox = JComboBox(SkikoScreenView.FILTER_MODES.values.toTypedArray())
+        filterBox.selectedIndex = maxOf(filterModes.indexOf(screenView.getScaleMode()), 0)
+        filterBox.addActionListener {
+            screenView.setScaleMode(filterModes[filterBox.selectedIndex])
+            skiaLayer.requestFocus()
+        }
+        controlPanel.add(JLabel("Filter:"))
+        controlPanel.add(filterBox)
+
         // Add the control panel to the frame
         frame.add(controlPanel, BorderLayout.SOUTH)
 
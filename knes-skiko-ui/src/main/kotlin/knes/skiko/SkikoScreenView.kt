@@ -34,7 +34,10 @@ import org.jetbrains.skia.Bitmap
 import org.jetbrains.skia.ColorAlphaType
 import org.jetbrains.skia.ColorType
 import org.jetbrains.skia.ImageInfo
+import knes.emulator.Scale
+import knes.emulator.ui.FrameExchange
 import knes.emulator.ui.ScreenView
+import knes.emulator.utils.PaletteTable
 import java.awt.Color
 import java.awt.image.BufferedImage
 import java.nio.ByteBuffer
@@ -49,23 +52,28 @@ class SkikoScreenView(private var scale: Int) : ScreenView {
     private val width = 256
     private val height = 240
 
-    private var buffer: IntArray = IntArray(width * height)
+    // Frames from the emulation thread, black palette entry until the first one:
+    private val frames = FrameExchange(width * height, 0x0F)
     private var scaleMode = 0
     private var showFPS = false
     private var bgColor = 0xFF333333.toInt()
 
     private var frameCounter: Long = 0
 
+    // Opaque ARGB color of every indexed pixel value, and the palette it was made from:
+    private val argbTable = IntArray(512)
+    private var argbSource: IntArray? = null
+
+    // Output of SCALE_NTSC. Frames come without a record of changed rows, so the filters redraw every row:
+    private val ntscPixels = IntArray(Scale.NTSC_WIDTH * Scale.NTSC_HEIGHT)
+    private val allRows = BooleanArray(height) { true }
+
     // Callback for when a new frame is ready
     var onFrameReady: (() -> Unit)? = null
         set(value) {
             field = value
         }
 
-    init {
-        buffer.fill(bgColor)
-    }
-
     /**
      * Gets the frame bitmap for rendering.
      * 
@@ -73,25 +81,33 @@ class SkikoScreenView(private var scale: Int) : ScreenView {
      */
     fun getFrameBitmap(): Bitmap {
         frameCounter++
+        val frame = frames.acquireLatest()
 
         // Log some color information for debugging
         if (frameCounter % 60L == 0L) { // Log once per second at 60fps
             println("[DEBUG] First few pixels in buffer: " +
-                    "${Integer.toHexString(buffer[0])}, " +
-                    "${Integer.toHexString(buffer[1])}, " +
-                    "${Integer.toHexString(buffer[2])}")
+                    "${Integer.toHexString(frame[0])}, " +
+                    "${Integer.toHexString(frame[1])}, " +
+                    "${Integer.toHexString(frame[2])}")
         }
 
         // Create a Skiko Bitmap
+        val mode = scaleMode
+        val ntsc = mode == SCALE_NTSC
+        val filter = pixelArtFilter(mode)
+        val factor = if (filter >= 0) getScaleModeScale(mode) else 1
+        val bitmapWidth = if (ntsc) Scale.NTSC_WIDTH else width * factor
+        val bitmapHeight = if (ntsc) Scale.NTSC_HEIGHT else height * factor
         val bitmap = Bitmap()
-        val imageInfo = ImageInfo(width, height, ColorType.RGBA_8888, ColorAlphaType.UNPREMUL)
+        val imageInfo = ImageInfo(bitmapWidth, bitmapHeight, ColorType.RGBA_8888, ColorAlphaType.UNPREMUL)
         bitmap.allocPixels(imageInfo)
 
-        // Set the pixel data directly from the buffer
+        // Set the pixel data from the buffer's palette indices
         // We need to ensure alpha channel is set for each pixel
-        val pixelsWithAlpha = IntArray(buffer.size)
-        for (i in buffer.indices) {
-            pixelsWithAlpha[i] = buffer[i] or 0xFF000000.toInt()
+        val pixelsWithAlpha = when {
+            ntsc -> toNtsc(frame)
+            filter >= 0 -> toFiltered(frame, filter, factor)
+            else -> toArgb(frame)
         }
 
         // Convert IntArray to ByteArray for installPixels
@@ -99,7 +115,7 @@ class SkikoScreenView(private var scale: Int) : ScreenView {
         val intBuffer = byteBuffer.asIntBuffer()
         intBuffer.put(pixelsWithAlpha)
 
-        bitmap.installPixels(imageInfo, byteBuffer.array(), width * 4)
+        bitmap.installPixels(imageInfo, byteBuffer.array(), bitmapWidth * 4)
 
         return bitmap
     }
@@ -131,10 +147,7 @@ class SkikoScreenView(private var scale: Int) : ScreenView {
      */
     fun getFrameBufferedImage(): BufferedImage {
         // Create a copy of the buffer with alpha channel set
-        val pixelsWithAlpha = IntArray(buffer.size)
-        for (i in buffer.indices) {
-            pixelsWithAlpha[i] = buffer[i] or 0xFF000000.toInt()
-        }
+        val pixelsWithAlpha = toArgb(frames.acquireLatest())
 
         // Log some color information for debugging
         if (frameCounter % 60L == 0L) { // Log once per second at 60fps
@@ -150,6 +163,60 @@ class SkikoScreenView(private var scale: Int) : ScreenView {
         }
     }
 
+    /**
+     * Converts the palette indices of a frame to opaque ARGB colors.
+     *
+     * @param frame The frame, as palette indices
+     * @return The converted frame
+     */
+    private fun toArgb(frame: IntArray): IntArray {
+        val palette = PaletteTable.indexedTable
+        if (palette !== argbSource) {
+            for (i in palette.indices) {
+                argbTable[i] = palette[i] or 0xFF000000.toInt()
+            }
+            argbSource = palette
+        }
+
+        val pixels = IntArray(frame.size)
+        for (i in frame.indices) {
+            pixels[i] = argbTable[frame[i]]
+        }
+        return pixels
+    }
+
+    /**
+     * Draws a frame of palette indices as an NTSC TV shows it, see [Scale.ntsc].
+     *
+     * @param frame The frame, as palette indices
+     * @return The filtered frame of Scale.NTSC_WIDTH x Scale.NTSC_HEIGHT opaque ARGB colors
+     */
+    private fun toNtsc(frame: IntArray): IntArray {
+        Scale.ntsc(frame, ntscPixels, allRows)
+        val pixels = IntArray(ntscPixels.size)
+        for (i in pixels.indices) {
+            pixels[i] = ntscPixels[i] or 0xFF000000.toInt()
+        }
+        return pixels
+    }
+
+    /**
+     * Scales a frame of palette indices with one of the pixel art filters, see [Scale.scale].
+     *
+     * @param frame The frame, as palette indices
+     * @param filter The Scale.FILTER_ constant
+     * @param factor The scale factor, 2 or 3
+     * @return The scaled frame of opaque ARGB colors
+     */
+    private fun toFiltered(frame: IntArray, filter: Int, factor: Int): IntArray {
+        val pixels = IntArray(frame.size * factor * factor)
+        Scale.scale(filter, factor, frame, pixels, allRows, PaletteTable.indexedTable)
+        for (i in pixels.indices) {
+            pixels[i] = pixels[i] or 0xFF000000.toInt()
+        }
+        return pixels
+    }
+
     override fun init() {
         // No initialization needed
     }
@@ -157,10 +224,28 @@ class SkikoScreenView(private var scale: Int) : ScreenView {
     /**
      * Gets the buffer of pixel data for the screen.
      * 
-     * @return Array of pixel data in RGB format
+     * @return Array of pixel data as palette indices, see [ScreenView.indexedColor]
      */
     override fun getBuffer(): IntArray {
-        return buffer
+        return frames.getBackBuffer()
+    }
+
+    /**
+     * Completed frames are drawn on the UI thread, from [getFrameBitmap].
+     *
+     * @return The frame exchange
+     */
+    override fun getFrameExchange(): FrameExchange {
+        return frames
+    }
+
+    /**
+     * The PPU writes palette indices, which are converted to RGB when a frame is drawn.
+     *
+     * @return true
+     */
+    override fun indexedColor(): Boolean {
+        return true
     }
 
     /**
@@ -239,7 +324,8 @@ class SkikoScreenView(private var scale: Int) : ScreenView {
     override fun getScaleModeScale(mode: Int): Int {
         return when (mode) {
             0 -> 1
-            1, 2 -> 2
+            1, 2, SCALE_NTSC, SCALE_SCALE2X, SCALE_EDGE_BLEND2X, SCALE_XBR2X -> 2
+            SCALE_SCALE3X, SCALE_EDGE_BLEND3X, SCALE_XBR3X -> 3
             else -> 1
         }
     }
@@ -284,6 +370,43 @@ class SkikoScreenView(private var scale: Int) : ScreenView {
      * Clean up resources used by this screen view.
      */
     override fun destroy() {
-        buffer = IntArray(0)
+        // The frame buffers are released with the view
+    }
+
+    companion object {
+        // Scale mode that draws frames through the NTSC filter, at twice the frame's height (see Scale.ntsc):
+        const val SCALE_NTSC = 3
+
+        // Scale modes that draw frames through the pixel art filters of knes.emulator.Scale:
+        const val SCALE_SCALE2X = 4
+        const val SCALE_SCALE3X = 5
+        const val SCALE_EDGE_BLEND2X = 6
+        const val SCALE_EDGE_BLEND3X = 7
+        const val SCALE_XBR2X = 8
+        const val SCALE_XBR3X = 9
+
+        // The modes offered for selection, by name:
+        val FILTER_MODES = linkedMapOf(
+            0 to "None",
+            SCALE_NTSC to "NTSC",
+            SCALE_SCALE2X to "Scale2x",
+            SCALE_SCALE3X to "Scale3x",
+            SCALE_EDGE_BLEND2X to "Edge blend 2x",
+            SCALE_EDGE_BLEND3X to "Edge blend 3x",
+            SCALE_XBR2X to "xBR 2x",
+            SCALE_XBR3X to "xBR 3x"
+        )
+
+        /**
+         * Returns the Scale.FILTER_ constant a scale mode draws with, or -1 for modes without a pixel art filter.
+         */
+        fun pixelArtFilter(mode: Int): Int {
+            return when (mode) {
+                SCALE_SCALE2X, SCALE_SCALE3X -> Scale.FILTER_SCALE_X
+                SCALE_EDGE_BLEND2X, SCALE_EDGE_BLEND3X -> Scale.FILTER_EDGE_BLEND
+                SCALE_XBR2X, SCALE_XBR3X -> Scale.FILTER_XBR
+                else -> -1
+            }
+        }
     }
 }
@@ -30,7 +30,10 @@ You should have received a copy of the GNU General Public License along with
 this program.  If not, see <http://www.gnu.org/licenses/>.
  */
 
+import knes.emulator.ui.FrameExchange
 import knes.emulator.ui.ScreenView
+import knes.emulator.utils.PaletteTable
+import java.util.concurrent.Executors
 import java.util.concurrent.atomic.AtomicBoolean
 
 /**
@@ -42,7 +45,8 @@ class TerminalScreenView(private var scale: Int) : ScreenView {
     private val width = 256
     private val height = 240
 
-    private var buffer: IntArray = IntArray(width * height)
+    // Frames from the emulation thread, black palette entry until the first one:
+    private val frames = FrameExchange(width * height, 0x0F)
     private var scaleMode = 0
     private var showFPS = false
     private var bgColor = 0xFF333333.toInt()
@@ -51,9 +55,13 @@ class TerminalScreenView(private var scale: Int) : ScreenView {
     private val drawBufferToTerminal = AtomicBoolean(true)
     private val frameRateLimit = 4 // Only render every 4th frame to avoid terminal spam
 
-    init {
-        buffer.fill(bgColor)
-    }
+    // Frames are printed on their own thread, and dropped while the previous one is still being printed:
+    private val printer = Executors.newSingleThreadExecutor { Thread(it, "Terminal screen").apply { isDaemon = true } }
+    private val printing = AtomicBoolean(false)
+
+    // ANSI color code of every indexed pixel value, and the palette it was made from:
+    private val ansiTable = IntArray(512)
+    private var ansiSource: IntArray? = null
 
     /**
      * Visualizes the buffer in the terminal.
@@ -64,20 +72,41 @@ class TerminalScreenView(private var scale: Int) : ScreenView {
      * @param width The width of the buffer
      * @param height The height of the buffer
      */
-    private fun visualizeBufferInTerminal() {
+    private fun visualizeBufferInTerminal(buffer: IntArray) {
 
         // ANSI escape code for reset
         val reset = "\u001B[0m"
+        val colors = getAnsiTable()
 
         // Draw the buffer line by line
         for (y in 0 until height) {
             val line = StringBuilder()
             // Cut 30 pixels from left and 30 pixels from right
             for (x in 30 until width - 30) {
-                val pixel = buffer[y * width + x]
-                val r = (pixel shr 16) and 0xFF
-                val g = (pixel shr 8) and 0xFF
-                val b = pixel and 0xFF
+                val colorCode = colors[buffer[y * width + x]]
+
+                // Apply the color and add a block character
+                line.append("\u001B[38;5;${colorCode}m█$reset")
+            }
+            // Print every 8th line to reduce output volume
+            if (y % 8 == 0) {
+                println(line.toString())
+            }
+        }
+    }
+
+    /**
+     * Returns the ANSI color code of every indexed pixel value, rebuilding the table when the palette changes.
+     *
+     * @return Table of 256-color mode codes
+     */
+    private fun getAnsiTable(): IntArray {
+        val palette = PaletteTable.indexedTable
+        if (palette !== ansiSource) {
+            for (i in palette.indices) {
+                val r = (palette[i] shr 16) and 0xFF
+                val g = (palette[i] shr 8) and 0xFF
+                val b = palette[i] and 0xFF
 
                 // Convert RGB to ANSI color code
                 // Using 8-bit color mode (256 colors)
@@ -86,16 +115,11 @@ class TerminalScreenView(private var scale: Int) : ScreenView {
                 val ansiR = (r * 5 / 255)
                 val ansiG = (g * 5 / 255)
                 val ansiB = (b * 5 / 255)
-                val colorCode = 16 + (36 * ansiR) + (6 * ansiG) + ansiB
-
-                // Apply the color and add a block character
-                line.append("\u001B[38;5;${colorCode}m█$reset")
-            }
-            // Print every 8th line to reduce output volume
-            if (y % 8 == 0) {
-                println(line.toString())
+                ansiTable[i] = 16 + (36 * ansiR) + (6 * ansiG) + ansiB
             }
+            ansiSource = palette
         }
+        return ansiTable
     }
 
     /**
@@ -108,10 +132,28 @@ class TerminalScreenView(private var scale: Int) : ScreenView {
     /**
      * Gets the buffer of pixel data for the screen.
      * 
-     * @return Array of pixel data in RGB format
+     * @return Array of pixel data as palette indices, see [ScreenView.indexedColor]
      */
     override fun getBuffer(): IntArray {
-        return buffer
+        return frames.getBackBuffer()
+    }
+
+    /**
+     * Completed frames are printed on the printer thread.
+     *
+     * @return The frame exchange
+     */
+    override fun getFrameExchange(): FrameExchange {
+        return frames
+    }
+
+    /**
+     * The PPU writes palette indices, which are converted to ANSI colors when a frame is printed.
+     *
+     * @return true
+     */
+    override fun indexedColor(): Boolean {
+        return true
     }
 
     /**
@@ -140,9 +182,17 @@ class TerminalScreenView(private var scale: Int) : ScreenView {
     override fun imageReady(skipFrame: Boolean) {
         frameCounter++
 
-        if (!skipFrame && drawBufferToTerminal.get() && frameCounter % frameRateLimit == 0L) {
+        if (!skipFrame && drawBufferToTerminal.get() && frameCounter % frameRateLimit == 0L &&
+            printing.compareAndSet(false, true)
+        ) {
             // Visualize the buffer in the terminal
-            visualizeBufferInTerminal()
+            printer.execute {
+                try {
+                    visualizeBufferInTerminal(frames.acquireLatest())
+                } finally {
+                    printing.set(false)
+                }
+            }
         }
     }
 
@@ -254,6 +304,6 @@ class TerminalScreenView(private var scale: Int) : ScreenView {
      * Clean up resources used by this screen view.
      */
     override fun destroy() {
-        buffer = IntArray(0)
+        printer.shutdownNow()
     }
 }